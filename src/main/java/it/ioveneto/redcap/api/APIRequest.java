@@ -1,26 +1,56 @@
 package it.ioveneto.redcap.api;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.util.EntityUtils;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 public abstract class APIRequest {
 
     protected final HttpPost post;
-    private final HttpClient client;
-    private final StringBuffer result;
+    private RedcapTransport transport;
+    private HttpClient client;
+    private String result;
     private boolean debugMode;
-    private HttpResponse resp;
     private int respCode;
-    private BufferedReader reader;
-    private String line;
+    private RetryPolicy retryPolicy;
+    private String token;
+    private String content;
+    private int connectTimeout;
+    private int socketTimeout;
+    private long deadline;
+    private volatile boolean cancelled;
+    private final CountDownLatch cancellation;
+    private final Set<Future<?>> pending;
 
     public APIRequest(final String url, final boolean debugMode) {
 
@@ -31,61 +61,899 @@ public abstract class APIRequest {
         post.setHeader("Content-Type", "application/x-www-form-urlencoded");
 
         this.debugMode = debugMode;
-        result = new StringBuffer();
-        client = HttpClientBuilder.create().build();
+        result = "";
+        transport = RedcapTransport.getDefault();
+        client = transport.getClient();
         respCode = -1;
-        reader = null;
-        line = null;
+        connectTimeout = -1;
+        socketTimeout = -1;
+        cancellation = new CountDownLatch(1);
+        pending = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Sets the transport used to perform the request, in place of the process-wide default one
+     * @param transport the transport to use
+     */
+    public void setTransport(final RedcapTransport transport) {
+        if (transport == null)
+            throw new IllegalArgumentException("Must provide a valid transport");
+        this.transport = transport;
+        client = transport.getClient();
+    }
+
+    /**
+     * Applies the settings of another request (transport, retry policy, timeouts, deadline and debug mode) to this one
+     * @param template the request whose settings are copied
+     */
+    void inherit(final APIRequest template) {
+        transport = template.transport;
+        client = template.client;
+        retryPolicy = template.retryPolicy;
+        connectTimeout = template.connectTimeout;
+        socketTimeout = template.socketTimeout;
+        deadline = template.deadline;
+        debugMode = template.debugMode;
     }
 
     public void setParams(List<NameValuePair> params){
+        remember(params);
         try {
-            post.setEntity(new UrlEncodedFormEntity(params));
+            post.setEntity(new UrlEncodedFormEntity(params, StandardCharsets.UTF_8));
         } catch (final Exception e) {
             throw new APICallException("Error in settings params call - "+e.getMessage(), e.getCause());
         }
     }
 
     /**
-     * Performs the Http request and handles results. Prints HTTP response and result on standard output if debug mode
-     * is active
+     * Sets the params of the request, streaming the value of the largest one (e.g. the data of an import) from a
+     * reader while the request is sent, instead of encoding it in memory. The request can then be performed only once.
+     * @param params        the other params
+     * @param streamedName  the name of the streamed param
+     * @param streamedValue the value of the streamed param, closed once sent
+     */
+    public void setParams(List<NameValuePair> params, String streamedName, Reader streamedValue){
+        remember(params);
+        post.setEntity(new StreamingFormEntity(params, streamedName, streamedValue));
+    }
+
+    /**
+     * Sets the params of the request, streaming the value of the largest one (e.g. the data of an import) from an
+     * UTF-8 text file while the request is sent, instead of encoding it in memory.
+     * @param params        the other params
+     * @param streamedName  the name of the streamed param
+     * @param streamedValue the file holding the value of the streamed param
+     */
+    public void setParams(List<NameValuePair> params, String streamedName, Path streamedValue){
+        remember(params);
+        post.setEntity(new StreamingFormEntity(params, streamedName, streamedValue));
+    }
+
+    /**
+     * Sets a body other than an url-encoded form of params, e.g. the multipart form of a file upload, sent with its
+     * own content type
+     * @param params the params of the request also sent in the body, identifying it to the rate limiter
+     * @param entity the body of the request
+     */
+    protected void setEntity(final List<NameValuePair> params, final HttpEntity entity) {
+        remember(params);
+        post.removeHeaders("Content-Type");
+        post.setEntity(entity);
+    }
+
+    /**
+     * Keeps the token and the content of the request, identifying it to the rate limiter
+     */
+    private void remember(final List<NameValuePair> params) {
+        if (params == null)
+            return;
+        for (final NameValuePair param : params) {
+            if ("token".equals(param.getName()))
+                token = param.getValue();
+            else if ("content".equals(param.getName()))
+                content = param.getValue();
+        }
+    }
+
+    /**
+     * Performs the Http request and handles results. The whole body is read in memory and made available through
+     * {@link #getResult()}. If the request is cacheable (see {@link #isCacheable()}) and the transport has a
+     * {@link ResponseCache} holding the response of an identical request, the response is taken from it; if the transport has a {@link RequestCoalescer}, an identical call already in
+     * flight is joined instead of being performed again. Prints HTTP response and result on standard output if debug
+     * mode is active
      */
     public void doPost() throws APICallException {
-        resp = null;
+        final APIResponse response = doPostShared();
+        respCode = response.getRespCode();
+        result = response.getResult();
 
+        if (debugMode)
+            System.out.println("result: " + result);
+    }
+
+    /**
+     * Performs the Http request reading the whole body, through the {@link ResponseCache} and the
+     * {@link RequestCoalescer} of the transport, if any, as {@link #doPost()} does
+     * @return the response, possibly shared with identical requests
+     */
+    APIResponse doPostShared() throws APICallException {
+        final ResponseCache cache = isCacheable() ? transport.getResponseCache() : null;
+        final RequestCoalescer coalescer = transport.getRequestCoalescer();
+        final String key = cache == null && coalescer == null ? null : getSharingKey();
+        if (key == null)
+            return fetch(null, null);
+
+        final APIResponse response = cache == null ? null : cache.get(key);
+        if (response != null)
+            return response;
+        if (coalescer == null)
+            return fetch(cache, key);
+        // the shared call runs detached, each caller (this one included) giving up only its own wait
+        return await(coalescer.join(key, () -> fetchAsync(cache, key, 0)), getDeadlineAt());
+    }
+
+    /**
+     * Performs the call, reading the whole response and storing it in the cache, if any
+     */
+    private APIResponse fetch(final ResponseCache cache, final String key) throws APICallException {
+        final APIResponse response = doPost(resp -> new APIResponse(resp, resp.getEntity() == null ? "" :
+                EntityUtils.toString(resp.getEntity(), StandardCharsets.UTF_8)));
+        if (cache != null)
+            cache.put(key, response);
+        return response;
+    }
+
+    /**
+     * Returns the key identifying the request to the coalescer and to the response cache
+     * @return the key, null if the response of the request cannot be shared
+     */
+    private String getSharingKey() {
+        return isShareable() ? RequestCoalescer.getKey(getEndpoint(), post.getEntity()) : null;
+    }
+
+    /**
+     * Waits for the response of a coalesced call, unless the request is cancelled or its deadline expires meanwhile
+     */
+    private APIResponse await(final CompletableFuture<APIResponse> future, final long deadlineAt) throws APICallException {
+        pending.add(future);
         try {
-            resp = client.execute(post);
-        } catch (final Exception e) {
-            throw new APICallException("Failure in API invocation execution - "+e.getMessage(), e.getCause());
+            if (cancelled)
+                future.cancel(false);
+            if (deadlineAt == 0)
+                return future.get();
+            return future.get(Math.max(0, deadlineAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (final CancellationException e) {
+            throw new APICallException("API invocation cancelled", e);
+        } catch (final TimeoutException e) {
+            throw new APICallException("Deadline of "+deadline+" ms exceeded", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof APICallException)
+                throw (APICallException) e.getCause();
+            throw new APICallException("Failure in API invocation execution - "+e.getCause().getMessage(), e.getCause());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new APICallException("Interrupted while waiting for API invocation", e);
+        } finally {
+            pending.remove(future);
         }
+    }
 
-        if (resp != null) {
-            respCode = resp.getStatusLine().getStatusCode();
+    /**
+     * Performs the Http request and lets the given handler consume the response body, so that large results can be
+     * processed incrementally without being held in memory. The handler is invoked only for successful (HTTP 200)
+     * responses; the connection is given back to the pool when the handler returns, or dropped if the handler did not
+     * read the body to the end. The deadline, if set, covers the handler too. Prints HTTP response on standard output
+     * if debug mode is active
+     *
+     * @param handler the handler reading the response
+     * @param <T>     the type of the value produced by the handler
+     * @return the value returned by the handler
+     */
+    public <T> T doPost(final ResponseHandler<? extends T> handler) throws APICallException {
+        final long deadlineAt = getDeadlineAt();
+        final ScheduledFuture<?> timer = scheduleAbort(deadlineAt);
+        try {
+            final HttpResponse resp = execute(deadlineAt);
             try {
-                reader = new BufferedReader(new InputStreamReader(resp.getEntity().getContent()));
+                return handler.handleResponse(resp);
+            } catch (final APICallException e) {
+                throw e;
             } catch (final Exception e) {
-                throw new APICallException("Failure in API invocation execution - "+e.getMessage(), e.getCause());
+                throw failure(e, deadlineAt);
+            } finally {
+                closeQuietly(resp);
             }
+        } finally {
+            if (timer != null)
+                timer.cancel(false);
         }
+    }
 
-        if (reader != null) {
+    /**
+     * Performs the Http request and returns the response body as a stream, to be consumed incrementally by the
+     * caller. The stream must always be closed: closing it before its end drops the underlying connection instead of
+     * reading the rest of the body. The deadline, if set, covers the wait for the response, not the reading of the
+     * stream, bounded by the socket timeout only. Prints HTTP response on standard output if debug mode is active
+     *
+     * @return the body of a successful (HTTP 200) response
+     */
+    public InputStream doPostStream() throws APICallException {
+        final long deadlineAt = getDeadlineAt();
+        final ScheduledFuture<?> timer = scheduleAbort(deadlineAt);
+        final HttpResponse resp;
+        try {
+            resp = execute(deadlineAt);
+        } finally {
+            if (timer != null)
+                timer.cancel(false);
+        }
+        try {
+            return new ResponseInputStream(resp);
+        } catch (final Exception e) {
+            closeQuietly(resp);
+            throw failure(e, deadlineAt);
+        }
+    }
+
+    /**
+     * Executes the request, updating the response code and retrying it according to the retry policy. Responses
+     * other than HTTP 200 are read, released and, once no attempt is left, turned into an {@link APICallException}
+     * @param deadlineAt the time (ms since epoch) by which the call must complete, 0 if none
+     * @return the successful response, with its body still to be read
+     */
+    private HttpResponse execute(final long deadlineAt) throws APICallException {
+        final RetryPolicy policy = getRetryPolicy();
+        for (int attempt = 1; ; attempt++) {
+            // clears the abort of a previous attempt, then checks whether it was due to cancellation or deadline
+            post.reset();
+            if (cancelled)
+                throw new APICallException("API invocation cancelled");
+            if (deadlineAt > 0 && System.currentTimeMillis() >= deadlineAt)
+                throw new APICallException("Deadline of "+deadline+" ms exceeded");
+            post.setConfig(getRequestConfig(deadlineAt));
+
+            final CircuitBreaker breaker = transport.getCircuitBreaker();
+            final CircuitBreaker.Permit permit = breaker == null ? null : breaker.acquire(getEndpoint());
+            final ConcurrencyLimiter concurrency = transport.getConcurrencyLimiter();
+            try {
+                final RateLimiter limiter = transport.getRateLimiter();
+                if (limiter != null)
+                    awaitLimit(limiter.acquireAsync(token, content, transport.getScheduler()), deadlineAt, null);
+                if (concurrency != null)
+                    awaitLimit(concurrency.acquireAsync(), deadlineAt, concurrency::release);
+            } catch (final APICallException e) {
+                if (permit != null)
+                    permit.cancel();
+                throw e;
+            }
+
+            notifySend(attempt);
+            final long sent = System.nanoTime();
+            final HttpResponse resp;
             try {
-                while ((line = reader.readLine()) != null) {
-                    result.append(line);
+                resp = client.execute(post);
+            } catch (final Exception e) {
+                final long latency = System.nanoTime() - sent;
+                // an abort by cancel() or by the deadline tells nothing about the server
+                final boolean aborted = cancelled || (deadlineAt > 0 && System.currentTimeMillis() >= deadlineAt);
+                if (concurrency != null) {
+                    if (aborted)
+                        concurrency.release();
+                    else
+                        concurrency.release(latency, true);
                 }
+                if (permit != null) {
+                    if (aborted)
+                        permit.cancel();
+                    else
+                        permit.release(true);
+                }
+                notifyFailure(attempt, e, latency);
+                final long delay = getRetryDelay(policy, attempt, policy.isRetryable(e, isIdempotent()), null, deadlineAt);
+                if (delay < 0)
+                    throw failure(e, deadlineAt);
+                pause(delay);
+                continue;
+            }
+
+            respCode = resp.getStatusLine().getStatusCode();
+            final long latency = System.nanoTime() - sent;
+            if (concurrency != null)
+                concurrency.release(latency, isOverload(respCode));
+            if (permit != null)
+                permit.release(respCode >= 500);
+            notifyResponse(attempt, respCode, latency);
+            if (debugMode)
+                System.out.println("respCode: " + respCode);
+
+            if (respCode == 200)
+                return resp;
+
+            try {
+                result = resp.getEntity() == null ? "" : EntityUtils.toString(resp.getEntity(), StandardCharsets.UTF_8);
             } catch (final Exception e) {
-                throw new APICallException("Failure in API invocation execution - "+e.getMessage(), e.getCause());
+                result = "";
+            } finally {
+                closeQuietly(resp);
+            }
+            final long delay = getRetryDelay(policy, attempt, policy.isRetryable(respCode, isIdempotent()),
+                    resp.getFirstHeader("Retry-After"), deadlineAt);
+            if (delay < 0)
+                throw new APICallException("Call failed with HTTP code "+respCode+": "+resp.getStatusLine().getReasonPhrase()+
+                        " - result: "+result);
+            pause(delay);
+        }
+    }
+
+    /**
+     * Returns the endpoint of the request, identifying it to the circuit breaker
+     * @return the URL of the REDCap API endpoint
+     */
+    public String getEndpoint() {
+        return post.getURI().toString();
+    }
+
+    /**
+     * Returns the content of the request
+     * @return the value of the "content" param (e.g. "record", "file"), null if not set
+     */
+    public String getContent() {
+        return content;
+    }
+
+    /**
+     * Notifies the interceptors of the transport that an attempt is sent
+     */
+    private void notifySend(final int attempt) {
+        for (final RequestInterceptor interceptor : transport.getInterceptors()) {
+            try {
+                interceptor.onSend(this, attempt);
+            } catch (final RuntimeException ignored) {
+                // interceptors never affect the call
+            }
+        }
+    }
+
+    /**
+     * Notifies the interceptors of the transport that the response of an attempt is received
+     */
+    private void notifyResponse(final int attempt, final int code, final long latencyNanos) {
+        for (final RequestInterceptor interceptor : transport.getInterceptors()) {
+            try {
+                interceptor.onResponse(this, attempt, code, latencyNanos);
+            } catch (final RuntimeException ignored) {
+                // interceptors never affect the call
+            }
+        }
+    }
+
+    /**
+     * Notifies the interceptors of the transport that an attempt failed without a response
+     */
+    private void notifyFailure(final int attempt, final Exception failure, final long latencyNanos) {
+        for (final RequestInterceptor interceptor : transport.getInterceptors()) {
+            try {
+                interceptor.onFailure(this, attempt, failure, latencyNanos);
+            } catch (final RuntimeException ignored) {
+                // interceptors never affect the call
             }
         }
-        if (debugMode) {
-            System.out.println("respCode: " + respCode);
-            System.out.println("result: " + result.toString());
+    }
+
+    /**
+     * Computes the delay before the attempt following a failed one
+     * @return the delay (ms), -1 if no other attempt can be performed
+     */
+    private long getRetryDelay(final RetryPolicy policy, final int attempt, final boolean retryable,
+                               final Header retryAfter, final long deadlineAt) {
+        if (!retryable || attempt >= policy.getMaxAttempts() ||
+                (post.getEntity() != null && !post.getEntity().isRepeatable()))
+            return -1;
+        final long delay = policy.getDelay(attempt, retryAfter);
+        if (deadlineAt > 0 && System.currentTimeMillis() + delay >= deadlineAt)
+            return -1;
+        return delay;
+    }
+
+    /**
+     * Returns the timeouts of an attempt: those of the request, or of the transport, shortened to the time left
+     * before the deadline
+     */
+    private RequestConfig getRequestConfig(final long deadlineAt) {
+        final RequestConfig base = transport.getRequestConfig();
+        final int connect = connectTimeout >= 0 ? connectTimeout : base.getConnectTimeout();
+        final int socket = socketTimeout >= 0 ? socketTimeout : base.getSocketTimeout();
+        if (deadlineAt == 0 && connect == base.getConnectTimeout() && socket == base.getSocketTimeout())
+            return base;
+
+        final int left = deadlineAt == 0 ? 0 :
+                (int) Math.max(1, Math.min(Integer.MAX_VALUE, deadlineAt - System.currentTimeMillis()));
+        return RequestConfig.copy(base)
+                .setConnectTimeout(bound(connect, left))
+                .setConnectionRequestTimeout(bound(base.getConnectionRequestTimeout(), left))
+                .setSocketTimeout(bound(socket, left))
+                .build();
+    }
+
+    /**
+     * Bounds a timeout (0 or negative meaning none) to the time left, if any
+     */
+    private static int bound(final int timeout, final int left) {
+        if (left == 0)
+            return timeout;
+        return timeout <= 0 ? left : Math.min(timeout, left);
+    }
+
+    /**
+     * Returns the time by which a call started now must complete
+     * @return the time (ms since epoch), 0 if no deadline is set
+     */
+    private long getDeadlineAt() {
+        return deadline == 0 ? 0 : System.currentTimeMillis() + deadline;
+    }
+
+    /**
+     * Schedules the abort of the request at its deadline, on the transport scheduler
+     * @return the scheduled abort, null if no deadline is set
+     */
+    private ScheduledFuture<?> scheduleAbort(final long deadlineAt) {
+        if (deadlineAt == 0)
+            return null;
+        return transport.getScheduler().schedule(post::abort, deadlineAt - System.currentTimeMillis(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits for a rate or concurrency limiter, unless the request is cancelled or its deadline expires meanwhile: the
+     * wait is then given up, and a slot taken anyway is given back
+     * @param limit    the future completed once the call is allowed by the limiter
+     * @param giveBack releases what the completed future holds, null if nothing
+     */
+    private void awaitLimit(final CompletableFuture<Void> limit, final long deadlineAt, final Runnable giveBack)
+            throws APICallException {
+        pending.add(limit);
+        try {
+            if (cancelled)
+                limit.cancel(false);
+            if (deadlineAt == 0)
+                limit.get();
+            else
+                limit.get(Math.max(0, deadlineAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (final CancellationException e) {
+            throw new APICallException("API invocation cancelled", e);
+        } catch (final TimeoutException e) {
+            giveUp(limit, giveBack);
+            throw new APICallException("Deadline of "+deadline+" ms exceeded", e);
+        } catch (final InterruptedException e) {
+            giveUp(limit, giveBack);
+            Thread.currentThread().interrupt();
+            throw new APICallException("Interrupted while waiting for the API limits", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof APICallException)
+                throw (APICallException) e.getCause();
+            throw new APICallException("Failure in waiting for the API limits - "+e.getCause().getMessage(), e.getCause());
+        } finally {
+            pending.remove(limit);
         }
+    }
 
-        if (respCode != 200)
-            throw new APICallException("Call failed with HTTP code "+respCode+": "+resp.getStatusLine().getReasonPhrase()+
-                    " - result: "+result.toString());
+    /**
+     * Gives up the wait for a limiter, giving back the slot if the wait completed meanwhile
+     */
+    private static void giveUp(final CompletableFuture<Void> limit, final Runnable giveBack) {
+        if (!limit.cancel(false) && !limit.isCompletedExceptionally() && giveBack != null)
+            giveBack.run();
+    }
 
+    /**
+     * Wraps the failure of a call, telling apart cancellation and deadline expiry from other errors
+     */
+    private APICallException failure(final Exception e, final long deadlineAt) {
+        if (cancelled)
+            return new APICallException("API invocation cancelled", e);
+        return callFailure(e, deadlineAt);
+    }
+
+    /**
+     * Wraps the failure of an asynchronous call, telling apart deadline expiry from other errors; the call may be
+     * shared by other requests, a cancellation of this one only completing its own future
+     */
+    private APICallException callFailure(final Exception e, final long deadlineAt) {
+        if (deadlineAt > 0 && System.currentTimeMillis() >= deadlineAt)
+            return new APICallException("Deadline of "+deadline+" ms exceeded", e);
+        return new APICallException("Failure in API invocation execution - "+e.getMessage(), e);
+    }
+
+    /**
+     * Tells whether a response code signals an overloaded server, to the concurrency limiter
+     */
+    private static boolean isOverload(final int respCode) {
+        return respCode >= 500 || respCode == 429;
+    }
+
+    /**
+     * Waits before retrying, unless the request is cancelled meanwhile
+     */
+    private void pause(final long delay) {
+        try {
+            if (cancellation.await(delay, TimeUnit.MILLISECONDS))
+                throw new APICallException("API invocation cancelled");
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new APICallException("Interrupted while waiting to retry API invocation", e);
+        }
+    }
+
+    /**
+     * Releases the connection of a response: it goes back to the pool if the body has been fully read, otherwise it
+     * is closed
+     * @param resp the response to release
+     */
+    private static void closeQuietly(final HttpResponse resp) {
+        if (resp instanceof Closeable) {
+            try {
+                ((Closeable) resp).close();
+            } catch (final IOException ignored) {
+                // connection already gone
+            }
+        } else {
+            EntityUtils.consumeQuietly(resp.getEntity());
+        }
+    }
+
+    /**
+     * Performs the Http request without blocking the calling thread. The response is handled by the non-blocking
+     * client of the transport and delivered as an immutable object, so the same request can be submitted many times
+     * concurrently; the mutable results of {@link #doPost()} ({@link #getRespCode()}, {@link #getResult()}) are not
+     * affected. Prints HTTP response and result on standard output if debug mode is active.
+     * <p>
+     * Failed attempts are retried according to the retry policy, waiting on the transport scheduler without holding
+     * any thread; waits for the rate and concurrency limiters do not hold threads either. Cancelling the returned
+     * future aborts the underlying HTTP exchange and any further attempt; so does the deadline, if set, completing the
+     * future exceptionally. If the request is cacheable and the transport has a {@link ResponseCache} holding the
+     * response of an identical request, the future is already completed with it; if the transport has a
+     * {@link RequestCoalescer}, an identical call already in flight is joined instead of being performed again.
+     * </p>
+     * @return a future completed with the response, or exceptionally with an {@link APICallException} if the call
+     * fails or returns a HTTP code other than 200
+     */
+    public CompletableFuture<APIResponse> doPostAsync() {
+        if (cancelled)
+            return CompletableFuture.failedFuture(new APICallException("API invocation cancelled"));
+
+        final long deadlineAt = getDeadlineAt();
+        final ResponseCache cache = isCacheable() ? transport.getResponseCache() : null;
+        final RequestCoalescer coalescer = transport.getRequestCoalescer();
+        final String key = cache == null && coalescer == null ? null : getSharingKey();
+        if (key == null)
+            return track(callAsync(deadlineAt), deadlineAt);
+
+        final APIResponse cached = cache == null ? null : cache.get(key);
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached);
+        if (coalescer == null)
+            return track(fetchAsync(cache, key, deadlineAt), deadlineAt);
+        // the shared call runs detached, each caller (this one included) giving up only its own future
+        return track(coalescer.join(key, () -> fetchAsync(cache, key, 0)), deadlineAt);
+    }
+
+    /**
+     * Starts an asynchronous call, storing its response in the cache, if any
+     */
+    private CompletableFuture<APIResponse> fetchAsync(final ResponseCache cache, final String key, final long deadlineAt) {
+        final CompletableFuture<APIResponse> future = callAsync(deadlineAt);
+        if (cache != null)
+            future.whenComplete((response, error) -> {
+                if (response != null)
+                    cache.put(key, response);
+            });
+        return future;
+    }
+
+    /**
+     * Starts an asynchronous call; completing the returned future exceptionally, or cancelling it, aborts the
+     * underlying HTTP exchange and any further attempt
+     */
+    private CompletableFuture<APIResponse> callAsync(final long deadlineAt) {
+        final CompletableFuture<APIResponse> future = new CompletableFuture<APIResponse>();
+        final AtomicReference<Future<HttpResponse>> exchange = new AtomicReference<Future<HttpResponse>>();
+        future.whenComplete((response, error) -> {
+            final Future<HttpResponse> current = exchange.get();
+            if (error != null && current != null)
+                current.cancel(true);
+        });
+
+        attemptAsync(future, exchange, getRetryPolicy(), debugMode, 1, deadlineAt);
+        return future;
+    }
+
+    /**
+     * Binds a future to the cancellation and the deadline of this request
+     */
+    private CompletableFuture<APIResponse> track(final CompletableFuture<APIResponse> future, final long deadlineAt) {
+        final ScheduledFuture<?> timer = deadlineAt == 0 ? null : transport.getScheduler().schedule(() ->
+                future.completeExceptionally(new APICallException("Deadline of "+deadline+" ms exceeded")),
+                deadlineAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+
+        pending.add(future);
+        future.whenComplete((response, error) -> {
+            pending.remove(future);
+            if (timer != null)
+                timer.cancel(false);
+        });
+        if (cancelled)
+            future.cancel(false);
+        return future;
+    }
+
+    /**
+     * Performs an attempt of an asynchronous call, once allowed by the circuit breaker and by the rate and concurrency
+     * limiters, scheduling the next one on the transport scheduler if the attempt fails and can be retried
+     */
+    private void attemptAsync(final CompletableFuture<APIResponse> future,
+                              final AtomicReference<Future<HttpResponse>> exchange, final RetryPolicy policy,
+                              final boolean debug, final int attempt, final long deadlineAt) {
+        if (future.isDone())
+            return;
+
+        final CircuitBreaker breaker = transport.getCircuitBreaker();
+        final CircuitBreaker.Permit permit;
+        try {
+            permit = breaker == null ? null : breaker.acquire(getEndpoint());
+        } catch (final CircuitBreakerOpenException e) {
+            future.completeExceptionally(e);
+            return;
+        }
+
+        final RateLimiter limiter = transport.getRateLimiter();
+        final ConcurrencyLimiter concurrency = transport.getConcurrencyLimiter();
+        final CompletableFuture<Void> rate = limiter == null ? CompletableFuture.completedFuture(null) :
+                limiter.acquireAsync(token, content, transport.getScheduler());
+        final AtomicReference<CompletableFuture<Void>> slot = new AtomicReference<CompletableFuture<Void>>();
+        CompletableFuture<Void> allowed = rate;
+        if (concurrency != null) {
+            allowed = rate.thenCompose(allowedByRate -> {
+                final CompletableFuture<Void> acquired = concurrency.acquireAsync();
+                slot.set(acquired);
+                if (future.isDone())
+                    acquired.cancel(false);
+                return acquired;
+            });
+        }
+        // a call cancelled or expired while waiting gives back what it reserved; a slot already taken is released
+        // by sendAsync
+        future.whenComplete((response, error) -> {
+            rate.cancel(false);
+            final CompletableFuture<Void> acquired = slot.get();
+            if (acquired != null)
+                acquired.cancel(false);
+        });
+        allowed.whenComplete((allowedByLimits, error) -> {
+            if (error == null) {
+                sendAsync(future, exchange, policy, permit, concurrency, debug, attempt, deadlineAt);
+                return;
+            }
+            // nothing is held but the permit of the circuit breaker
+            if (permit != null)
+                permit.cancel();
+            final Throwable cause = error instanceof CompletionException && error.getCause() != null ?
+                    error.getCause() : error;
+            future.completeExceptionally(cause instanceof APICallException ? cause :
+                    new APICallException("Failure in waiting for the API limits - "+cause.getMessage(), cause));
+        });
+    }
+
+    /**
+     * Sends an attempt of an asynchronous call, holding a permit of the circuit breaker and a slot of the concurrency
+     * limiter if not null
+     */
+    private void sendAsync(final CompletableFuture<APIResponse> future,
+                           final AtomicReference<Future<HttpResponse>> exchange, final RetryPolicy policy,
+                           final CircuitBreaker.Permit permit, final ConcurrencyLimiter concurrency,
+                           final boolean debug, final int attempt, final long deadlineAt) {
+        if (future.isDone()) {
+            if (permit != null)
+                permit.cancel();
+            if (concurrency != null)
+                concurrency.release();
+            return;
+        }
+
+        final HttpPost request = copyPost(getRequestConfig(deadlineAt));
+        notifySend(attempt);
+        final long sent = System.nanoTime();
+        exchange.set(transport.getAsyncClient().execute(request, new FutureCallback<HttpResponse>() {
+            private boolean released;
+
+            @Override
+            public void completed(final HttpResponse asyncResp) {
+                final int code = asyncResp.getStatusLine().getStatusCode();
+                release(isOverload(code), code >= 500);
+                notifyResponse(attempt, code, System.nanoTime() - sent);
+                final APIResponse response;
+                try {
+                    response = new APIResponse(asyncResp, asyncResp.getEntity() == null ? "" :
+                            EntityUtils.toString(asyncResp.getEntity(), StandardCharsets.UTF_8));
+                } catch (final Exception e) {
+                    retryOrFail(e);
+                    return;
+                }
+                if (debug) {
+                    System.out.println("respCode: " + response.getRespCode());
+                    System.out.println("result: " + response.getResult());
+                }
+                if (response.getRespCode() == 200) {
+                    future.complete(response);
+                    return;
+                }
+                final long delay = getRetryDelay(policy, attempt, policy.isRetryable(response.getRespCode(), isIdempotent()),
+                        asyncResp.getFirstHeader("Retry-After"), deadlineAt);
+                if (delay >= 0)
+                    retry(delay);
+                else
+                    future.completeExceptionally(new APICallException("Call failed with HTTP code "+response.getRespCode()+": "+
+                            response.getReasonPhrase()+" - result: "+response.getResult()));
+            }
+
+            @Override
+            public void failed(final Exception e) {
+                release(true, true);
+                notifyFailure(attempt, e, System.nanoTime() - sent);
+                retryOrFail(e);
+            }
+
+            @Override
+            public void cancelled() {
+                if (!released) {
+                    released = true;
+                    if (permit != null)
+                        permit.cancel();
+                    if (concurrency != null)
+                        concurrency.release();
+                }
+                future.cancel(false);
+            }
+
+            private void retryOrFail(final Exception e) {
+                final long delay = getRetryDelay(policy, attempt, policy.isRetryable(e, isIdempotent()), null, deadlineAt);
+                if (delay >= 0)
+                    retry(delay);
+                else
+                    future.completeExceptionally(callFailure(e, deadlineAt));
+            }
+
+            private void release(final boolean overloaded, final boolean failed) {
+                if (!released) {
+                    released = true;
+                    if (permit != null)
+                        permit.release(failed);
+                    if (concurrency != null)
+                        concurrency.release(System.nanoTime() - sent, overloaded);
+                }
+            }
+
+            private void retry(final long delay) {
+                try {
+                    transport.getScheduler().schedule(() -> attemptAsync(future, exchange, policy, debug, attempt + 1, deadlineAt),
+                            delay, TimeUnit.MILLISECONDS);
+                } catch (final RejectedExecutionException e) {
+                    future.completeExceptionally(new APICallException("Transport closed while retrying API invocation", e));
+                }
+            }
+        }));
+    }
+
+    /**
+     * Copies the Http request for a single asynchronous exchange, so that concurrent calls of this request do not
+     * share the timeouts nor the abort state; the body is shared, being read anew by every exchange
+     */
+    private HttpPost copyPost(final RequestConfig config) {
+        final HttpPost copy = new HttpPost(post.getURI());
+        copy.setHeaders(post.getAllHeaders());
+        copy.setEntity(post.getEntity());
+        copy.setConfig(config);
+        return copy;
+    }
+
+    /**
+     * Sets the timeouts of this request, in place of those of its transport. A timeout of 0 waits forever.
+     * @param connectTimeout time (ms) allowed to establish a connection
+     * @param socketTimeout  time (ms) allowed between two packets of the response
+     */
+    public void setTimeouts(final int connectTimeout, final int socketTimeout) {
+        if (connectTimeout < 0 || socketTimeout < 0)
+            throw new IllegalArgumentException("Timeouts cannot be negative");
+        this.connectTimeout = connectTimeout;
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * Sets the total time allowed to each call of this request, covering retries and waits for the limiters: once
+     * expired, the call is aborted and fails with an {@link APICallException}
+     * @param deadline the total time (ms), 0 for no deadline
+     */
+    public void setDeadline(final long deadline) {
+        if (deadline < 0)
+            throw new IllegalArgumentException("Deadline cannot be negative");
+        this.deadline = deadline;
+    }
+
+    /**
+     * Cancels this request: blocking calls in progress are aborted and fail with an {@link APICallException}, as any
+     * later call; the futures of asynchronous calls in progress are cancelled
+     */
+    public void cancel() {
+        cancelled = true;
+        cancellation.countDown();
+        post.abort();
+        for (final Future<?> future : pending)
+            future.cancel(false);
+    }
+
+    /**
+     * Checks whether this request has been cancelled
+     * @return true if cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Sets the retry policy of this request, in place of the one of its transport
+     * @param retryPolicy the retry policy, {@link RetryPolicy#NONE} to disable retries
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        if (retryPolicy == null)
+            throw new IllegalArgumentException("Must provide a valid retry policy");
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Returns the retry policy of this request
+     * @return the policy set on the request, or the one of its transport
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy != null ? retryPolicy : transport.getRetryPolicy();
+    }
+
+    /**
+     * Tells whether the request can be performed more than once with the same outcome, so that it can be retried
+     * after failures that may have happened after the server processed it (see {@link RetryPolicy}). Requests are
+     * assumed idempotent only if read-only, unless overridden.
+     * @return true if the request is idempotent
+     */
+    protected boolean isIdempotent() {
+        return isReadOnly();
+    }
+
+    /**
+     * Tells whether the request only reads the project, without changing it (e.g. the exports, see
+     * {@link ExportRequest}), so that the response of a call can be shared with identical requests (see
+     * {@link RequestCoalescer}). Requests are assumed to change the project unless overridden.
+     * @return true if the request is read-only
+     */
+    protected boolean isReadOnly() {
+        return false;
+    }
+
+    /**
+     * Tells whether the response of the request can be kept by the {@link ResponseCache} and served to identical
+     * requests later on, without reaching the server. Only text responses of read-only requests that change rarely
+     * (e.g. the REDCap version, the project settings, the user roles) should be; requests are not cached unless
+     * overridden.
+     * @return true if the response can be cached
+     */
+    protected boolean isCacheable() {
+        return false;
+    }
+
+    /**
+     * Tells whether the response of a call can be handed to identical requests, by the coalescer or by the cache. It
+     * is the case of read-only requests, unless their body is not text (see {@link FileDownload}).
+     * @return true if the response can be shared
+     */
+    boolean isShareable() {
+        return isReadOnly();
     }
 
     /**
@@ -97,12 +965,11 @@ public abstract class APIRequest {
     }
 
     /**
-     * Returns the result of HTTP request
-     * @return the result as string, null if any (or not yet executed)
+     * Returns the result of HTTP request performed by {@link #doPost()}
+     * @return the result as string, empty if not yet executed
      */
     public String getResult() {
-
-        return result.toString();
+        return result;
     }
 
     /**
@@ -125,4 +992,41 @@ public abstract class APIRequest {
     public void unsetDebugMode() {
         this.debugMode = false;
     }
+
+    /**
+     * Body of a streamed response, releasing the connection when closed
+     */
+    private static class ResponseInputStream extends FilterInputStream {
+        private final HttpResponse resp;
+        private boolean eof;
+
+        ResponseInputStream(final HttpResponse resp) throws IOException {
+            super(resp.getEntity() == null ? InputStream.nullInputStream() : resp.getEntity().getContent());
+            this.resp = resp;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b == -1)
+                eof = true;
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n == -1)
+                eof = true;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // a response closed before its end would otherwise be read up to the end to reuse the connection
+            if (!eof)
+                closeQuietly(resp);
+            super.close();
+        }
+    }
 }
@@ -0,0 +1,85 @@
+package it.ioveneto.redcap.api;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+/**
+ * Immutable outcome of an API invocation: HTTP status, response headers and body. Instances can be safely shared
+ * among threads.
+ */
+public final class APIResponse {
+    private final int respCode;
+    private final String reasonPhrase;
+    private final Header[] headers;
+    private final String result;
+
+    /**
+     * Complete constructor
+     *
+     * @param respCode     HTTP response code
+     * @param reasonPhrase HTTP reason phrase
+     * @param headers      HTTP response headers
+     * @param result       response body
+     */
+    public APIResponse(final int respCode, final String reasonPhrase, final Header[] headers, final String result) {
+        this.respCode = respCode;
+        this.reasonPhrase = reasonPhrase;
+        this.headers = headers == null ? new Header[0] : headers.clone();
+        this.result = result;
+    }
+
+    /**
+     * Builds the response from the status and headers of a HTTP response and an already read body
+     *
+     * @param resp   the HTTP response
+     * @param result the response body
+     */
+    APIResponse(final HttpResponse resp, final String result) {
+        this(resp.getStatusLine().getStatusCode(), resp.getStatusLine().getReasonPhrase(), resp.getAllHeaders(), result);
+    }
+
+    /**
+     * Returns the HTTP response code
+     * @return the response code as int
+     */
+    public int getRespCode() {
+        return respCode;
+    }
+
+    /**
+     * Returns the HTTP reason phrase
+     * @return the reason phrase, null if not sent by the server
+     */
+    public String getReasonPhrase() {
+        return reasonPhrase;
+    }
+
+    /**
+     * Returns the value of the first response header with the given name (case insensitive)
+     * @param name the header name
+     * @return the header value, null if not present
+     */
+    public String getHeader(final String name) {
+        for (final Header header : headers) {
+            if (header.getName().equalsIgnoreCase(name))
+                return header.getValue();
+        }
+        return null;
+    }
+
+    /**
+     * Returns all the response headers
+     * @return a copy of the response headers
+     */
+    public Header[] getHeaders() {
+        return headers.clone();
+    }
+
+    /**
+     * Returns the body of the response
+     * @return the result as string
+     */
+    public String getResult() {
+        return result;
+    }
+}
@@ -0,0 +1,265 @@
+package it.ioveneto.redcap.api;
+
+import org.apache.commons.lang.StringUtils;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Exports the records of a large project as many small {@link ExportRecords} calls instead of a single huge one.
+ * The record IDs of the project are enumerated first (exporting just the record ID field), then they are split into
+ * batches passed through the "records" parameter of the export. Batches are run concurrently with bounded
+ * parallelism, each one retried independently, and their results are delivered in the order of the record IDs.
+ */
+public class BatchedExportRecords {
+    private final String api_token;
+    private final String url;
+    private final String recordIdField;
+    private final String format;
+    private final Function<String, ExportRecords> batchRequest;
+    private final int batchSize;
+    private final int parallelism;
+    private final int maxAttempts;
+
+    /**
+     * Basic constructor exporting all the fields of the records in flat layout, with raw values
+     *
+     * @param api_token     the token that defines the REDCap project of interest. It must have 'Full Data Set' export
+     *                      rights in the project, see {@link ExportRecords}.
+     * @param url           API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @param recordIdField the name of the record ID field of the project (the first field of the data dictionary)
+     * @param format        "csv", "json", "xml"
+     * @param batchSize     the number of records exported by each call
+     * @param parallelism   the maximum number of calls in flight at the same time
+     */
+    public BatchedExportRecords(final String api_token, final String url, final String recordIdField, final String format,
+                                final int batchSize, final int parallelism) {
+        this(api_token, url, recordIdField, format, records -> new ExportRecords(api_token, format, "flat", null,
+                records, null, null, "raw", "raw", false, format, false, false, null, null, ",", ".", false, url,
+                false), batchSize, parallelism, 3);
+    }
+
+    /**
+     * Complete constructor with all possible parameters
+     *
+     * @param api_token     the token that defines the REDCap project of interest, used to enumerate the record IDs
+     * @param url           API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @param recordIdField the name of the record ID field of the project (the first field of the data dictionary)
+     * @param format        "csv", "json", "xml" - the format of the batches, used to merge them by {@link #export()}.
+     *                      It must match the format requested by batchRequest.
+     * @param batchRequest  builds the export of a single batch from its comma-separated list of record IDs, to be
+     *                      passed as recordNames parameter of {@link ExportRecords}. Any other parameter (fields,
+     *                      events, labels, ...) can be chosen freely, as long as the format is the given one.
+     * @param batchSize     the number of records exported by each call
+     * @param parallelism   the maximum number of calls in flight at the same time
+     * @param maxAttempts   the number of times a failed batch is attempted before giving up the whole export, in
+     *                      place of the one of the retry policy (see {@link RetryPolicy})
+     */
+    public BatchedExportRecords(final String api_token, final String url, final String recordIdField, final String format,
+                                final Function<String, ExportRecords> batchRequest, final int batchSize,
+                                final int parallelism, final int maxAttempts) {
+
+        if (api_token == null)
+            throw new IllegalArgumentException("Must provide a valid API token");
+        if (url == null)
+            throw new IllegalArgumentException("must provide valid URL of REDCap API endpoint");
+        if (recordIdField == null || recordIdField.isEmpty())
+            throw new IllegalArgumentException("Must provide the record ID field name");
+        if (format == null || StringUtils.indexOfAny(format, new String[]{"csv", "json", "xml"}) == -1)
+            throw new IllegalArgumentException("Allowed batch formats: \"csv\", \"json\", \"xml\"");
+        if (batchRequest == null)
+            throw new IllegalArgumentException("Must provide the batch request builder");
+        if (batchSize <= 0 || parallelism <= 0 || maxAttempts <= 0)
+            throw new IllegalArgumentException("Batch size, parallelism and attempts must be positive");
+
+        this.api_token = api_token;
+        this.url = url;
+        this.recordIdField = recordIdField;
+        this.format = format;
+        this.batchRequest = batchRequest;
+        this.batchSize = batchSize;
+        this.parallelism = parallelism;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Enumerates the record IDs of the project, exporting only the record ID field
+     * @return the distinct record IDs, in export order
+     */
+    public List<String> getRecordIDs() throws APICallException {
+        final ExportRecords ids = new ExportRecords(api_token, "csv", "flat", null, null, recordIdField, null, "raw",
+                "raw", false, "csv", false, false, null, null, ",", ".", false, url, false);
+
+        final Set<String> recordIDs = ids.doPost(response -> {
+            final Set<String> found = new LinkedHashSet<String>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent(),
+                    StandardCharsets.UTF_8))) {
+                String line = reader.readLine(); // header
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty())
+                        found.add(firstCsvValue(line));
+                }
+            }
+            return found;
+        });
+        return new ArrayList<String>(recordIDs);
+    }
+
+    /**
+     * Exports all the records, handing each batch result to the consumer in record ID order. At most parallelism
+     * batch results are held in memory at the same time.
+     *
+     * @param consumer receives the result of each batch, invoked by the calling thread
+     */
+    public void export(final Consumer<String> consumer) throws APICallException {
+        final List<String> recordIDs = getRecordIDs();
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            final Thread thread = new Thread(r, "redcap-batched-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            final Deque<Future<String>> inFlight = new ArrayDeque<Future<String>>();
+            int batch = 0;
+            for (int from = 0; from < recordIDs.size(); from += batchSize) {
+                final String records = String.join(",", recordIDs.subList(from, Math.min(from + batchSize, recordIDs.size())));
+                final int index = batch++;
+                inFlight.add(executor.submit(() -> exportBatch(index, records)));
+                if (inFlight.size() >= parallelism)
+                    consumer.accept(await(inFlight.poll()));
+            }
+            while (!inFlight.isEmpty())
+                consumer.accept(await(inFlight.poll()));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Exports all the records and merges the batches in a single result of the requested format
+     * @return all the records, as a single csv/json/xml document
+     */
+    public String export() throws APICallException {
+        final StringBuilder merged = new StringBuilder();
+        final boolean[] first = {true};
+
+        export(batch -> {
+            final String content = batchContent(batch, first[0]);
+            if (content.isEmpty())
+                return;
+            if (!first[0] && format.equals("json"))
+                merged.append(',');
+            merged.append(content);
+            first[0] = false;
+        });
+
+        switch (format) {
+            case "json":
+                return "[" + merged + "]";
+            case "xml":
+                return "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<records>\n" + merged + "</records>\n";
+            default:
+                return merged.toString();
+        }
+    }
+
+    /**
+     * Performs the export of a single batch, retried on failure by the retry policy of its request
+     */
+    private String exportBatch(final int index, final String records) {
+        final ExportRecords request = batchRequest.apply(records);
+        // attempts are counted by the policy, with its backoff, not multiplied by a loop around it
+        request.setRetryPolicy(request.getRetryPolicy().withMaxAttempts(maxAttempts));
+        try {
+            request.doPost();
+            return request.getResult();
+        } catch (final APICallException e) {
+            throw new APICallException("Batch "+index+" failed - "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Strips from a batch result what would be repeated in the merged one: the header of csv (but the first batch),
+     * the brackets of json arrays, the document element of xml
+     */
+    String batchContent(final String batch, final boolean first) {
+        switch (format) {
+            case "json": {
+                final String trimmed = batch.trim();
+                if (trimmed.length() < 2)
+                    return "";
+                return trimmed.substring(1, trimmed.length() - 1).trim();
+            }
+            case "xml": {
+                final int begin = batch.indexOf("<records>");
+                final int end = batch.lastIndexOf("</records>");
+                if (begin == -1 || end == -1)
+                    return "";
+                return batch.substring(begin + "<records>".length(), end).trim() + "\n";
+            }
+            default: {
+                String content = batch;
+                if (!first) {
+                    final int header = content.indexOf('\n');
+                    content = header == -1 ? "" : content.substring(header + 1);
+                }
+                if (!content.isEmpty() && !content.endsWith("\n"))
+                    content += "\n";
+                return content;
+            }
+        }
+    }
+
+    /**
+     * Waits for a batch, unwrapping its failure
+     */
+    private static String await(final Future<String> batch) {
+        try {
+            return batch.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new APICallException("Batched export interrupted", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof APICallException)
+                throw (APICallException) e.getCause();
+            throw new APICallException("Batched export failed - "+e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Returns the first value of a csv line, unquoting it if needed
+     */
+    static String firstCsvValue(final String line) {
+        if (line.startsWith("\"")) {
+            final StringBuilder value = new StringBuilder();
+            for (int i = 1; i < line.length(); i++) {
+                final char c = line.charAt(i);
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        value.append('"');
+                        i++;
+                    } else
+                        break;
+                } else
+                    value.append(c);
+            }
+            return value.toString();
+        }
+        final int comma = line.indexOf(',');
+        return comma == -1 ? line : line.substring(0, comma);
+    }
+}
@@ -0,0 +1,287 @@
+package it.ioveneto.redcap.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads the files of a file upload field for all the records of a project. The records (and events, and repeat
+ * instances) holding a file are enumerated with a single streamed {@link ExportRecords} call, read to its end before
+ * any download starts; then the files are downloaded with bounded concurrency by {@link ExportFile} into the layout
+ * directory/record/event/field/file name, with the file name sent by the server
+ * (directory/record/event/field/instance/file name for repeating instruments and events, without the event level for
+ * classic projects).
+ * <p>
+ * Each file is written to a temporary file, hashed while downloaded and then moved in place together with a
+ * ".sha256" side file holding its checksum and size; files whose folder already holds a file with matching size (and
+ * checksum, if requested) are skipped, so an interrupted run can be resumed cheaply.
+ * </p>
+ */
+public class BulkExportFiles {
+    private static final String CHECKSUM_SUFFIX = ".sha256";
+
+    private final String api_token;
+    private final String url;
+    private final String recordIdField;
+    private final String field;
+    private final Path directory;
+    private final int parallelism;
+    private final boolean verifyChecksums;
+
+    /**
+     * Complete constructor with all possible parameters
+     *
+     * @param api_token       the token that defines the REDCap project of interest, with export rights on the field
+     * @param url             API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @param recordIdField   the name of the record ID field of the project (the first field of the data dictionary)
+     * @param field           the name of the file upload field
+     * @param directory       the root directory of the downloaded files
+     * @param parallelism     the maximum number of downloads in flight at the same time
+     * @param verifyChecksums if true files already present are skipped only if their checksum matches the stored one,
+     *                        otherwise checking their size is enough
+     */
+    public BulkExportFiles(final String api_token, final String url, final String recordIdField, final String field,
+                           final Path directory, final int parallelism, final boolean verifyChecksums) {
+
+        if (api_token == null)
+            throw new IllegalArgumentException("Must provide a valid API token");
+        if (url == null)
+            throw new IllegalArgumentException("must provide valid URL of REDCap API endpoint");
+        if (recordIdField == null || field == null)
+            throw new IllegalArgumentException("Must provide the record ID field and the file field names");
+        if (directory == null)
+            throw new IllegalArgumentException("Must provide the target directory");
+        if (parallelism <= 0)
+            throw new IllegalArgumentException("Parallelism must be positive");
+
+        this.api_token = api_token;
+        this.url = url;
+        this.recordIdField = recordIdField;
+        this.field = field;
+        this.directory = directory;
+        this.parallelism = parallelism;
+        this.verifyChecksums = verifyChecksums;
+    }
+
+    /**
+     * Downloads all the files of the field. Failed downloads do not stop the export: they are reported by
+     * {@link BulkTransferResult#getErrors()}.
+     * @return transferred, skipped and failed files, with the throughput achieved
+     */
+    public BulkTransferResult export() throws APICallException {
+        final long start = System.currentTimeMillis();
+        final AtomicInteger transferred = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final Map<String, String> errors = new ConcurrentHashMap<String, String>();
+
+        final ExportRecords files = new ExportRecords(api_token, "json", "flat", null, null, recordIdField + "," + field,
+                null, "raw", "raw", false, "json", false, false, null, null, ",", ".", false, url, false);
+
+        // the enumeration is read to its end and its connection released before the downloads start
+        final List<String[]> found = new ArrayList<String[]>();
+        try (JsonRecordReader rows = new JsonRecordReader(files.doPostStream())) {
+            while (rows.hasNext()) {
+                final Map<String, String> row = rows.next();
+                // the value of a file field is a placeholder, the name of the file comes with its download
+                final String value = row.get(field);
+                if (value != null && !value.isEmpty())
+                    found.add(new String[]{row.get(recordIdField), emptyToNull(row.get("redcap_event_name")),
+                            emptyToNull(row.get("redcap_repeat_instance"))});
+            }
+        } catch (final IOException e) {
+            throw new APICallException("Failure in enumerating files - "+e.getMessage(), e);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            final Thread thread = new Thread(r, "redcap-bulk-file-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (final String[] file : found) {
+                final String record = file[0];
+                final String event = file[1];
+                final String instance = file[2];
+                final String key = record + "/" + (event == null ? "" : event + "/") + field +
+                        (instance == null ? "" : "/" + instance);
+
+                executor.submit(() -> {
+                    try {
+                        final long size = download(record, event, instance);
+                        if (size < 0) {
+                            skipped.incrementAndGet();
+                        } else {
+                            transferred.incrementAndGet();
+                            bytes.addAndGet(size);
+                        }
+                    } catch (final IOException | RuntimeException e) {
+                        errors.put(key, e.getMessage() != null ? e.getMessage() : e.toString());
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new APICallException("Bulk file export interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return new BulkTransferResult(transferred.get(), skipped.get(), bytes.get(),
+                System.currentTimeMillis() - start, errors);
+    }
+
+    /**
+     * Downloads a single file, unless already present
+     * @return the size of the file downloaded, -1 if skipped
+     */
+    private long download(final String record, final String event, final String instance) throws IOException {
+        Path folder = directory.resolve(safeName(record));
+        if (event != null)
+            folder = folder.resolve(safeName(event));
+        folder = folder.resolve(safeName(field));
+        if (instance != null)
+            folder = folder.resolve(safeName(instance));
+
+        if (isPresent(folder))
+            return -1;
+
+        Files.createDirectories(folder);
+        final Path temp = Files.createTempFile(folder, ".download", ".part");
+        try {
+            final MessageDigest digest = sha256();
+            final ExportFile export = new ExportFile(api_token, "json", url, event, field, record, instance);
+            final long size;
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                size = export.doPost(new DigestChannel(file, digest));
+            }
+            final String fileName = safeName(export.getFileName() != null ? export.getFileName() : "file");
+            Files.write(folder.resolve(fileName + CHECKSUM_SUFFIX),
+                    (hex(digest.digest()) + " " + size + "\n").getBytes(StandardCharsets.US_ASCII));
+            Files.move(temp, folder.resolve(fileName), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            return size;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Checks whether the folder of a file already holds a download completed by a previous run, the name of the file
+     * being known only once downloaded
+     */
+    private boolean isPresent(final Path folder) throws IOException {
+        if (!Files.isDirectory(folder))
+            return false;
+        try (DirectoryStream<Path> checksums = Files.newDirectoryStream(folder, "*" + CHECKSUM_SUFFIX)) {
+            for (final Path checksum : checksums) {
+                final String name = checksum.getFileName().toString();
+                if (isPresent(folder.resolve(name.substring(0, name.length() - CHECKSUM_SUFFIX.length())), checksum))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether a file has already been downloaded, comparing it with its checksum side file
+     */
+    private boolean isPresent(final Path target, final Path checksum) throws IOException {
+        if (!Files.exists(target) || !Files.exists(checksum))
+            return false;
+        final String[] stored = new String(Files.readAllBytes(checksum), StandardCharsets.US_ASCII).trim().split(" ");
+        if (stored.length != 2 || !stored[1].equals(String.valueOf(Files.size(target))))
+            return false;
+        if (!verifyChecksums)
+            return true;
+
+        final MessageDigest digest = sha256();
+        try (InputStream in = Files.newInputStream(target)) {
+            final byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        }
+        return stored[0].equals(hex(digest.digest()));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String hex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+
+    private static String emptyToNull(final String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * Turns a record ID, event or file name into a safe path element
+     */
+    private static String safeName(final String name) {
+        final String safe = name.replaceAll("[^A-Za-z0-9._ -]", "_");
+        return safe.isEmpty() || safe.equals(".") || safe.equals("..") ? "_" + safe : safe;
+    }
+
+    /**
+     * Channel writing to a file while updating a digest
+     */
+    private static class DigestChannel implements WritableByteChannel {
+        private final FileChannel file;
+        private final MessageDigest digest;
+
+        DigestChannel(final FileChannel file, final MessageDigest digest) {
+            this.file = file;
+            this.digest = digest;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            final ByteBuffer hashed = src.duplicate();
+            final int written = file.write(src);
+            hashed.limit(hashed.position() + written);
+            digest.update(hashed);
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return file.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package it.ioveneto.redcap.api;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads many files into file upload fields, as described by a manifest of {@link Upload} entries (record, event,
+ * field, instance, file). Entries are consumed incrementally and uploaded by {@link ImportFile} with bounded
+ * concurrency, every file being streamed from disk into the multipart body. A failed upload is attempted again as
+ * decided by the {@link RetryPolicy} of the request (e.g. after a 429 or 503, not after other client errors), and does
+ * not stop the others.
+ */
+public class BulkImportFiles {
+    private final String api_token;
+    private final String url;
+    private final int parallelism;
+    private final int maxAttempts;
+
+    /**
+     * Complete constructor with all possible parameters
+     *
+     * @param api_token   the token that defines the REDCap project of interest, with import rights on the fields
+     * @param url         API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @param parallelism the maximum number of uploads in flight at the same time
+     * @param maxAttempts the number of times a failed upload is attempted before reporting it as failed, in place of
+     *                    the one of the retry policy (see {@link RetryPolicy})
+     */
+    public BulkImportFiles(final String api_token, final String url, final int parallelism, final int maxAttempts) {
+        if (api_token == null)
+            throw new IllegalArgumentException("Must provide a valid API token");
+        if (url == null)
+            throw new IllegalArgumentException("must provide valid URL of REDCap API endpoint");
+        if (parallelism <= 0 || maxAttempts <= 0)
+            throw new IllegalArgumentException("Parallelism and attempts must be positive");
+
+        this.api_token = api_token;
+        this.url = url;
+        this.parallelism = parallelism;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Uploads the files of a manifest
+     *
+     * @param uploads the manifest
+     * @return uploaded and failed files, with the throughput achieved
+     */
+    public BulkTransferResult importFiles(final Iterable<Upload> uploads) throws APICallException {
+        return importFiles(uploads.iterator());
+    }
+
+    /**
+     * Uploads the files of a manifest read from an iterator. Failed uploads are reported by
+     * {@link BulkTransferResult#getErrors()}, by record/event/field/instance.
+     *
+     * @param uploads the manifest
+     * @return uploaded and failed files, with the throughput achieved
+     */
+    public BulkTransferResult importFiles(final Iterator<Upload> uploads) throws APICallException {
+        final long start = System.currentTimeMillis();
+        final AtomicInteger transferred = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final Map<String, String> errors = new ConcurrentHashMap<String, String>();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            final Thread thread = new Thread(r, "redcap-bulk-file-import");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Semaphore slots = new Semaphore(parallelism * 2);
+
+        try {
+            while (uploads.hasNext()) {
+                final Upload upload = uploads.next();
+                slots.acquire();
+                executor.submit(() -> {
+                    try {
+                        final long size = Files.size(upload.file);
+                        upload(upload);
+                        transferred.incrementAndGet();
+                        bytes.addAndGet(size);
+                    } catch (final IOException | RuntimeException e) {
+                        errors.put(upload.toString(), e.getMessage() != null ? e.getMessage() : e.toString());
+                    } finally {
+                        slots.release();
+                    }
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new APICallException("Bulk file import interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return new BulkTransferResult(transferred.get(), 0, bytes.get(), System.currentTimeMillis() - start, errors);
+    }
+
+    /**
+     * Uploads a single file, retried on failure by the retry policy of its request
+     */
+    private void upload(final Upload upload) {
+        final ImportFile request = new ImportFile(api_token, url, upload.file, upload.record, upload.event,
+                upload.field, upload.repeatInstance);
+        // attempts are counted by the policy, which knows which codes are worth retrying, with its backoff and the
+        // Retry-After of the server
+        request.setRetryPolicy(request.getRetryPolicy().withMaxAttempts(maxAttempts));
+        request.doPost();
+    }
+
+    /**
+     * Entry of an upload manifest: a file and the field receiving it
+     */
+    public static final class Upload {
+        private final String record;
+        private final String event;
+        private final String field;
+        private final String repeatInstance;
+        private final Path file;
+
+        /**
+         * Constructor of an entry
+         *
+         * @param record         the record ID
+         * @param event          the unique event name - only for longitudinal projects, null otherwise
+         * @param field          the name of the file upload field
+         * @param repeatInstance the repeat instance number, null if not repeating
+         * @param file           the file to upload
+         */
+        public Upload(final String record, final String event, final String field, final String repeatInstance,
+                      final Path file) {
+            if (record == null || field == null || file == null)
+                throw new IllegalArgumentException("Must provide record ID, field name and file of each upload");
+            this.record = record;
+            this.event = event;
+            this.field = field;
+            this.repeatInstance = repeatInstance;
+            this.file = file;
+        }
+
+        @Override
+        public String toString() {
+            return record + "/" + (event == null ? "" : event + "/") + field +
+                    (repeatInstance == null ? "" : "/" + repeatInstance);
+        }
+    }
+}
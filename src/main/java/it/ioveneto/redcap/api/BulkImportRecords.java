@@ -0,0 +1,248 @@
+package it.ioveneto.redcap.api;
+
+import org.apache.commons.lang.ArrayUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Imports a large number of records as many {@link ImportRecords} calls of bounded size, instead of a single one
+ * exceeding the server post_max_size and holding locks for minutes. Records are consumed incrementally from an
+ * iterator, encoded in json and split into batches by number of records and by size of the url-encoded data; the
+ * batches are submitted concurrently with bounded parallelism, so that at most parallelism batches are held in
+ * memory at the same time. The counts or IDs returned by the batches are aggregated in a {@link BulkImportResult}.
+ */
+public class BulkImportRecords {
+    /** Overhead of the encoded brackets and commas of a json array */
+    private static final int ENCODED_SEPARATOR = 3;
+
+    private final String api_token;
+    private final String url;
+    private final String overwriteBehavior;
+    private final boolean forceAutoNumber;
+    private final String returnContent;
+    private final String recordIdField;
+    private final int maxRecords;
+    private final long maxBytes;
+    private final int parallelism;
+
+    /**
+     * Basic constructor, importing with "normal" overwrite behavior and returning counts
+     *
+     * @param api_token   the token that defines the REDCap project of interest. To use this method, you must have API
+     *                    Import/Update privileges in the project.
+     * @param url         API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @param maxRecords  maximum number of records (rows) of each batch
+     * @param maxBytes    maximum size (bytes) of the url-encoded data of each batch, to be kept below the server
+     *                    post_max_size
+     * @param parallelism the maximum number of calls in flight at the same time
+     */
+    public BulkImportRecords(final String api_token, final String url, final int maxRecords, final long maxBytes,
+                             final int parallelism) {
+        this(api_token, url, null, false, null, null, maxRecords, maxBytes, parallelism);
+    }
+
+    /**
+     * Complete constructor with all possible parameters
+     *
+     * @param api_token         the token that defines the REDCap project of interest. To use this method, you must
+     *                          have API Import/Update privileges in the project.
+     * @param url               API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @param overwriteBehavior "normal" - blank/empty values will be ignored
+     *                          "overwrite" - blank/empty values are valid and will overwrite data
+     * @param forceAutoNumber   whether record names are automatically determined by REDCap, see {@link ImportRecords}
+     * @param returnContent     "count" (default) - the number of records imported
+     *                          "ids" - a list of all record IDs that were imported
+     *                          "auto_ids" = (used only when forceAutoNumber=true) a list of pairs of all record IDs
+     *                          that were imported, includes the new ID created and the ID value that was sent in
+     *                          the API request (e.g., 323,10).
+     * @param recordIdField     the name of the record ID field. If provided, consecutive rows of the same record
+     *                          (e.g. events of a longitudinal project) are kept in the same batch, exceeding
+     *                          maxRecords if needed, but not maxBytes.
+     * @param maxRecords        maximum number of records (rows) of each batch
+     * @param maxBytes          maximum size (bytes) of the url-encoded data of each batch, to be kept below the server
+     *                          post_max_size
+     * @param parallelism       the maximum number of calls in flight at the same time
+     */
+    public BulkImportRecords(final String api_token, final String url, final String overwriteBehavior,
+                             final boolean forceAutoNumber, final String returnContent, final String recordIdField,
+                             final int maxRecords, final long maxBytes, final int parallelism) {
+
+        if (api_token == null)
+            throw new IllegalArgumentException("Must provide a valid API token");
+        if (url == null)
+            throw new IllegalArgumentException("must provide valid URL of REDCap API endpoint");
+        if (returnContent != null && !ArrayUtils.contains(ImportRecords.RETURN_CONTENTS, returnContent))
+            throw new IllegalArgumentException("Allowed return contents: \"count\" (default), \"ids\", \"auto_ids\"");
+        if (maxRecords <= 0 || maxBytes <= 0 || parallelism <= 0)
+            throw new IllegalArgumentException("Batch sizes and parallelism must be positive");
+
+        this.api_token = api_token;
+        this.url = url;
+        this.overwriteBehavior = overwriteBehavior;
+        this.forceAutoNumber = forceAutoNumber;
+        this.returnContent = returnContent == null ? "count" : returnContent;
+        this.recordIdField = recordIdField;
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Imports the records of a collection
+     *
+     * @param records the records, as maps from field name to value (flat layout)
+     * @return the aggregated outcome of the batches
+     */
+    public BulkImportResult importRecords(final Iterable<? extends Map<String, String>> records) throws APICallException {
+        return importRecords(records.iterator());
+    }
+
+    /**
+     * Imports the records read from an iterator, e.g. a {@link JsonRecordReader} over an export of another project.
+     * Failed batches do not stop the import: they are reported by {@link BulkImportResult#getErrors()}.
+     *
+     * @param records the records, as maps from field name to value (flat layout)
+     * @return the aggregated outcome of the batches
+     */
+    public BulkImportResult importRecords(final Iterator<? extends Map<String, String>> records) throws APICallException {
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism, r -> {
+            final Thread thread = new Thread(r, "redcap-bulk-import");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Semaphore slots = new Semaphore(parallelism);
+        final List<Future<String>> batches = new ArrayList<Future<String>>();
+
+        try {
+            final StringBuilder batch = new StringBuilder("[");
+            int batchRecords = 0;
+            long batchBytes = 2 * ENCODED_SEPARATOR;
+            String lastId = null;
+
+            while (records.hasNext()) {
+                final Map<String, String> record = records.next();
+                final String json = JSONObject.toJSONString(record);
+                final long bytes = encodedLength(json);
+                final String id = recordIdField == null ? null : record.get(recordIdField);
+                final boolean sameRecord = id != null && id.equals(lastId);
+
+                // the comma before the record is only needed if the record joins a non-empty batch
+                if (batchRecords > 0 && (batchBytes + ENCODED_SEPARATOR + bytes > maxBytes
+                        || (batchRecords >= maxRecords && !sameRecord))) {
+                    batches.add(submit(executor, slots, batch.append(']').toString()));
+                    batch.setLength(1);
+                    batchRecords = 0;
+                    batchBytes = 2 * ENCODED_SEPARATOR;
+                }
+
+                if (batchRecords > 0) {
+                    batch.append(',');
+                    batchBytes += ENCODED_SEPARATOR;
+                }
+                batch.append(json);
+                batchRecords++;
+                batchBytes += bytes;
+                lastId = id;
+            }
+            if (batchRecords > 0)
+                batches.add(submit(executor, slots, batch.append(']').toString()));
+
+            return aggregate(batches);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Submits a batch, waiting for a free slot
+     */
+    private Future<String> submit(final ExecutorService executor, final Semaphore slots, final String data) {
+        try {
+            slots.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            throw new APICallException("Bulk import interrupted", e);
+        }
+        return executor.submit(() -> {
+            try {
+                final ImportRecords request = new ImportRecords(api_token, "json", "flat", overwriteBehavior,
+                        forceAutoNumber, data, null, null, returnContent, "json", url, false);
+                request.doPost();
+                return request.getResult();
+            } finally {
+                slots.release();
+            }
+        });
+    }
+
+    /**
+     * Waits for all the batches, summing counts and collecting IDs in batch order
+     */
+    private BulkImportResult aggregate(final List<Future<String>> batches) {
+        final JSONParser parser = new JSONParser();
+        final List<String> ids = new ArrayList<String>();
+        final Map<Integer, String> errors = new HashMap<Integer, String>();
+        int count = 0;
+
+        for (int i = 0; i < batches.size(); i++) {
+            try {
+                final Object result = parser.parse(batches.get(i).get());
+                if (result instanceof JSONObject) {
+                    final Object batchCount = ((JSONObject) result).get("count");
+                    if (batchCount != null)
+                        count += Integer.parseInt(batchCount.toString());
+                } else if (result instanceof JSONArray) {
+                    for (final Object id : (JSONArray) result)
+                        ids.add(String.valueOf(id));
+                    count += ((JSONArray) result).size();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new APICallException("Bulk import interrupted", e);
+            } catch (final ExecutionException e) {
+                errors.put(i, e.getCause().getMessage());
+            } catch (final ParseException | NumberFormatException e) {
+                errors.put(i, "Unexpected import result - "+e.getMessage());
+            }
+        }
+        return new BulkImportResult(batches.size(), count, ids, errors);
+    }
+
+    /**
+     * Computes the length of a string once encoded as application/x-www-form-urlencoded UTF-8 value
+     * @param value the value
+     * @return the length of the encoded value
+     */
+    static long encodedLength(final CharSequence value) {
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-'
+                    || c == '*' || c == '_' || c == ' ')
+                length++;
+            else if (c < 0x80)
+                length += 3;
+            else if (c < 0x800)
+                length += 6;
+            else if (Character.isSurrogate(c))
+                length += 6; // 4 UTF-8 bytes per surrogate pair
+            else
+                length += 9;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,64 @@
+package it.ioveneto.redcap.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Outcome of a {@link BulkImportRecords} import, aggregating the results of all its batches.
+ */
+public final class BulkImportResult {
+    private final int batches;
+    private final int count;
+    private final List<String> ids;
+    private final Map<Integer, String> errors;
+
+    BulkImportResult(final int batches, final int count, final List<String> ids, final Map<Integer, String> errors) {
+        this.batches = batches;
+        this.count = count;
+        this.ids = Collections.unmodifiableList(new ArrayList<String>(ids));
+        this.errors = Collections.unmodifiableMap(new TreeMap<Integer, String>(errors));
+    }
+
+    /**
+     * Returns the number of batches the records were split into
+     * @return the number of batches
+     */
+    public int getBatches() {
+        return batches;
+    }
+
+    /**
+     * Returns the number of records imported, as reported by the server for returnContent "count"
+     * @return the sum of the counts of all the successful batches
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the records imported, as reported by the server for returnContent "ids" or "auto_ids"
+     * @return the record IDs (or "new ID,sent ID" pairs) of all the successful batches, in import order
+     */
+    public List<String> getIds() {
+        return ids;
+    }
+
+    /**
+     * Returns the failed batches
+     * @return the error message of each failed batch, by batch index
+     */
+    public Map<Integer, String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Checks if all the batches were imported
+     * @return true if no batch failed
+     */
+    public boolean isSuccessful() {
+        return errors.isEmpty();
+    }
+}
@@ -0,0 +1,89 @@
+package it.ioveneto.redcap.api;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Outcome of a bulk file transfer ({@link BulkExportFiles}, {@link BulkImportFiles}): how many files were
+ * transferred, skipped or failed, and the throughput achieved.
+ */
+public final class BulkTransferResult {
+    private final int transferred;
+    private final int skipped;
+    private final long bytes;
+    private final long elapsed;
+    private final Map<String, String> errors;
+
+    BulkTransferResult(final int transferred, final int skipped, final long bytes, final long elapsed,
+                       final Map<String, String> errors) {
+        this.transferred = transferred;
+        this.skipped = skipped;
+        this.bytes = bytes;
+        this.elapsed = elapsed;
+        this.errors = Collections.unmodifiableMap(new TreeMap<String, String>(errors));
+    }
+
+    /**
+     * Returns the number of files transferred
+     * @return the number of files
+     */
+    public int getTransferred() {
+        return transferred;
+    }
+
+    /**
+     * Returns the number of files skipped because already present
+     * @return the number of files
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Returns the failed transfers
+     * @return the error message of each failed file, by record/event/field
+     */
+    public Map<String, String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns the total size of the files transferred
+     * @return the number of bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the duration of the whole transfer
+     * @return the elapsed time (ms)
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * Returns the throughput of the transfer
+     * @return the bytes transferred per second
+     */
+    public double getBytesPerSecond() {
+        return elapsed == 0 ? bytes : bytes * 1000.0 / elapsed;
+    }
+
+    /**
+     * Returns the throughput of the transfer
+     * @return the files transferred per second
+     */
+    public double getFilesPerSecond() {
+        return elapsed == 0 ? transferred : transferred * 1000.0 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return transferred + " files (" + bytes + " bytes) transferred, " + skipped + " skipped, " + errors.size() +
+                " failed in " + elapsed + " ms - " + String.format("%.1f", getFilesPerSecond()) + " files/s, " +
+                String.format("%.0f", getBytesPerSecond()) + " bytes/s";
+    }
+}
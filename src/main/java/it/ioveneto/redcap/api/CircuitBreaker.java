@@ -0,0 +1,247 @@
+package it.ioveneto.redcap.api;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Circuit breakers of the REDCap endpoints, one per endpoint URL, so that callers stop sending calls to an endpoint
+ * that is failing (e.g. in maintenance mode) instead of piling up blocked threads:
+ * <ul>
+ *     <li>CLOSED: calls go through, and the outcomes of the last calls are recorded; when at least the minimum
+ *     number of calls has been recorded and their failure rate reaches the threshold, the circuit opens;</li>
+ *     <li>OPEN: calls are rejected at once with a {@link CircuitBreakerOpenException}, until the open duration
+ *     elapses;</li>
+ *     <li>HALF_OPEN: a few trial calls go through, the others are rejected; if all the trial calls succeed the circuit
+ *     closes, at the first failure it opens again.</li>
+ * </ul>
+ * <p>
+ * Failures are I/O errors and HTTP 5xx responses; other responses, errors of the request included, prove that the
+ * endpoint is working. A circuit breaker attached to a {@link RedcapTransport} with
+ * {@link RedcapTransport#setCircuitBreaker(CircuitBreaker)} guards every attempt of every request using it.
+ * </p>
+ */
+public class CircuitBreaker {
+    /** States of the circuit of an endpoint */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /** Default failure rate opening the circuit */
+    public static final double DEFAULT_FAILURE_RATE = 0.5;
+    /** Default number of calls recorded before the failure rate is evaluated */
+    public static final int DEFAULT_MINIMUM_CALLS = 20;
+    /** Default number of last calls whose outcome is recorded */
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+    /** Default time (ms) the circuit stays open */
+    public static final long DEFAULT_OPEN_DURATION = 30000;
+    /** Default number of trial calls in half open state */
+    public static final int DEFAULT_TRIAL_CALLS = 3;
+
+    private final double failureRate;
+    private final int minimumCalls;
+    private final int windowSize;
+    private final long openDuration;
+    private final int trialCalls;
+    private final ConcurrentMap<String, Circuit> circuits;
+
+    /**
+     * Constructor with default settings: opening at 50% failures of the last 100 calls (at least 20), for 30 s, then
+     * closing after 3 successful trial calls
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_RATE, DEFAULT_MINIMUM_CALLS, DEFAULT_WINDOW_SIZE, DEFAULT_OPEN_DURATION, DEFAULT_TRIAL_CALLS);
+    }
+
+    /**
+     * Complete constructor with all possible parameters
+     *
+     * @param failureRate  the failure rate (0-1] of the recorded calls opening the circuit
+     * @param minimumCalls the number of calls recorded before the failure rate is evaluated
+     * @param windowSize   the number of last calls whose outcome is recorded
+     * @param openDuration the time (ms) the circuit stays open before trial calls
+     * @param trialCalls   the number of successful trial calls closing the circuit
+     */
+    public CircuitBreaker(final double failureRate, final int minimumCalls, final int windowSize,
+                          final long openDuration, final int trialCalls) {
+        if (!(failureRate > 0 && failureRate <= 1))
+            throw new IllegalArgumentException("Failure rate must be between 0 (excluded) and 1");
+        if (minimumCalls <= 0 || windowSize < minimumCalls)
+            throw new IllegalArgumentException("Minimum calls must be positive and not above window size");
+        if (openDuration <= 0 || trialCalls <= 0)
+            throw new IllegalArgumentException("Open duration and trial calls must be positive");
+
+        this.failureRate = failureRate;
+        this.minimumCalls = minimumCalls;
+        this.windowSize = windowSize;
+        this.openDuration = openDuration;
+        this.trialCalls = trialCalls;
+        circuits = new ConcurrentHashMap<String, Circuit>();
+    }
+
+    /**
+     * Returns the state of the circuit of an endpoint
+     * @param endpoint the URL of the endpoint
+     * @return the state, CLOSED for endpoints never called
+     */
+    public State getState(final String endpoint) {
+        final Circuit circuit = circuits.get(endpoint);
+        return circuit == null ? State.CLOSED : circuit.getState();
+    }
+
+    /**
+     * Returns the failure rate of the calls recorded for an endpoint
+     * @param endpoint the URL of the endpoint
+     * @return the failure rate (0-1), 0 if no call has been recorded
+     */
+    public double getFailureRate(final String endpoint) {
+        final Circuit circuit = circuits.get(endpoint);
+        return circuit == null ? 0 : circuit.getFailureRate();
+    }
+
+    /**
+     * Closes the circuit of an endpoint, forgetting its recorded calls
+     * @param endpoint the URL of the endpoint
+     */
+    public void reset(final String endpoint) {
+        circuits.remove(endpoint);
+    }
+
+    /**
+     * Lets a call go through, unless rejected by the circuit of its endpoint
+     * @param endpoint the URL of the endpoint
+     * @return the permit of the call, to be released with its outcome
+     */
+    Permit acquire(final String endpoint) throws CircuitBreakerOpenException {
+        final Circuit circuit = circuits.computeIfAbsent(endpoint, k -> new Circuit());
+        return circuit.acquire(endpoint);
+    }
+
+    /**
+     * Permission for a call to go through, to be released once with the outcome of the call
+     */
+    final class Permit {
+        private final Circuit circuit;
+        private final long generation;
+        private final boolean trial;
+        private boolean released;
+
+        Permit(final Circuit circuit, final long generation, final boolean trial) {
+            this.circuit = circuit;
+            this.generation = generation;
+            this.trial = trial;
+        }
+
+        /**
+         * Records the outcome of the call
+         * @param failed true if the call failed for an I/O error or HTTP 5xx
+         */
+        void release(final boolean failed) {
+            if (!released) {
+                released = true;
+                circuit.release(this, failed);
+            }
+        }
+
+        /**
+         * Gives back the permit of a call not performed or cancelled
+         */
+        void cancel() {
+            if (!released) {
+                released = true;
+                circuit.cancel(this);
+            }
+        }
+    }
+
+    /**
+     * State of the circuit of an endpoint
+     */
+    private final class Circuit {
+        private final boolean[] failed;
+        private State state;
+        private long generation;
+        private int next;
+        private int calls;
+        private int failures;
+        private long openedAt;
+        private int trials;
+        private int successes;
+
+        Circuit() {
+            failed = new boolean[windowSize];
+            state = State.CLOSED;
+        }
+
+        synchronized Permit acquire(final String endpoint) {
+            if (state == State.OPEN) {
+                final long remaining = openDuration - (System.currentTimeMillis() - openedAt);
+                if (remaining > 0)
+                    throw new CircuitBreakerOpenException(endpoint, remaining);
+                transition(State.HALF_OPEN);
+            }
+            if (state == State.HALF_OPEN) {
+                if (trials + successes >= trialCalls)
+                    throw new CircuitBreakerOpenException(endpoint, 0);
+                trials++;
+                return new Permit(this, generation, true);
+            }
+            return new Permit(this, generation, false);
+        }
+
+        synchronized void release(final Permit permit, final boolean failure) {
+            // outcomes of calls admitted before the last transition are stale
+            if (permit.generation != generation)
+                return;
+
+            if (permit.trial) {
+                trials--;
+                if (failure)
+                    open();
+                else if (++successes >= trialCalls)
+                    transition(State.CLOSED);
+                return;
+            }
+
+            if (calls == windowSize && failed[next])
+                failures--;
+            failed[next] = failure;
+            if (failure)
+                failures++;
+            next = (next + 1) % windowSize;
+            calls = Math.min(calls + 1, windowSize);
+
+            if (calls >= minimumCalls && failures >= failureRate * calls)
+                open();
+        }
+
+        synchronized void cancel(final Permit permit) {
+            if (permit.trial && permit.generation == generation)
+                trials--;
+        }
+
+        synchronized State getState() {
+            return state;
+        }
+
+        synchronized double getFailureRate() {
+            return calls == 0 ? 0 : (double) failures / calls;
+        }
+
+        private void open() {
+            transition(State.OPEN);
+            openedAt = System.currentTimeMillis();
+        }
+
+        private void transition(final State state) {
+            this.state = state;
+            generation++;
+            trials = 0;
+            successes = 0;
+            if (state == State.CLOSED) {
+                next = 0;
+                calls = 0;
+                failures = 0;
+            }
+        }
+    }
+}
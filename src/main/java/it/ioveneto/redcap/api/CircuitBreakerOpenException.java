@@ -0,0 +1,31 @@
+package it.ioveneto.redcap.api;
+
+/**
+ * Thrown when a call is rejected without being sent, because the {@link CircuitBreaker} of its endpoint is open
+ */
+public class CircuitBreakerOpenException extends APICallException {
+    private final String endpoint;
+    private final long remaining;
+
+    public CircuitBreakerOpenException(final String endpoint, final long remaining) {
+        super("Circuit breaker open for "+endpoint+" - calls rejected for "+remaining+" ms");
+        this.endpoint = endpoint;
+        this.remaining = remaining;
+    }
+
+    /**
+     * Returns the endpoint whose calls are rejected
+     * @return the URL of the endpoint
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Returns the time before the circuit lets trial calls through
+     * @return the time (ms), 0 if trial calls are already in progress
+     */
+    public long getRemaining() {
+        return remaining;
+    }
+}
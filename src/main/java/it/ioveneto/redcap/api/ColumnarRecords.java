@@ -0,0 +1,343 @@
+package it.ioveneto.redcap.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Immutable, column-oriented copy of exported records, for analytics on large exports held in memory. Each field is
+ * a column whose distinct values are stored once in a dictionary, while each row only holds the int code of its
+ * value: coded choices, dates, event names and blanks repeat a lot, so a column takes little more than 4 bytes per
+ * row instead of a String per value.
+ * <p>
+ * Scans are performed on the codes: a condition on the values of a column is evaluated once per distinct value, then
+ * the rows are selected by comparing ints. Records are loaded from the readers of the exports, without materializing
+ * the export as a String:
+ * </p>
+ * <pre>
+ * final ColumnarRecords records;
+ * try (JsonRecordReader reader = new JsonRecordReader(exportRecords.doPostStream())) {
+ *     records = new ColumnarRecords(reader);
+ * }
+ * final BitSet women = records.getColumn("sex").select("2"::equals);
+ * </pre>
+ */
+public class ColumnarRecords {
+    /** Code of the rows without a value (e.g. a field not in the row, or added later in the export) */
+    public static final int ABSENT = 0;
+
+    private final int rowCount;
+    private final Map<String, Column> columns;
+
+    /**
+     * Constructor reading records one at a time, e.g. from a {@link JsonRecordReader} or a {@link XmlRecordReader}
+     * @param records the records, mapping field names to values
+     */
+    public ColumnarRecords(final Iterator<? extends Map<String, String>> records) throws APICallException {
+        if (records == null)
+            throw new IllegalArgumentException("Must provide the records to read");
+
+        final LinkedHashMap<String, Column> builders = new LinkedHashMap<String, Column>();
+        int rows = 0;
+        while (records.hasNext()) {
+            for (final Map.Entry<String, String> value : records.next().entrySet()) {
+                Column column = builders.get(value.getKey());
+                if (column == null) {
+                    column = new Column(value.getKey());
+                    builders.put(value.getKey(), column);
+                }
+                column.set(rows, value.getValue());
+            }
+            rows++;
+        }
+        rowCount = rows;
+        columns = trim(builders, rows);
+    }
+
+    /**
+     * Constructor reading a csv export, whose first row holds the field names; cells are encoded without creating
+     * a String unless their value is new to the column. Rows with more or fewer cells than the header are rejected.
+     * @param csv the export
+     */
+    public ColumnarRecords(final CsvRecordReader csv) throws APICallException {
+        if (csv == null)
+            throw new IllegalArgumentException("Must provide the records to read");
+
+        final LinkedHashMap<String, Column> builders = new LinkedHashMap<String, Column>();
+        final List<Column> header = new ArrayList<Column>();
+        if (csv.nextRow()) {
+            for (int i = 0; i < csv.getFieldCount(); i++) {
+                final Column column = new Column(csv.getString(i));
+                if (builders.putIfAbsent(column.field, column) != null)
+                    throw new APICallException("Duplicate field in csv header: "+column.field);
+                header.add(column);
+            }
+        }
+        int rows = 0;
+        while (csv.nextRow()) {
+            if (csv.getFieldCount() != header.size())
+                throw new APICallException("Row "+csv.getRowNumber()+" has "+csv.getFieldCount()+
+                        " fields, the header "+header.size());
+            for (int i = 0; i < header.size(); i++)
+                header.get(i).set(rows, csv.getField(i));
+            rows++;
+        }
+        rowCount = rows;
+        columns = trim(builders, rows);
+    }
+
+    /**
+     * Returns the number of rows (records, or events and repeat instances of records in flat exports)
+     * @return the number of rows
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns the names of the fields, in the order they were found in the export
+     * @return an unmodifiable list of field names
+     */
+    public List<String> getFields() {
+        return Collections.unmodifiableList(new ArrayList<String>(columns.keySet()));
+    }
+
+    /**
+     * Returns the column of a field
+     * @param field the field name
+     * @return the column, null if the field is not in the export
+     */
+    public Column getColumn(final String field) {
+        return columns.get(field);
+    }
+
+    /**
+     * Returns a value
+     * @param row   the row index
+     * @param field the field name
+     * @return the value, null if the field is not in the export or has no value in the row
+     */
+    public String getValue(final int row, final String field) {
+        final Column column = columns.get(field);
+        return column == null ? null : column.getValue(row);
+    }
+
+    /**
+     * Returns a row as a map
+     * @param row the row index
+     * @return a new map from field names to the values in the row
+     */
+    public Map<String, String> getRow(final int row) {
+        if (row < 0 || row >= rowCount)
+            throw new IndexOutOfBoundsException("Row "+row+" out of "+rowCount);
+        final Map<String, String> values = new LinkedHashMap<String, String>();
+        for (final Column column : columns.values()) {
+            final String value = column.getValue(row);
+            if (value != null)
+                values.put(column.field, value);
+        }
+        return values;
+    }
+
+    /**
+     * Returns an estimate of the heap used by the codes, the dictionaries and their hash tables
+     * @return the estimate in bytes
+     */
+    public long getMemoryEstimate() {
+        long bytes = 0;
+        for (final Column column : columns.values()) {
+            bytes += 32 + 4L * column.codes.length + 4L * column.table.length;
+            for (int code = 1; code < column.dictionary.length; code++)
+                bytes += 56 + 2L * column.dictionary[code].length();
+        }
+        return bytes;
+    }
+
+    private static Map<String, Column> trim(final LinkedHashMap<String, Column> builders, final int rows) {
+        for (final Column column : builders.values())
+            column.trim(rows);
+        return Collections.unmodifiableMap(builders);
+    }
+
+    /**
+     * Dictionary-encoded values of a field
+     */
+    public static final class Column {
+        private final String field;
+        private int[] codes;
+        private String[] dictionary;
+        private int cardinality;
+        /** Open-addressing table from values to code + 1 */
+        private int[] table;
+
+        private Column(final String field) {
+            this.field = field;
+            codes = new int[64];
+            dictionary = new String[16];
+            cardinality = 1;
+            table = new int[32];
+        }
+
+        /**
+         * Returns the name of the field
+         * @return the field name
+         */
+        public String getField() {
+            return field;
+        }
+
+        /**
+         * Returns the number of codes, {@link ColumnarRecords#ABSENT} included
+         * @return the number of distinct values plus one
+         */
+        public int getCardinality() {
+            return cardinality;
+        }
+
+        /**
+         * Returns the code of a row
+         * @param row the row index
+         * @return the code, {@link ColumnarRecords#ABSENT} if the row has no value
+         */
+        public int getCode(final int row) {
+            return codes[row];
+        }
+
+        /**
+         * Returns the value of a code
+         * @param code the code, between 0 and {@link #getCardinality()} excluded
+         * @return the value, null for {@link ColumnarRecords#ABSENT}
+         */
+        public String decode(final int code) {
+            return dictionary[code];
+        }
+
+        /**
+         * Returns the value of a row
+         * @param row the row index
+         * @return the value, null if the row has no value
+         */
+        public String getValue(final int row) {
+            return dictionary[codes[row]];
+        }
+
+        /**
+         * Returns the code of a value
+         * @param value the value
+         * @return the code, {@link ColumnarRecords#ABSENT} for null, -1 if no row has the value
+         */
+        public int encode(final String value) {
+            if (value == null)
+                return ABSENT;
+            return table[slotOf(value)] - 1;
+        }
+
+        /**
+         * Counts the rows of each code
+         * @return the number of rows, indexed by code
+         */
+        public int[] countCodes() {
+            final int[] counts = new int[cardinality];
+            for (final int code : codes)
+                counts[code]++;
+            return counts;
+        }
+
+        /**
+         * Selects the rows whose value satisfies a condition, evaluated once per distinct value
+         * @param condition the condition on values, never given null
+         * @return the indexes of the selected rows
+         */
+        public BitSet select(final Predicate<String> condition) {
+            final boolean[] selected = new boolean[cardinality];
+            for (int code = 1; code < cardinality; code++)
+                selected[code] = condition.test(dictionary[code]);
+            final BitSet rows = new BitSet(codes.length);
+            for (int row = 0; row < codes.length; row++) {
+                if (selected[codes[row]])
+                    rows.set(row);
+            }
+            return rows;
+        }
+
+        /**
+         * Selects the rows with a code
+         * @param code the code, e.g. from {@link #encode(String)}
+         * @return the indexes of the selected rows
+         */
+        public BitSet select(final int code) {
+            final BitSet rows = new BitSet(codes.length);
+            for (int row = 0; row < codes.length; row++) {
+                if (codes[row] == code)
+                    rows.set(row);
+            }
+            return rows;
+        }
+
+        private void set(final int row, final CharSequence value) {
+            if (row >= codes.length)
+                codes = Arrays.copyOf(codes, Math.max(row + 1, codes.length * 2));
+            codes[row] = value == null ? ABSENT : codeOf(value);
+        }
+
+        /**
+         * Returns the code of a value, adding it to the dictionary if new
+         */
+        private int codeOf(final CharSequence value) {
+            final int slot = slotOf(value);
+            if (table[slot] != 0)
+                return table[slot] - 1;
+            if (cardinality == dictionary.length)
+                dictionary = Arrays.copyOf(dictionary, dictionary.length * 2);
+            final int code = cardinality++;
+            dictionary[code] = value.toString();
+            table[slot] = code + 1;
+            if (cardinality * 2 > table.length)
+                rehash();
+            return code;
+        }
+
+        /**
+         * Returns the slot of the table holding a value, or the empty slot where it would be added
+         */
+        private int slotOf(final CharSequence value) {
+            final int mask = table.length - 1;
+            int slot = hash(value) & mask;
+            while (table[slot] != 0 && !dictionary[table[slot] - 1].contentEquals(value))
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private void rehash() {
+            table = new int[table.length * 2];
+            final int mask = table.length - 1;
+            for (int code = 1; code < cardinality; code++) {
+                int slot = hash(dictionary[code]) & mask;
+                while (table[slot] != 0)
+                    slot = (slot + 1) & mask;
+                table[slot] = code + 1;
+            }
+        }
+
+        private void trim(final int rows) {
+            codes = Arrays.copyOf(codes, rows);
+            dictionary = Arrays.copyOf(dictionary, cardinality);
+        }
+
+        /**
+         * Same hash as {@link String#hashCode()}, spread over the low bits
+         */
+        private static int hash(final CharSequence value) {
+            int h = 0;
+            for (int i = 0; i < value.length(); i++)
+                h = 31 * h + value.charAt(i);
+            return h ^ (h >>> 16);
+        }
+    }
+}
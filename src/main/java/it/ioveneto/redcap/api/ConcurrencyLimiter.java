@@ -0,0 +1,234 @@
+package it.ioveneto.redcap.api;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Adaptive limit of the API calls in flight at the same time, following the capacity of the REDCap server instead of
+ * a fixed number of threads. The limit is adjusted by the latencies observed (AIMD, additive increase multiplicative
+ * decrease):
+ * <ul>
+ *     <li>while the average latency stays close to the lowest observed (no queueing on the server) and the limit is
+ *     actually in use, the limit grows by about one call per round trip;</li>
+ *     <li>when the average latency exceeds the lowest observed by the tolerance ratio, or calls fail with I/O errors,
+ *     HTTP 5xx or 429, the limit is reduced by the backoff ratio, at most once per round trip.</li>
+ * </ul>
+ * <p>
+ * The reference latency is the lowest average observed, slowly aging towards the current average so that the
+ * limiter adapts to lasting changes of the server. Calls above the limit wait in arrival order, blocking with {@link #acquire()} or without holding a thread
+ * with {@link #acquireAsync()}. A limiter attached to a {@link RedcapTransport} with
+ * {@link RedcapTransport#setConcurrencyLimiter(ConcurrencyLimiter)} is applied to every attempt of every request
+ * using it; latency is measured up to the reception of the response headers.
+ * </p>
+ */
+public class ConcurrencyLimiter {
+    /** Default limit at start */
+    public static final int DEFAULT_INITIAL_LIMIT = 4;
+    /** Default lowest limit */
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    /** Default highest limit */
+    public static final int DEFAULT_MAX_LIMIT = 64;
+    /** Default ratio between the latency deemed as overload and the lowest latency */
+    public static final double DEFAULT_TOLERANCE = 2.0;
+    /** Default ratio applied to the limit on overload */
+    public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+
+    /** Weight (as shift) of the average latency in the aging of the lowest one */
+    private static final int AGING_SHIFT = 14;
+    /** Weight of a latency sample in the average latency */
+    private static final double SMOOTHING = 0.1;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double backoffRatio;
+    private final Deque<CompletableFuture<Void>> waiters;
+    private double limit;
+    private int inFlight;
+    private long minLatency;
+    private double avgLatency;
+    private long lastDecrease;
+
+    /**
+     * Constructor with default settings: limit between 1 and 64, starting from 4
+     */
+    public ConcurrencyLimiter() {
+        this(DEFAULT_INITIAL_LIMIT, DEFAULT_MIN_LIMIT, DEFAULT_MAX_LIMIT, DEFAULT_TOLERANCE, DEFAULT_BACKOFF_RATIO);
+    }
+
+    /**
+     * Complete constructor with all possible parameters
+     *
+     * @param initialLimit the limit at start
+     * @param minLimit     the lowest limit
+     * @param maxLimit     the highest limit
+     * @param tolerance    the ratio between the average latency deemed as overload and the lowest latency observed
+     *                     (e.g. 2.0)
+     * @param backoffRatio the ratio applied to the limit on overload (e.g. 0.9)
+     */
+    public ConcurrencyLimiter(final int initialLimit, final int minLimit, final int maxLimit, final double tolerance,
+                              final double backoffRatio) {
+        if (minLimit <= 0 || initialLimit < minLimit || maxLimit < initialLimit)
+            throw new IllegalArgumentException("Limits must be positive, with minimum <= initial <= maximum");
+        if (!(tolerance > 1))
+            throw new IllegalArgumentException("Latency tolerance must be greater than 1");
+        if (!(backoffRatio > 0 && backoffRatio < 1))
+            throw new IllegalArgumentException("Backoff ratio must be between 0 and 1");
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.backoffRatio = backoffRatio;
+        waiters = new ArrayDeque<CompletableFuture<Void>>();
+        limit = initialLimit;
+        minLatency = Long.MAX_VALUE;
+        lastDecrease = System.nanoTime();
+    }
+
+    /**
+     * Takes a slot, waiting until one is free. Every slot taken must be given back with
+     * {@link #release(long, boolean)} or {@link #release()}.
+     */
+    public void acquire() throws APICallException {
+        final CompletableFuture<Void> slot = acquireAsync();
+        try {
+            slot.get();
+        } catch (final InterruptedException e) {
+            if (!slot.cancel(false))
+                release();
+            Thread.currentThread().interrupt();
+            throw new APICallException("Interrupted while waiting for the concurrency limit", e);
+        } catch (final ExecutionException e) {
+            throw new APICallException("Failure in waiting for the concurrency limit - "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Takes a slot without blocking. Every slot taken must be given back with {@link #release(long, boolean)} or
+     * {@link #release()}; cancelling the future before its completion gives up the slot.
+     * @return a future completed when the slot is taken
+     */
+    public CompletableFuture<Void> acquireAsync() {
+        synchronized (this) {
+            if (waiters.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                return CompletableFuture.completedFuture(null);
+            }
+            final CompletableFuture<Void> slot = new CompletableFuture<Void>();
+            waiters.add(slot);
+            // a wait given up (e.g. at the deadline of the call) leaves the queue at once
+            slot.whenComplete((taken, error) -> {
+                if (error != null) {
+                    synchronized (this) {
+                        waiters.remove(slot);
+                    }
+                }
+            });
+            return slot;
+        }
+    }
+
+    /**
+     * Gives back the slot of a completed call, adjusting the limit
+     * @param latencyNanos the latency of the call (ns)
+     * @param overloaded   true if the call failed for overload (I/O error, HTTP 5xx or 429)
+     */
+    public void release(final long latencyNanos, final boolean overloaded) {
+        final List<CompletableFuture<Void>> ready;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            if (!overloaded) {
+                // the reference is the lowest average, so that single lucky samples do not lower it
+                avgLatency = avgLatency == 0 ? latencyNanos : avgLatency + (latencyNanos - avgLatency) * SMOOTHING;
+                if (avgLatency < minLatency)
+                    minLatency = (long) avgLatency;
+                else
+                    minLatency += ((long) avgLatency - minLatency) >> AGING_SHIFT;
+            }
+
+            if (overloaded || avgLatency > minLatency * tolerance) {
+                // a single decrease per round trip, the calls in flight having been sent at the same load
+                if (now - lastDecrease > avgLatency) {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                    lastDecrease = now;
+                }
+            } else if (inFlight * 2 >= (int) limit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            inFlight--;
+            ready = dispatch();
+        }
+        start(ready);
+    }
+
+    /**
+     * Gives back the slot of a call not performed or cancelled, leaving the limit unchanged
+     */
+    public void release() {
+        final List<CompletableFuture<Void>> ready;
+        synchronized (this) {
+            inFlight--;
+            ready = dispatch();
+        }
+        start(ready);
+    }
+
+    /**
+     * Returns the current limit
+     * @return the number of calls allowed in flight
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Returns the calls in flight
+     * @return the number of slots taken
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Returns the calls waiting for a slot
+     * @return the number of waiting calls
+     */
+    public synchronized int getWaiting() {
+        return waiters.size();
+    }
+
+    /**
+     * Returns the latency taken as reference of a server not overloaded
+     * @return the lowest latency observed, aged (ns), -1 if none yet
+     */
+    public synchronized long getMinLatency() {
+        return minLatency == Long.MAX_VALUE ? -1 : minLatency;
+    }
+
+    /**
+     * Assigns free slots to waiters, to be started outside the lock
+     */
+    private List<CompletableFuture<Void>> dispatch() {
+        final List<CompletableFuture<Void>> ready = new ArrayList<CompletableFuture<Void>>();
+        while (inFlight < (int) limit && !waiters.isEmpty()) {
+            final CompletableFuture<Void> waiter = waiters.poll();
+            if (!waiter.isDone()) {
+                inFlight++;
+                ready.add(waiter);
+            }
+        }
+        return ready;
+    }
+
+    private void start(final List<CompletableFuture<Void>> ready) {
+        for (final CompletableFuture<Void> waiter : ready) {
+            // cancelled after being dispatched
+            if (!waiter.complete(null))
+                release();
+        }
+    }
+}
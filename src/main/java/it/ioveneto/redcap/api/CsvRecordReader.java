@@ -0,0 +1,289 @@
+package it.ioveneto.redcap.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming reader of csv exports (format=csv of {@link ExportRecords} and {@link ExportReports}), working directly on
+ * the response stream. Rows are read one at a time; the fields of the current row are exposed as char slices over a
+ * buffer reused for every row, so no String is created per cell unless explicitly requested with
+ * {@link #getString(int)}. Quoted fields, doubled quotes and line breaks inside quotes (e.g. notes fields) are
+ * supported; an export ending inside a quoted field is reported as truncated.
+ * <p>
+ * The slices returned by {@link #getField(int)} are valid only until the next call to {@link #nextRow()}. Typical use,
+ * on a streamed export:
+ * </p>
+ * <pre>
+ * try (CsvRecordReader csv = new CsvRecordReader(exportRecords.doPostStream(), ",")) {
+ *     while (csv.nextRow())
+ *         load(csv.getField(0), csv.getField(1));
+ * }
+ * </pre>
+ */
+public class CsvRecordReader implements Closeable {
+    private static final int START = 0;
+    private static final int UNQUOTED = 1;
+    private static final int QUOTED = 2;
+    private static final int QUOTE_IN_QUOTED = 3;
+
+    private final Reader reader;
+    private final char delimiter;
+    private final char[] input;
+    private int inputPos;
+    private int inputLen;
+    private char[] row;
+    private int rowLen;
+    private int[] fieldStart;
+    private int[] fieldEnd;
+    private int fieldCount;
+    private Slice[] slices;
+    private long rowNumber;
+    private boolean eof;
+
+    /**
+     * Constructor reading an UTF-8 encoded export
+     * @param in           the export, closed by {@link #close()}
+     * @param csvDelimiter the delimiter requested with the export: comma ',' (default if null), 'tab', semi-colon ';',
+     *                     pipe '|', or caret '^'
+     */
+    public CsvRecordReader(final InputStream in, final String csvDelimiter) {
+        this(new InputStreamReader(in, StandardCharsets.UTF_8), csvDelimiter);
+    }
+
+    /**
+     * Constructor reading an export
+     * @param reader       the export, closed by {@link #close()}
+     * @param csvDelimiter the delimiter requested with the export: comma ',' (default if null), 'tab', semi-colon ';',
+     *                     pipe '|', or caret '^'
+     */
+    public CsvRecordReader(final Reader reader, final String csvDelimiter) {
+        if (reader == null)
+            throw new IllegalArgumentException("Must provide the export to read");
+        this.reader = reader;
+        delimiter = delimiterChar(csvDelimiter);
+        input = new char[65536];
+        row = new char[1024];
+        fieldStart = new int[64];
+        fieldEnd = new int[64];
+        slices = new Slice[0];
+    }
+
+    /**
+     * Translates a csvDelimiter API option into the delimiter character
+     * @param csvDelimiter comma ',' (default if null), 'tab', semi-colon ';', pipe '|', or caret '^'
+     * @return the delimiter character
+     */
+    public static char delimiterChar(final String csvDelimiter) {
+        if (csvDelimiter == null)
+            return ',';
+        switch (csvDelimiter) {
+            case ",":
+                return ',';
+            case "tab":
+                return '\t';
+            case ";":
+                return ';';
+            case "|":
+                return '|';
+            case "^":
+                return '^';
+            default:
+                throw new IllegalArgumentException("Allowed CSV delimiters: \",\" (default), \"tab\", \";\", \"|\", \"^\"");
+        }
+    }
+
+    /**
+     * Reads the next row, skipping blank lines
+     * @return false if the end of the export has been reached
+     */
+    public boolean nextRow() throws APICallException {
+        rowLen = 0;
+        fieldCount = 0;
+        int state = START;
+        int start = 0;
+
+        while (true) {
+            if (inputPos == inputLen && !fill()) {
+                if (state == START && fieldCount == 0)
+                    return false;
+                // e.g. a connection dropped inside a notes field
+                if (state == QUOTED)
+                    throw new APICallException("Unterminated quoted field at row "+(rowNumber + 1));
+                endField(start);
+                rowNumber++;
+                return true;
+            }
+            final char c = input[inputPos++];
+
+            switch (state) {
+                case START:
+                    if (c == '"') {
+                        state = QUOTED;
+                    } else if (c == delimiter) {
+                        endField(start);
+                        start = rowLen;
+                    } else if (c == '\n') {
+                        if (fieldCount == 0)
+                            continue; // blank line
+                        endField(start);
+                        rowNumber++;
+                        return true;
+                    } else if (c != '\r') {
+                        append(c);
+                        state = UNQUOTED;
+                    }
+                    break;
+                case UNQUOTED:
+                case QUOTE_IN_QUOTED:
+                    if (c == delimiter) {
+                        endField(start);
+                        start = rowLen;
+                        state = START;
+                    } else if (c == '\n') {
+                        endField(start);
+                        rowNumber++;
+                        return true;
+                    } else if (c == '"' && state == QUOTE_IN_QUOTED) {
+                        append('"');
+                        state = QUOTED;
+                    } else if (c != '\r') {
+                        append(c);
+                        state = UNQUOTED;
+                    }
+                    break;
+                default:
+                    if (c == '"')
+                        state = QUOTE_IN_QUOTED;
+                    else
+                        append(c);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of fields of the current row
+     * @return the number of fields
+     */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /**
+     * Returns a field of the current row, as a slice of the row buffer valid until the next call to
+     * {@link #nextRow()}. The same slice instance is returned for the same index in every row.
+     * @param index the index of the field, starting from 0
+     * @return the field value, unquoted
+     */
+    public CharSequence getField(final int index) {
+        checkIndex(index);
+        return slices[index];
+    }
+
+    /**
+     * Returns a field of the current row as a new String
+     * @param index the index of the field, starting from 0
+     * @return the field value, unquoted
+     */
+    public String getString(final int index) {
+        checkIndex(index);
+        return new String(row, fieldStart[index], fieldEnd[index] - fieldStart[index]);
+    }
+
+    /**
+     * Returns the number of rows read so far, header included
+     * @return the row number of the current row, starting from 1
+     */
+    public long getRowNumber() {
+        return rowNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        eof = true;
+        reader.close();
+    }
+
+    private boolean fill() {
+        if (eof)
+            return false;
+        try {
+            inputLen = reader.read(input);
+        } catch (final IOException e) {
+            throw new APICallException("Failure in reading csv records - "+e.getMessage(), e);
+        }
+        inputPos = 0;
+        if (inputLen <= 0) {
+            inputLen = 0;
+            eof = true;
+            return false;
+        }
+        return true;
+    }
+
+    private void append(final char c) {
+        if (rowLen == row.length)
+            row = Arrays.copyOf(row, row.length * 2);
+        row[rowLen++] = c;
+    }
+
+    private void endField(final int start) {
+        if (fieldCount == fieldStart.length) {
+            fieldStart = Arrays.copyOf(fieldStart, fieldCount * 2);
+            fieldEnd = Arrays.copyOf(fieldEnd, fieldCount * 2);
+        }
+        if (fieldCount == slices.length) {
+            slices = Arrays.copyOf(slices, Math.max(fieldStart.length, 16));
+            for (int i = fieldCount; i < slices.length; i++)
+                slices[i] = new Slice(i);
+        }
+        fieldStart[fieldCount] = start;
+        fieldEnd[fieldCount] = rowLen;
+        fieldCount++;
+    }
+
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= fieldCount)
+            throw new IndexOutOfBoundsException("Field "+index+" not present in row "+rowNumber+" ("+fieldCount+" fields)");
+    }
+
+    /**
+     * View of a field of the current row
+     */
+    private class Slice implements CharSequence {
+        private final int index;
+
+        Slice(final int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int length() {
+            return fieldEnd[index] - fieldStart[index];
+        }
+
+        @Override
+        public char charAt(final int i) {
+            if (i < 0 || i >= length())
+                throw new IndexOutOfBoundsException("Index "+i+" out of field length "+length());
+            return row[fieldStart[index] + i];
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            if (start < 0 || end > length() || start > end)
+                throw new IndexOutOfBoundsException("Range ["+start+", "+end+") out of field length "+length());
+            return CharBuffer.wrap(row, fieldStart[index] + start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(row, fieldStart[index], length());
+        }
+    }
+}
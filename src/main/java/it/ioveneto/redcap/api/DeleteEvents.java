@@ -1,31 +1,19 @@
 package it.ioveneto.redcap.api;
 
-import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.message.BasicNameValuePair;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 
-public class DeleteEvents
+public class DeleteEvents extends APIRequest
 {
 	private final List<NameValuePair> params;
-	private final HttpPost post;
-	private HttpResponse resp;
-	private final HttpClient client;
-	private int respCode;
-	private BufferedReader reader;
-	private final StringBuffer result;
-	private String line;
 
 	public DeleteEvents(final String api_token, final String url, final String[] eventNames)
 	{
+		super(url, false);
+
 		params = new ArrayList<NameValuePair>();
 		params.add(new BasicNameValuePair("token", api_token));
 		params.add(new BasicNameValuePair("content", "event"));
@@ -36,68 +24,6 @@ public class DeleteEvents
 		}
 		//params.add(new BasicNameValuePair("events[0]", "event_1_arm_1"));
 
-		post = new HttpPost(url);
-		post.setHeader("Content-Type", "application/x-www-form-urlencoded");
-
-		try
-		{
-			post.setEntity(new UrlEncodedFormEntity(params));
-		}
-		catch (final Exception e)
-		{
-			e.printStackTrace();
-		}
-
-		result = new StringBuffer();
-		client = HttpClientBuilder.create().build();
-		respCode = -1;
-		reader = null;
-		line = null;
-	}
-
-	public void doPost()
-	{
-		resp = null;
-
-		try
-		{
-			resp = client.execute(post);
-		}
-		catch (final Exception e)
-		{
-			e.printStackTrace();
-		}
-
-		if(resp != null)
-		{
-			respCode = resp.getStatusLine().getStatusCode();
-
-			try
-			{
-				reader = new BufferedReader(new InputStreamReader(resp.getEntity().getContent()));
-			}
-			catch (final Exception e)
-			{
-				e.printStackTrace();
-			}
-		}
-
-		if(reader != null)
-		{
-			try
-			{
-				while((line = reader.readLine()) != null)
-				{
-					result.append(line);
-				}
-			}
-			catch (final Exception e)
-			{
-				e.printStackTrace();
-			}
-		}
-
-		System.out.println("respCode: " + respCode);
-		System.out.println("result: " + result.toString());
+		setParams(params);
 	}
 }
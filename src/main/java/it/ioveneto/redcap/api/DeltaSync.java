@@ -0,0 +1,167 @@
+package it.ioveneto.redcap.api;
+
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Properties;
+import java.util.function.BiFunction;
+
+/**
+ * Incremental synchronization of the records of a project. Each run exports only the records created or modified
+ * since the previous successful one, through the dateRangeBegin/dateRangeEnd parameters of {@link ExportRecords}.
+ * <p>
+ * The upper bound of every run (the watermark) is computed in the time zone of the REDCap server, a safety margin
+ * behind the current time to absorb clock skew between client and server, and it is sent explicitly as
+ * dateRangeEnd: the next run starts exactly from it, so no modification falls between two runs. The watermark is
+ * stored in a checkpoint file, atomically replaced and only after the export has been successfully handled, so
+ * that a failed run is simply repeated. Deleted records are not reported by the API and thus not synchronized.
+ * </p>
+ */
+public class DeltaSync {
+    private static final String WATERMARK = "watermark";
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern(Utilities.DATE_TIME_FORMAT);
+
+    private final Path checkpoint;
+    private final ZoneId serverZone;
+    private final long safetyMargin;
+
+    /**
+     * Basic constructor, assuming the REDCap server in the same time zone of the client and a safety margin of one
+     * minute
+     *
+     * @param checkpoint the file storing the watermark of the last successful run
+     */
+    public DeltaSync(final Path checkpoint) {
+        this(checkpoint, ZoneId.systemDefault(), 60000);
+    }
+
+    /**
+     * Complete constructor with all possible parameters
+     *
+     * @param checkpoint   the file storing the watermark of the last successful run
+     * @param serverZone   the time zone of the REDCap server, in which the API interprets date ranges
+     * @param safetyMargin how much (ms) the watermark is kept behind the current time. It must exceed the clock
+     *                     skew between client and server.
+     */
+    public DeltaSync(final Path checkpoint, final ZoneId serverZone, final long safetyMargin) {
+        if (checkpoint == null)
+            throw new IllegalArgumentException("Must provide the checkpoint file");
+        if (serverZone == null)
+            throw new IllegalArgumentException("Must provide the time zone of the REDCap server");
+        if (safetyMargin < 0)
+            throw new IllegalArgumentException("Safety margin cannot be negative");
+
+        this.checkpoint = checkpoint;
+        this.serverZone = serverZone;
+        this.safetyMargin = safetyMargin;
+    }
+
+    /**
+     * Exports the records modified since the last run, with raw values in flat layout
+     *
+     * @param api_token the token that defines the REDCap project of interest
+     * @param format    "csv", "json", "xml", "odm"; errors are reported in the same format, in "xml" for "odm"
+     * @param url       API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @return the exported records
+     */
+    public String sync(final String api_token, final String format, final String url) throws APICallException {
+        final String errorFormat = "odm".equals(format) ? "xml" : format;
+        return sync((begin, end) -> new ExportRecords(api_token, format, "flat", null, null, null, null, "raw", "raw",
+                false, errorFormat, false, false, begin, end, ",", ".", false, url, false));
+    }
+
+    /**
+     * Exports the records modified since the last run, returning the whole result
+     *
+     * @param request builds the export from the begin (null at the first run, to export all records) and end
+     *                timestamps of the range, to be passed as dateTimeBegin and dateTimeEnd of {@link ExportRecords}
+     * @return the exported records
+     */
+    public String sync(final BiFunction<String, String, ExportRecords> request) throws APICallException {
+        return sync(request, response -> response.getEntity() == null ? "" :
+                EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Exports the records modified since the last run, streaming them to a handler. The watermark advances only if
+     * the handler completes normally.
+     *
+     * @param request builds the export from the begin (null at the first run, to export all records) and end
+     *                timestamps of the range, to be passed as dateTimeBegin and dateTimeEnd of {@link ExportRecords}
+     * @param handler the handler reading the exported records
+     * @param <T>     the type of the value produced by the handler
+     * @return the value returned by the handler
+     */
+    public synchronized <T> T sync(final BiFunction<String, String, ExportRecords> request,
+                                   final ResponseHandler<? extends T> handler) throws APICallException {
+        final String begin = getWatermark();
+        LocalDateTime end = LocalDateTime.now(serverZone).minusNanos(safetyMargin * 1000000);
+        if (begin != null && end.isBefore(LocalDateTime.parse(begin, FORMATTER)))
+            end = LocalDateTime.parse(begin, FORMATTER);
+        final String watermark = end.format(FORMATTER);
+
+        final T result = request.apply(begin, watermark).doPost(handler);
+        storeWatermark(watermark);
+        return result;
+    }
+
+    /**
+     * Returns the upper bound of the last successful run
+     * @return the watermark as "YYYY-MM-DD HH:MM:SS" server time, null if no run has completed yet
+     */
+    public synchronized String getWatermark() throws APICallException {
+        if (!Files.exists(checkpoint))
+            return null;
+        final Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(checkpoint)) {
+            properties.load(in);
+        } catch (final IOException e) {
+            throw new APICallException("Cannot read sync checkpoint "+checkpoint+" - "+e.getMessage(), e);
+        }
+        return properties.getProperty(WATERMARK);
+    }
+
+    /**
+     * Forgets the watermark, so that the next run exports all the records
+     */
+    public synchronized void reset() throws APICallException {
+        try {
+            Files.deleteIfExists(checkpoint);
+        } catch (final IOException e) {
+            throw new APICallException("Cannot delete sync checkpoint "+checkpoint+" - "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes the watermark on a temporary file, then moves it over the checkpoint
+     */
+    private void storeWatermark(final String watermark) throws APICallException {
+        final Properties properties = new Properties();
+        properties.setProperty(WATERMARK, watermark);
+        final Path parent = checkpoint.toAbsolutePath().getParent();
+        try {
+            Files.createDirectories(parent);
+            final Path temp = Files.createTempFile(parent, checkpoint.getFileName().toString(), ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    properties.store(out, "REDCap delta sync checkpoint");
+                }
+                Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (final IOException e) {
+            throw new APICallException("Cannot write sync checkpoint "+checkpoint+" - "+e.getMessage(), e);
+        }
+    }
+}
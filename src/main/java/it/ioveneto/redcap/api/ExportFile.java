@@ -1,33 +1,35 @@
 package it.ioveneto.redcap.api;
 
-import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.message.BasicNameValuePair;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
-public class ExportFile
+public class ExportFile extends FileDownload
 {
 	private final List<NameValuePair> params;
-	private final HttpPost post;
-	private HttpResponse resp;
-	private final HttpClient client;
-	private int respCode;
-	private InputStream is;
-	private FileOutputStream fos;
-	private int read;
-	private final byte[] buf;
 
 	public ExportFile(final String api_token, final String format, final String url, final String event, final String field, final String record)
 	{
+		this(api_token, format, url, event, field, record, null);
+	}
+
+	/**
+	 * Constructor for file fields of repeating instruments or events
+	 * @param api_token      the token that defines the REDCap project of interest
+	 * @param format         unused, kept for symmetry with the other constructor
+	 * @param url            API endpoint (usually "https://myredcapdomain/redcap/api/")
+	 * @param event          the unique event name - only for longitudinal projects
+	 * @param field          the name of the file upload field
+	 * @param record         the record ID
+	 * @param repeatInstance the repeat instance number, null if not repeating
+	 */
+	public ExportFile(final String api_token, final String format, final String url, final String event, final String field, final String record, final String repeatInstance)
+	{
+		super(url, false);
+
 		params = new ArrayList<NameValuePair>();
 		params.add(new BasicNameValuePair("token", api_token));
 		params.add(new BasicNameValuePair("content", "file"));
@@ -41,96 +43,22 @@ public class ExportFile
 		params.add(new BasicNameValuePair("field", field));
 		params.add(new BasicNameValuePair("record", record));
 
-		post = new HttpPost(url);
-		post.setHeader("Content-Type", "application/x-www-form-urlencoded");
-
-		try
+		if(repeatInstance != null)
 		{
-			post.setEntity(new UrlEncodedFormEntity(params));
-		}
-		catch (final Exception e)
-		{
-			e.printStackTrace();
+			if(Utilities.checkNumberPositive(repeatInstance))
+				params.add(new BasicNameValuePair("repeat_instance", repeatInstance));
+			else
+				throw new IllegalArgumentException("must provide a positive instance number for a repeating instrument or repeating event");
 		}
 
-		client = HttpClientBuilder.create().build();
-		respCode = -1;
-		is = null;
-		fos = null;
-		read = 0;
-		buf = new byte[4096];
+		setParams(params);
 	}
 
-	public void doPost()
+	/**
+	 * Performs the request, saving the file of the field in "/tmp/file.raw"
+	 */
+	public void doPost() throws APICallException
 	{
-		resp = null;
-
-		try
-		{
-			resp = client.execute(post);
-		}
-		catch (final Exception e)
-		{
-			e.printStackTrace();
-		}
-
-		if(resp != null)
-		{
-			respCode = resp.getStatusLine().getStatusCode();
-			System.out.println("respCode: " + respCode);
-
-			if(respCode != 200)
-			{
-				return;
-			}
-
-			try
-			{
-				is = resp.getEntity().getContent();
-			}
-			catch (final Exception e)
-			{
-				e.printStackTrace();
-			}
-
-			try
-			{
-				fos = new FileOutputStream(new File("/tmp/file.raw"));
-			}
-			catch (final Exception e)
-			{
-				e.printStackTrace();
-			}
-
-			try
-			{
-				while((read = is.read(buf)) > 0)
-				{
-					fos.write(buf, 0, read);
-				}
-			}
-			catch (final Exception e)
-			{
-				e.printStackTrace();
-			}
-
-			try
-			{
-				fos.close();
-			}
-			catch (final Exception e)
-			{
-				e.printStackTrace();
-			}
-
-			try
-			{
-				is.close();
-			}
-			catch (final Exception e)
-			{
-				e.printStackTrace();
-			}
-		}
+		doPost(Paths.get("/tmp/file.raw"));
 	}
 }
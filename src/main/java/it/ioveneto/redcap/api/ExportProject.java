@@ -12,7 +12,7 @@ import java.util.List;
  * such as the project's title, if it is longitudinal, if surveys are enabled, the time the project was created and
  * moved to production, etc.
  */
-public class ExportProject extends APIRequest{
+public class ExportProject extends ExportRequest{
     private final List<NameValuePair> params;
     /**
      * Complete constructor with all parameters
@@ -61,4 +61,13 @@ public class ExportProject extends APIRequest{
 
     }
 
+    /**
+     * Project settings change rarely, so the response can be cached
+     * @return true
+     */
+    @Override
+    protected boolean isCacheable() {
+        return true;
+    }
+
 }
@@ -11,7 +11,7 @@ import java.util.List;
  * Allows to export a set of records for a project.
  *
  **/
-public class ExportRecords extends APIRequest{
+public class ExportRecords extends ExportRequest{
     private final List<NameValuePair> params;
 
     /**
@@ -251,7 +251,7 @@ public class ExportRecords extends APIRequest{
 
         if (dateTimeEnd != null){
             if (Utilities.isValidDate(dateTimeEnd))
-                params.add(new BasicNameValuePair("dateTimeEnd", dateTimeEnd));
+                params.add(new BasicNameValuePair("dateRangeEnd", dateTimeEnd));
             else
                 throw new IllegalArgumentException("Dates must be in this format \"YYYY-MM-DD HH:MM:SS\"");
         }
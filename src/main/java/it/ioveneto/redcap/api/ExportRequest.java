@@ -0,0 +1,26 @@
+package it.ioveneto.redcap.api;
+
+/**
+ * Base of the requests exporting data from a project. Exports do not change the project, so they are read-only:
+ * they can be retried after any failure and their responses can be shared by identical requests (see
+ * {@link RetryPolicy} and {@link RequestCoalescer}).
+ */
+public abstract class ExportRequest extends APIRequest {
+    /**
+     * Constructor of an export
+     * @param url       API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @param debugMode if true, HTTP response and result are printed on standard output
+     */
+    public ExportRequest(final String url, final boolean debugMode) {
+        super(url, debugMode);
+    }
+
+    /**
+     * Exports only read the project
+     * @return true
+     */
+    @Override
+    protected final boolean isReadOnly() {
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+package it.ioveneto.redcap.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Base of the requests downloading a file (e.g. {@link ExportFile}, {@link ExportInstrumentsPDF}), whose binary body
+ * is copied into a caller-supplied target instead of being read as a String. Downloads are never joined by the
+ * {@link RequestCoalescer} nor stored in the {@link ResponseCache}, and cannot be performed by
+ * {@link #doPostAsync()}, all of which would decode the body as text.
+ */
+abstract class FileDownload extends ExportRequest {
+    private String fileName;
+    private String contentType;
+
+    FileDownload(final String url, final boolean debugMode) {
+        super(url, debugMode);
+    }
+
+    /**
+     * Performs the request, saving the downloaded file in a file. The file is written by its channel pulling data
+     * straight from the connection.
+     * @param target the file to write, created or truncated
+     * @return the number of bytes written
+     */
+    public long doPost(final Path target) throws APICallException {
+        if (target == null)
+            throw new IllegalArgumentException("Must provide the target file");
+        return download(in -> FileTransfers.copy(in, target));
+    }
+
+    /**
+     * Performs the request, writing the downloaded file to a channel
+     * @param target the channel to write, not closed
+     * @return the number of bytes written
+     */
+    public long doPost(final WritableByteChannel target) throws APICallException {
+        if (target == null)
+            throw new IllegalArgumentException("Must provide the target channel");
+        return download(in -> FileTransfers.copy(in, target));
+    }
+
+    /**
+     * Performs the request, writing the downloaded file to a stream
+     * @param target the stream to write, not closed
+     * @return the number of bytes written
+     */
+    public long doPost(final OutputStream target) throws APICallException {
+        if (target == null)
+            throw new IllegalArgumentException("Must provide the target stream");
+        return download(in -> FileTransfers.copy(in, Channels.newChannel(target)));
+    }
+
+    /**
+     * Not supported, the body being binary: downloads are performed by the doPost methods taking a target
+     * @return a future failed with an {@link APICallException}
+     */
+    @Override
+    public CompletableFuture<APIResponse> doPostAsync() {
+        return CompletableFuture.failedFuture(new APICallException(
+                "Files cannot be downloaded asynchronously, use doPost with a target"));
+    }
+
+    /**
+     * Returns the name of the downloaded file, as sent by the server
+     * @return the file name, null if not sent or not yet executed
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Returns the MIME type of the downloaded file, as sent by the server
+     * @return the MIME type, null if not sent or not yet executed
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Binary responses are not shared
+     * @return false
+     */
+    @Override
+    boolean isShareable() {
+        return false;
+    }
+
+    private long download(final Transfer transfer) throws APICallException {
+        return doPost(resp -> {
+            fileName = FileTransfers.fileName(resp);
+            contentType = FileTransfers.mimeType(resp);
+
+            try (InputStream is = resp.getEntity().getContent()) {
+                return transfer.copy(is);
+            }
+        });
+    }
+
+    private interface Transfer {
+        long copy(InputStream in) throws IOException;
+    }
+}
@@ -0,0 +1,101 @@
+package it.ioveneto.redcap.api;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.entity.ContentType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Helpers shared by the requests downloading files: copy of response bodies to files and channels, and extraction
+ * of file name and MIME type from response headers.
+ */
+final class FileTransfers {
+    /** Bytes moved by each transfer step */
+    private static final int CHUNK = 1 << 20;
+
+    private FileTransfers() {
+    }
+
+    /**
+     * Copies a stream into a file, created or truncated, letting the file channel pull data from the stream
+     * @param in     the source stream, not closed
+     * @param target the target file
+     * @return the number of bytes copied
+     */
+    static long copy(final InputStream in, final Path target) throws IOException {
+        final ReadableByteChannel source = Channels.newChannel(in);
+        try (FileChannel file = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long transferred;
+            // transferFrom returns 0 only once the source has reached its end
+            while ((transferred = file.transferFrom(source, position, CHUNK)) > 0)
+                position += transferred;
+            return position;
+        }
+    }
+
+    /**
+     * Copies a stream into a channel through a direct buffer
+     * @param in     the source stream, not closed
+     * @param target the target channel, not closed
+     * @return the number of bytes copied
+     */
+    static long copy(final InputStream in, final WritableByteChannel target) throws IOException {
+        final ReadableByteChannel source = Channels.newChannel(in);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK / 4);
+        long copied = 0;
+        while (source.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                copied += target.write(buffer);
+            buffer.clear();
+        }
+        return copied;
+    }
+
+    /**
+     * Returns the MIME type of a response
+     * @param resp the response
+     * @return the MIME type, null if not sent by the server
+     */
+    static String mimeType(final HttpResponse resp) {
+        if (resp.getEntity() == null)
+            return null;
+        final ContentType contentType = ContentType.get(resp.getEntity());
+        return contentType == null ? null : contentType.getMimeType();
+    }
+
+    /**
+     * Returns the name of a downloaded file, as sent by REDCap in the "name" parameter of the Content-Type header or
+     * in the "filename" parameter of the Content-Disposition one
+     * @param resp the response
+     * @return the file name, null if not sent by the server
+     */
+    static String fileName(final HttpResponse resp) {
+        final String name = headerParameter(resp.getFirstHeader("Content-Type"), "name");
+        return name != null ? name : headerParameter(resp.getFirstHeader("Content-Disposition"), "filename");
+    }
+
+    private static String headerParameter(final Header header, final String parameter) {
+        if (header == null)
+            return null;
+        for (final HeaderElement element : header.getElements()) {
+            final NameValuePair value = element.getParameterByName(parameter);
+            if (value != null && value.getValue() != null && !value.getValue().isEmpty())
+                return value.getValue();
+        }
+        return null;
+    }
+}
@@ -1,110 +1,130 @@
 package it.ioveneto.redcap.api;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpPost;
+import org.apache.http.NameValuePair;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.message.BasicNameValuePair;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
-public class ImportFile
+public class ImportFile extends APIRequest
 {
-	private final HttpPost post;
-	private HttpResponse resp;
-	private final HttpClient client;
-	private int respCode;
-	private BufferedReader reader;
-	private final StringBuffer result;
-	private String line;
-	private final HttpEntity httpEntity;
-	private final MultipartEntityBuilder multipartEntityBuilder;
+	private static final ContentType OCTET_STREAM = ContentType.create("application/octet-stream");
 
+	private final List<NameValuePair> params;
+
+	/**
+	 * Constructor uploading into the field "file_upload"
+	 */
 	public ImportFile(final String api_token, final String url, final File file, final String recordID, final String eventName)
 	{
-		//file = new File("/tmp/example.png");
+		this(api_token, url, file.toPath(), recordID, eventName, "file_upload", null);
+	}
 
-		multipartEntityBuilder = MultipartEntityBuilder.create();
-		multipartEntityBuilder.addBinaryBody("file", file, ContentType.create("application/octet-stream"), file.getName());
-		multipartEntityBuilder.addTextBody("token", api_token);
-		multipartEntityBuilder.addTextBody("content", "file");
-		multipartEntityBuilder.addTextBody("action", "import");
+	/**
+	 * Constructor uploading a file from disk. The file is read while the request is sent, and is sent again if the
+	 * request is repeated.
+	 * @param api_token      the token that defines the REDCap project of interest, with import rights on the field
+	 * @param url            API endpoint (usually "https://myredcapdomain/redcap/api/")
+	 * @param file           the file to upload, whose name is sent as file name
+	 * @param record         the record ID
+	 * @param event          the unique event name - only for longitudinal projects, null otherwise
+	 * @param field          the name of the file upload field
+	 * @param repeatInstance the repeat instance number, null if not repeating
+	 */
+	public ImportFile(final String api_token, final String url, final Path file, final String record, final String event, final String field, final String repeatInstance)
+	{
+		this(api_token, url, record, event, field, repeatInstance, builder -> {
+			if(file == null)
+				throw new IllegalArgumentException("Must provide the file to upload");
+			builder.addBinaryBody("file", file.toFile(), OCTET_STREAM, file.getFileName().toString());
+		});
+	}
 
-		/*
-		params.add(new BasicNameValuePair("event", "event_1_arm_1"));
-		params.add(new BasicNameValuePair("record", "f21a3ffd37fc0b3c"));*/
+	/**
+	 * Constructor uploading the content of a stream, copied into the request while it is sent. The request can be sent
+	 * only once.
+	 * @param api_token      the token that defines the REDCap project of interest, with import rights on the field
+	 * @param url            API endpoint (usually "https://myredcapdomain/redcap/api/")
+	 * @param in             the content to upload, read up to its end and then closed
+	 * @param fileName       the name of the uploaded file
+	 * @param record         the record ID
+	 * @param event          the unique event name - only for longitudinal projects, null otherwise
+	 * @param field          the name of the file upload field
+	 * @param repeatInstance the repeat instance number, null if not repeating
+	 */
+	public ImportFile(final String api_token, final String url, final InputStream in, final String fileName, final String record, final String event, final String field, final String repeatInstance)
+	{
+		this(api_token, url, record, event, field, repeatInstance, builder -> {
+			if(in == null || fileName == null)
+				throw new IllegalArgumentException("Must provide the content and the name of the file to upload");
+			builder.addBinaryBody("file", in, OCTET_STREAM, fileName);
+		});
+	}
 
-		multipartEntityBuilder.addTextBody("record", recordID);
-		multipartEntityBuilder.addTextBody("field", "file_upload");
-		multipartEntityBuilder.addTextBody("event", eventName);
+	private ImportFile(final String api_token, final String url, final String record, final String event, final String field, final String repeatInstance, final FilePart file)
+	{
+		super(url, false);
 
-		httpEntity = multipartEntityBuilder.build();
+		if(api_token == null)
+			throw new IllegalArgumentException("Must provide a valid API token");
+		if(record == null || field == null)
+			throw new IllegalArgumentException("Must provide the record ID and the file field name");
 
-		post = new HttpPost(url);
+		params = new ArrayList<NameValuePair>();
+		params.add(new BasicNameValuePair("token", api_token));
+		params.add(new BasicNameValuePair("content", "file"));
+		params.add(new BasicNameValuePair("action", "import"));
+		params.add(new BasicNameValuePair("record", record));
+		params.add(new BasicNameValuePair("field", field));
 
-		try
-		{
-			post.setEntity(httpEntity);
-		}
-		catch (final Exception e)
+		if(event != null)
+			params.add(new BasicNameValuePair("event", event));
+
+		if(repeatInstance != null)
 		{
-			e.printStackTrace();
+			if(Utilities.checkNumberPositive(repeatInstance))
+				params.add(new BasicNameValuePair("repeat_instance", repeatInstance));
+			else
+				throw new IllegalArgumentException("must provide a positive instance number for a repeating instrument or repeating event");
 		}
 
-		result = new StringBuffer();
-		client = HttpClientBuilder.create().build();
-		respCode = -1;
-		reader = null;
-		line = null;
+		final MultipartEntityBuilder multipartEntityBuilder = MultipartEntityBuilder.create();
+		file.add(multipartEntityBuilder);
+		for(final NameValuePair param : params)
+			multipartEntityBuilder.addTextBody(param.getName(), param.getValue());
+
+		setEntity(params, multipartEntityBuilder.build());
 	}
 
-	public void doPost()
+	/**
+	 * Uploading the same file again replaces it with the same content, so the upload can be retried; uploads read
+	 * from a stream are never retried anyway, as their content can be sent only once
+	 * @return true
+	 */
+	@Override
+	protected boolean isIdempotent()
 	{
-		resp = null;
-
-		try
-		{
-			resp = client.execute(post);
-		}
-		catch (final Exception e)
-		{
-			e.printStackTrace();
-		}
-
-		if(resp != null)
-		{
-			respCode = resp.getStatusLine().getStatusCode();
-
-			try
-			{
-				reader = new BufferedReader(new InputStreamReader(resp.getEntity().getContent()));
-			}
-			catch (final Exception e)
-			{
-				e.printStackTrace();
-			}
-		}
+		return true;
+	}
 
-		if(reader != null)
-		{
-			try
-			{
-				while((line = reader.readLine()) != null)
-				{
-					result.append(line);
-				}
-			}
-			catch (final Exception e)
-			{
-				e.printStackTrace();
-			}
-		}
+	/**
+	 * Not supported, the multipart body of an upload being produced only while written to a blocking connection
+	 * @return a future failed with an {@link APICallException}
+	 */
+	@Override
+	public CompletableFuture<APIResponse> doPostAsync()
+	{
+		return CompletableFuture.failedFuture(new APICallException("Files cannot be uploaded asynchronously, use doPost()"));
+	}
 
-		System.out.println("respCode: " + respCode);
-		System.out.println("result: " + result.toString());
+	private interface FilePart
+	{
+		void add(MultipartEntityBuilder builder);
 	}
 }
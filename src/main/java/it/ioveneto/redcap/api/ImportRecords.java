@@ -1,10 +1,12 @@
 package it.ioveneto.redcap.api;
 
 import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
 
+import java.io.Reader;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.ArrayList;
@@ -14,9 +16,13 @@ import java.util.List;
  * Allows to import records inside a project.
  */
 public class ImportRecords extends APIRequest{
+    /** Allowed values of the returnContent parameter */
+    static final String[] RETURN_CONTENTS = {"count", "ids", "auto_ids"};
+
     private final List<NameValuePair> params;
     private final String recordID;
     private final SecureRandom random;
+    private final boolean forceAutoNumber;
 
 
 	/**
@@ -109,9 +115,43 @@ public class ImportRecords extends APIRequest{
      *                          standard output.
      */
     public ImportRecords(final String api_token, final String format, final String type, final String overwriteBehavior, final boolean forceAutoNumber, final String data, final String dateFormat, final String csvDelimiter, final String returnContent, final String errorFormat, final String url, final boolean debugMode) {
+		this(api_token, format, type, overwriteBehavior, forceAutoNumber, data, null, dateFormat, csvDelimiter, returnContent, errorFormat, url, debugMode);
+	}
+
+	/**
+	 * Complete constructor streaming the data to import: data is read from the reader and url-encoded while the
+	 * request is sent, so that large imports are never held in memory. The request can be performed only once.
+	 *
+	 * @param api_token         the token that defines the REDCap project of interest. Note about export rights: To use
+	 *                          this method, you must have API Import/Update privileges in the project.
+	 * @param format            "csv", "json", "xml", "odm" ('odm' refers to CDISC ODM XML format, specifically ODM
+	 *                          version 1.3.1).
+	 * @param type              "flat" - inputs as one record per row
+	 *                          "eav" - inputs as one data point per row
+	 * @param overwriteBehavior "normal" - blank/empty values will be ignored
+	 *                          "overwrite" - blank/empty values are valid and will overwrite data
+	 * @param forceAutoNumber   whether record names are automatically determined by REDCap, see
+	 *                          {@link #ImportRecords(String, String, String, String, boolean, String, String, String, String, String, String, boolean)}
+	 * @param data              the formatted data to be imported, closed once sent
+	 * @param dateFormat        "MDY", "DMY", "YMD" - the format of values being imported for dates or datetime fields
+	 * @param csvDelimiter      Set the delimiter used to separate values in the CSV data file (for CSV format only).
+	 *                          Options include: comma ',', 'tab', semi-colon ';', pipe '|', or caret '^'.
+	 * @param returnContent     "count", "ids", "auto_ids" - see
+	 *                          {@link #ImportRecords(String, String, String, String, boolean, String, String, String, String, String, String, boolean)}
+	 * @param errorFormat       "csv", "json", "xml" - specifies the format of error messages.
+	 * @param url               API endpoint (usually "https://myredcapdomain/redcap/api/")
+	 * @param debugMode         if set to "true", doPost() invocation will print out http response and output on the
+	 *                          standard output.
+	 */
+	public ImportRecords(final String api_token, final String format, final String type, final String overwriteBehavior, final boolean forceAutoNumber, final Reader data, final String dateFormat, final String csvDelimiter, final String returnContent, final String errorFormat, final String url, final boolean debugMode) {
+		this(api_token, format, type, overwriteBehavior, forceAutoNumber, null, data, dateFormat, csvDelimiter, returnContent, errorFormat, url, debugMode);
+	}
+
+	private ImportRecords(final String api_token, final String format, final String type, final String overwriteBehavior, final boolean forceAutoNumber, final String data, final Reader dataReader, final String dateFormat, final String csvDelimiter, final String returnContent, final String errorFormat, final String url, final boolean debugMode) {
 
 		super(url, debugMode);
 
+        this.forceAutoNumber = forceAutoNumber;
         random = new SecureRandom();
         recordID = DigestUtils.sha1Hex(new BigInteger(16, random).toString(16)).substring(0, 16);
 
@@ -181,9 +221,9 @@ public class ImportRecords extends APIRequest{
 		else
 			params.add(new BasicNameValuePair("forceAutoNumber", "false"));
 
-        if (data == null)
+        if (data == null && dataReader == null)
 			throw new IllegalArgumentException("Must provide data to inset as String");
-		else
+		else if (data != null)
 			params.add(new BasicNameValuePair("data", data));
 
 		if (dateFormat == null)
@@ -207,8 +247,8 @@ public class ImportRecords extends APIRequest{
 		if (returnContent == null)
 			params.add(new BasicNameValuePair("returnContent", "count"));
 		else {
-			if (StringUtils.indexOfAny(returnContent, new String[]{"count", "ids", "auto-ids"}) == -1)
-				throw new IllegalArgumentException("Allowed return contents: \"count\" (default), \"ids\", \"auto-ids\"");
+			if (!ArrayUtils.contains(RETURN_CONTENTS, returnContent))
+				throw new IllegalArgumentException("Allowed return contents: \"count\" (default), \"ids\", \"auto_ids\"");
 			else
 				params.add(new BasicNameValuePair("returnContent", returnContent));
 		}
@@ -222,7 +262,20 @@ public class ImportRecords extends APIRequest{
 				params.add(new BasicNameValuePair("returnFormat", errorFormat));
 		}
 
-		super.setParams(params);
+		if (dataReader != null)
+			super.setParams(params, "data", dataReader);
+		else
+			super.setParams(params);
+    }
+
+    /**
+     * Importing the same records twice leaves the project as importing them once, unless record names are assigned by
+     * auto-numbering: such imports are retried only when the server surely did not process them
+     * @return true if forceAutoNumber is off
+     */
+    @Override
+    protected boolean isIdempotent() {
+        return !forceAutoNumber;
     }
 
 }
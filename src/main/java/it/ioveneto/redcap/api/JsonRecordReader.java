@@ -0,0 +1,185 @@
+package it.ioveneto.redcap.api;
+
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Pull parser of records exported in json format (format=json of {@link ExportRecords} and {@link ExportReports}).
+ * The export, a json array of flat objects, is read incrementally and returned one record at a time as a map from
+ * field name to value, so memory use does not depend on the size of the export. Field names are shared among all
+ * the records returned.
+ * <p>
+ * Typical use, on a streamed export:
+ * </p>
+ * <pre>
+ * try (JsonRecordReader records = new JsonRecordReader(exportRecords.doPostStream())) {
+ *     while (records.hasNext())
+ *         load(records.next());
+ * }
+ * </pre>
+ */
+public class JsonRecordReader implements Iterator<Map<String, String>>, Closeable {
+    private final Reader reader;
+    private final JSONParser parser;
+    private final RecordHandler handler;
+    private Map<String, String> next;
+    private boolean started;
+    private boolean finished;
+
+    /**
+     * Constructor reading an UTF-8 encoded export
+     * @param in the export, closed by {@link #close()}
+     */
+    public JsonRecordReader(final InputStream in) {
+        this(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Constructor reading an export
+     * @param reader the export, closed by {@link #close()}
+     */
+    public JsonRecordReader(final Reader reader) {
+        if (reader == null)
+            throw new IllegalArgumentException("Must provide the export to read");
+        this.reader = reader;
+        parser = new JSONParser();
+        handler = new RecordHandler();
+    }
+
+    /**
+     * Checks whether there are more records, reading the export up to the end of the next one
+     * @return true if a record is available
+     */
+    @Override
+    public boolean hasNext() throws APICallException {
+        if (next == null && !finished)
+            advance();
+        return next != null;
+    }
+
+    /**
+     * Returns the next record
+     * @return the record as map from field name to value, in export order
+     */
+    @Override
+    public Map<String, String> next() throws APICallException {
+        if (!hasNext())
+            throw new NoSuchElementException("No more records in export");
+        final Map<String, String> record = next;
+        next = null;
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        reader.close();
+    }
+
+    /**
+     * Resumes parsing until the end of the next record, or of the export
+     */
+    private void advance() {
+        handler.completed = null;
+        try {
+            parser.parse(reader, handler, started);
+        } catch (final IOException | ParseException e) {
+            finished = true;
+            throw new APICallException("Failure in parsing json records - "+e.getMessage(), e);
+        }
+        started = true;
+        next = handler.completed;
+        if (next == null)
+            finished = true;
+    }
+
+    /**
+     * Builds records from parse events, pausing the parser at the end of each one
+     */
+    private static class RecordHandler implements ContentHandler {
+        private final Map<String, String> fieldNames = new HashMap<String, String>();
+        private Map<String, String> record;
+        private Map<String, String> completed;
+        private String field;
+        private int depth;
+        private int recordDepth;
+        private int lastSize = 16;
+
+        @Override
+        public void startJSON() {
+            depth = 0;
+        }
+
+        @Override
+        public void endJSON() {
+        }
+
+        @Override
+        public boolean startObject() {
+            depth++;
+            // records are the objects of the top level array, or the top level object itself
+            if (record == null && depth <= 2) {
+                record = new LinkedHashMap<String, String>(lastSize * 4 / 3 + 1);
+                recordDepth = depth;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean endObject() {
+            depth--;
+            if (record != null && depth < recordDepth) {
+                completed = record;
+                lastSize = record.size();
+                record = null;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean startObjectEntry(final String key) {
+            final String shared = fieldNames.putIfAbsent(key, key);
+            field = shared == null ? key : shared;
+            return true;
+        }
+
+        @Override
+        public boolean endObjectEntry() {
+            return true;
+        }
+
+        @Override
+        public boolean startArray() {
+            depth++;
+            return true;
+        }
+
+        @Override
+        public boolean endArray() {
+            depth--;
+            return true;
+        }
+
+        @Override
+        public boolean primitive(final Object value) {
+            // values nested deeper than the record fields are not part of REDCap records and are skipped
+            if (record != null && depth == recordDepth)
+                record.put(field, value == null ? null : value.toString());
+            return true;
+        }
+    }
+}
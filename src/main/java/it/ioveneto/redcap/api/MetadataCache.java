@@ -0,0 +1,228 @@
+package it.ioveneto.redcap.api;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * In-memory cache of the structure of REDCap projects: metadata (data dictionary), instruments, events, arms and
+ * instrument-event mappings. These change rarely but are needed before most data operations, so they are fetched once
+ * and then served from memory until their time to live expires.
+ * <ul>
+ *     <li>entries are kept by endpoint, API token, content and format, up to a maximum number; the least recently
+ *     used are evicted first;</li>
+ *     <li>concurrent lookups of a missing or expired entry are served by a single API call, the other callers waiting
+ *     for its result (single flight) up to the load timeout; failed calls are not cached;</li>
+ *     <li>entries of a project can be dropped with {@link #invalidate(String, String)} after changing its structure,
+ *     e.g. after importing metadata or events.</li>
+ * </ul>
+ */
+public class MetadataCache {
+    /** Default time (ms) an entry is served before being fetched again */
+    public static final long DEFAULT_TTL = 3600000;
+    /** Default maximum number of entries */
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+    /** Default time (ms) allowed to fetch an entry, and to wait for it */
+    public static final long DEFAULT_LOAD_TIMEOUT = 120000;
+
+    private final long ttl;
+    private final int maxEntries;
+    private final long loadTimeout;
+    private final RedcapTransport transport;
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Constructor with default settings: entries kept for one hour, up to 256, fetched through the default transport
+     */
+    public MetadataCache() {
+        this(DEFAULT_TTL, DEFAULT_MAX_ENTRIES, null);
+    }
+
+    /**
+     * Constructor with the default load timeout
+     *
+     * @param ttl        the time (ms) an entry is served before being fetched again
+     * @param maxEntries the maximum number of entries
+     * @param transport  the transport used to fetch entries, null for the default one
+     */
+    public MetadataCache(final long ttl, final int maxEntries, final RedcapTransport transport) {
+        this(ttl, maxEntries, transport, DEFAULT_LOAD_TIMEOUT);
+    }
+
+    /**
+     * Complete constructor with all possible parameters
+     *
+     * @param ttl         the time (ms) an entry is served before being fetched again
+     * @param maxEntries  the maximum number of entries
+     * @param transport   the transport used to fetch entries, null for the default one
+     * @param loadTimeout the time (ms) allowed to fetch an entry (the deadline of its call), and to callers waiting
+     *                    for it
+     */
+    public MetadataCache(final long ttl, final int maxEntries, final RedcapTransport transport, final long loadTimeout) {
+        if (ttl <= 0 || maxEntries <= 0 || loadTimeout <= 0)
+            throw new IllegalArgumentException("Time to live, maximum entries and load timeout must be positive");
+
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+        this.loadTimeout = loadTimeout;
+        this.transport = transport;
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                return size() > MetadataCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the metadata (data dictionary) of a project, as exported by {@link ExportMetatdata}
+     * @param api_token the token that defines the REDCap project of interest
+     * @param format    "csv", "json", "xml"
+     * @param url       API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @return the metadata
+     */
+    public String getMetadata(final String api_token, final String format, final String url) throws APICallException {
+        return get(api_token, "metadata", format, url, () -> new ExportMetatdata(api_token, format, url));
+    }
+
+    /**
+     * Returns the instruments of a project, as exported by {@link ExportInstruments}
+     * @param api_token the token that defines the REDCap project of interest
+     * @param format    "csv", "json", "xml"
+     * @param url       API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @return the instruments
+     */
+    public String getInstruments(final String api_token, final String format, final String url) throws APICallException {
+        return get(api_token, "instrument", format, url, () -> new ExportInstruments(api_token, format, url));
+    }
+
+    /**
+     * Returns the events of a project, as exported by {@link ExportEvents}
+     * @param api_token the token that defines the REDCap project of interest
+     * @param format    "csv", "json", "xml"
+     * @param url       API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @return the events
+     */
+    public String getEvents(final String api_token, final String format, final String url) throws APICallException {
+        return get(api_token, "event", format, url, () -> new ExportEvents(api_token, format, url));
+    }
+
+    /**
+     * Returns the arms of a project, as exported by {@link ExportArms}
+     * @param api_token the token that defines the REDCap project of interest
+     * @param format    "csv", "json", "xml"
+     * @param url       API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @return the arms
+     */
+    public String getArms(final String api_token, final String format, final String url) throws APICallException {
+        return get(api_token, "arm", format, url, () -> new ExportArms(api_token, format, url));
+    }
+
+    /**
+     * Returns the instrument-event mappings of a project, as exported by {@link ExportInstrumentEventMaps}
+     * @param api_token the token that defines the REDCap project of interest
+     * @param format    "csv", "json", "xml"
+     * @param url       API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @return the instrument-event mappings
+     */
+    public String getInstrumentEventMaps(final String api_token, final String format, final String url) throws APICallException {
+        return get(api_token, "formEventMapping", format, url, () -> new ExportInstrumentEventMaps(api_token, format, url));
+    }
+
+    /**
+     * Drops the entries of a project, so that they are fetched again at the next lookup
+     * @param api_token the token that defines the REDCap project
+     * @param url       API endpoint
+     */
+    public synchronized void invalidate(final String api_token, final String url) {
+        final String prefix = url + '\n' + api_token + '\n';
+        for (final Iterator<String> keys = entries.keySet().iterator(); keys.hasNext(); ) {
+            if (keys.next().startsWith(prefix))
+                keys.remove();
+        }
+    }
+
+    /**
+     * Drops all the entries
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of entries, loading or expired ones included
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns an entry, fetching it if missing or expired; only one caller fetches it, the others wait
+     */
+    private String get(final String api_token, final String content, final String format, final String url,
+                       final Supplier<APIRequest> request) throws APICallException {
+        final String key = url + '\n' + api_token + '\n' + content + '\n' + format;
+        final Entry entry;
+        boolean loader = false;
+        synchronized (this) {
+            Entry current = entries.get(key);
+            if (current == null || current.expiresAt <= System.currentTimeMillis()) {
+                current = new Entry();
+                entries.put(key, current);
+                loader = true;
+            }
+            entry = current;
+        }
+
+        if (loader)
+            load(key, entry, request);
+        try {
+            return entry.value.get(loadTimeout, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            throw new APICallException("Timeout of "+loadTimeout+" ms exceeded waiting for cached entry", e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new APICallException("Interrupted while waiting for cached entry", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof APICallException)
+                throw (APICallException) e.getCause();
+            throw new APICallException("Failure in loading cached entry - "+e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Fetches an entry, dropping it if the call fails; waiters are always released, whatever the failure
+     */
+    private void load(final String key, final Entry entry, final Supplier<APIRequest> supplier) {
+        try {
+            final APIRequest request = supplier.get();
+            if (transport != null)
+                request.setTransport(transport);
+            request.setDeadline(loadTimeout);
+            request.doPost();
+            entry.expiresAt = System.currentTimeMillis() + ttl;
+            entry.value.complete(request.getResult());
+        } catch (final Throwable e) {
+            synchronized (this) {
+                entries.remove(key, entry);
+            }
+            entry.value.completeExceptionally(e);
+            if (e instanceof Error)
+                throw (Error) e;
+        }
+    }
+
+    /**
+     * Cached value, loading until its future is completed
+     */
+    private static final class Entry {
+        private final CompletableFuture<String> value = new CompletableFuture<String>();
+        private volatile long expiresAt = Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,108 @@
+package it.ioveneto.redcap.api;
+
+import java.util.Map;
+
+/**
+ * Receives the content of a CDISC ODM document (format=odm of {@link ExportRecords}, {@link ExportProjectXML}) as it
+ * is streamed by {@link OdmStreamReader}. Clinical data is reported as a sequence of nested start/end events down to
+ * single item values, metadata (the content of the Study element) as separate element events. All methods do nothing
+ * by default, so only the events of interest need to be implemented.
+ */
+public interface OdmEventHandler {
+
+    /**
+     * Start of an element of the study metadata (Study, GlobalVariables, MetaDataVersion, FormDef, ItemDef, CodeList,
+     * ...)
+     *
+     * @param element    the element name, prefixed by its namespace prefix for non-ODM elements (e.g. "redcap:...")
+     * @param attributes the attributes of the element, with the same naming of element
+     */
+    default void startMetadata(final String element, final Map<String, String> attributes) {
+    }
+
+    /**
+     * Text content of an element of the study metadata (e.g. StudyName, TranslatedText), reported before its end
+     *
+     * @param element the element name
+     * @param text    the text, trimmed; never empty
+     */
+    default void metadataText(final String element, final String text) {
+    }
+
+    /**
+     * End of an element of the study metadata
+     *
+     * @param element the element name
+     */
+    default void endMetadata(final String element) {
+    }
+
+    /**
+     * Start of the data of a subject (a REDCap record)
+     *
+     * @param subjectKey the record ID
+     */
+    default void startSubjectData(final String subjectKey) {
+    }
+
+    /**
+     * Start of the data of an event of the current subject
+     *
+     * @param studyEventOID       the event OID
+     * @param studyEventRepeatKey the repeat key of repeating events, null otherwise
+     */
+    default void startStudyEventData(final String studyEventOID, final String studyEventRepeatKey) {
+    }
+
+    /**
+     * Start of the data of an instrument of the current event
+     *
+     * @param formOID       the instrument OID
+     * @param formRepeatKey the repeat key of repeating instruments, null otherwise
+     */
+    default void startFormData(final String formOID, final String formRepeatKey) {
+    }
+
+    /**
+     * Start of a group of items of the current instrument
+     *
+     * @param itemGroupOID the item group OID
+     */
+    default void startItemGroupData(final String itemGroupOID) {
+    }
+
+    /**
+     * Value of a field
+     *
+     * @param itemOID the field OID
+     * @param value   the value
+     */
+    default void itemData(final String itemOID, final String value) {
+    }
+
+    /**
+     * End of the current group of items
+     */
+    default void endItemGroupData() {
+    }
+
+    /**
+     * End of the current instrument
+     */
+    default void endFormData() {
+    }
+
+    /**
+     * End of the current event
+     */
+    default void endStudyEventData() {
+    }
+
+    /**
+     * End of the data of the current subject
+     *
+     * @param subjectKey the record ID
+     */
+    default void endSubjectData(final String subjectKey) {
+    }
+}
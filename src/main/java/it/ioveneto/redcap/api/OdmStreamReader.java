@@ -0,0 +1,204 @@
+package it.ioveneto.redcap.api;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Streaming reader of CDISC ODM documents, as returned by {@link ExportRecords} with format=odm and by
+ * {@link ExportProjectXML}. The document is read with StAX and reported to an {@link OdmEventHandler} element by
+ * element, so that exports of any size can be processed with bounded memory: clinical data as
+ * SubjectData/StudyEventData/FormData/ItemGroupData/ItemData events, metadata (the content of Study) as separate
+ * element events. Other sections (AdminData, ReferenceData, ...) are skipped.
+ * <p>
+ * Typical use, on a streamed export:
+ * </p>
+ * <pre>
+ * try (OdmStreamReader odm = new OdmStreamReader(exportProjectXML.doPostStream())) {
+ *     odm.read(handler);
+ * }
+ * </pre>
+ */
+public class OdmStreamReader implements Closeable {
+    private static final XMLInputFactory FACTORY = newInputFactory();
+
+    private final InputStream in;
+    private final XMLStreamReader xml;
+
+    /**
+     * Constructor reading a document
+     * @param in the ODM document, closed by {@link #close()}
+     */
+    public OdmStreamReader(final InputStream in) throws APICallException {
+        if (in == null)
+            throw new IllegalArgumentException("Must provide the document to read");
+        this.in = in;
+        try {
+            xml = FACTORY.createXMLStreamReader(in);
+        } catch (final XMLStreamException e) {
+            throw new APICallException("Failure in reading ODM document - "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the whole document, reporting its content to the handler
+     * @param handler the handler receiving the events
+     */
+    public void read(final OdmEventHandler handler) throws APICallException {
+        if (handler == null)
+            throw new IllegalArgumentException("Must provide a handler");
+
+        int metadataDepth = 0;
+        boolean clinicalData = false;
+        String subjectKey = null;
+        String textElement = null;
+        final StringBuilder text = new StringBuilder();
+
+        try {
+            while (xml.hasNext()) {
+                final int event = xml.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    final String name = xml.getLocalName();
+                    if (metadataDepth > 0 || (!clinicalData && name.equals("Study"))) {
+                        flushText(handler, textElement, text);
+                        metadataDepth++;
+                        textElement = qualifiedName(xml.getPrefix(), name);
+                        handler.startMetadata(textElement, attributes());
+                    } else if (name.equals("ODM")) {
+                        continue;
+                    } else if (name.equals("ClinicalData")) {
+                        clinicalData = true;
+                    } else if (clinicalData) {
+                        switch (name) {
+                            case "SubjectData":
+                                subjectKey = attribute("SubjectKey");
+                                handler.startSubjectData(subjectKey);
+                                break;
+                            case "StudyEventData":
+                                handler.startStudyEventData(attribute("StudyEventOID"), attribute("StudyEventRepeatKey"));
+                                break;
+                            case "FormData":
+                                handler.startFormData(attribute("FormOID"), attribute("FormRepeatKey"));
+                                break;
+                            case "ItemGroupData":
+                                handler.startItemGroupData(attribute("ItemGroupOID"));
+                                break;
+                            case "ItemData":
+                                handler.itemData(attribute("ItemOID"), attribute("Value"));
+                                break;
+                            default:
+                                // typed item values (ItemDataString, ItemDataBase64Binary, ...) carry the value as text
+                                if (name.startsWith("ItemData")) {
+                                    final String itemOID = attribute("ItemOID");
+                                    handler.itemData(itemOID, xml.getElementText());
+                                }
+                        }
+                    } else
+                        skipElement();
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    final String name = xml.getLocalName();
+                    if (metadataDepth > 0) {
+                        final String element = qualifiedName(xml.getPrefix(), name);
+                        if (element.equals(textElement))
+                            flushText(handler, textElement, text);
+                        textElement = null;
+                        text.setLength(0);
+                        metadataDepth--;
+                        handler.endMetadata(element);
+                    } else if (clinicalData) {
+                        switch (name) {
+                            case "ClinicalData":
+                                clinicalData = false;
+                                break;
+                            case "SubjectData":
+                                handler.endSubjectData(subjectKey);
+                                subjectKey = null;
+                                break;
+                            case "StudyEventData":
+                                handler.endStudyEventData();
+                                break;
+                            case "FormData":
+                                handler.endFormData();
+                                break;
+                            case "ItemGroupData":
+                                handler.endItemGroupData();
+                                break;
+                            default:
+                        }
+                    }
+                } else if (metadataDepth > 0 && textElement != null && (event == XMLStreamConstants.CHARACTERS
+                        || event == XMLStreamConstants.CDATA)) {
+                    text.append(xml.getText());
+                }
+            }
+        } catch (final XMLStreamException e) {
+            throw new APICallException("Failure in reading ODM document - "+e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            xml.close();
+        } catch (final XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns a StAX factory hardened against external entities and DTDs, coalescing text and CDATA sections
+     * @return the factory
+     */
+    static XMLInputFactory newInputFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    private void flushText(final OdmEventHandler handler, final String element, final StringBuilder text) {
+        if (element != null) {
+            final String trimmed = text.toString().trim();
+            if (!trimmed.isEmpty())
+                handler.metadataText(element, trimmed);
+        }
+        text.setLength(0);
+    }
+
+    private String attribute(final String name) {
+        return xml.getAttributeValue(null, name);
+    }
+
+    private Map<String, String> attributes() {
+        final Map<String, String> attributes = new LinkedHashMap<String, String>();
+        for (int i = 0; i < xml.getAttributeCount(); i++)
+            attributes.put(qualifiedName(xml.getAttributePrefix(i), xml.getAttributeLocalName(i)), xml.getAttributeValue(i));
+        return attributes;
+    }
+
+    private void skipElement() throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            final int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+
+    private static String qualifiedName(final String prefix, final String localName) {
+        return prefix == null || prefix.equals(XMLConstants.DEFAULT_NS_PREFIX) ? localName : prefix + ":" + localName;
+    }
+}
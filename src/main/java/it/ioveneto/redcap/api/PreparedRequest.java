@@ -0,0 +1,169 @@
+package it.ioveneto.redcap.api;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Immutable template of a request performed many times with a single varying param, e.g. point lookups of records
+ * with an {@link ExportRecords} differing only in "records". The fixed params are validated once by the request
+ * the template is prepared from, and encoded once; each execution only encodes the bound value and sends a new call
+ * through the pipeline of the transport, so a template can be executed by many threads at the same time.
+ * <pre>
+ *     final PreparedRequest lookup = new PreparedRequest(new ExportRecords(token, "json", "flat", null, null,
+ *             "record_id,age", null, "raw", "raw", false, "json", false, false, null, null, ",", ".", false, url,
+ *             false), "records");
+ *     final String record = lookup.execute("1001").getResult();
+ * </pre>
+ */
+public final class PreparedRequest {
+    private static final ContentType FORM = ContentType.create("application/x-www-form-urlencoded", StandardCharsets.UTF_8);
+
+    private final String url;
+    private final String boundName;
+    private final byte[] encodedName;
+    private final byte[] fixed;
+    private final List<NameValuePair> identity;
+    private final boolean idempotent;
+    private final boolean readOnly;
+    private final boolean cacheable;
+    private final Call settings;
+
+    /**
+     * Prepares a template from a request, taking its params and its settings (transport, retry policy, timeouts,
+     * deadline, debug mode) as they are now; later changes of the request do not affect the template.
+     *
+     * @param template  the request with the fixed params, already validated; a value of the bound param, if any, is
+     *                  dropped
+     * @param boundName the name of the param bound at each execution (e.g. "records")
+     */
+    public PreparedRequest(final APIRequest template, final String boundName) {
+        if (template == null)
+            throw new IllegalArgumentException("Must provide the request to prepare");
+        if (boundName == null || boundName.isEmpty())
+            throw new IllegalArgumentException("Must provide the name of the bound param");
+        if (template instanceof FileDownload)
+            throw new IllegalArgumentException("File downloads cannot be prepared, their responses are binary");
+        if (!(template.post.getEntity() instanceof UrlEncodedFormEntity))
+            throw new IllegalArgumentException("Only requests with url-encoded params can be prepared");
+
+        final List<NameValuePair> params;
+        try {
+            params = URLEncodedUtils.parse(EntityUtils.toString(template.post.getEntity(), StandardCharsets.UTF_8),
+                    StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            throw new IllegalArgumentException("Params of the request cannot be read - "+e.getMessage(), e);
+        }
+
+        final List<NameValuePair> kept = new ArrayList<NameValuePair>(params.size());
+        identity = new ArrayList<NameValuePair>(2);
+        for (final NameValuePair param : params) {
+            if (boundName.equals(param.getName()))
+                continue;
+            kept.add(param);
+            if ("token".equals(param.getName()) || "content".equals(param.getName()))
+                identity.add(new BasicNameValuePair(param.getName(), param.getValue()));
+        }
+
+        this.url = template.getEndpoint();
+        this.boundName = boundName;
+        encodedName = ("&" + encode(boundName) + "=").getBytes(StandardCharsets.US_ASCII);
+        fixed = URLEncodedUtils.format(kept, StandardCharsets.UTF_8).getBytes(StandardCharsets.US_ASCII);
+        idempotent = template.isIdempotent();
+        readOnly = template.isReadOnly();
+        cacheable = template.isCacheable();
+        settings = new Call(this, null);
+        settings.inherit(template);
+    }
+
+    /**
+     * Performs a call with a value of the bound param, blocking until the response is read. Like
+     * {@link #executeAsync(String)}, it is served by the response cache and joins identical calls in flight when the
+     * transport has them.
+     * @param value the value of the bound param, null to omit it
+     * @return the response
+     */
+    public APIResponse execute(final String value) throws APICallException {
+        return new Call(this, value).doPostShared();
+    }
+
+    /**
+     * Performs a call with a value of the bound param, without blocking the calling thread
+     * @param value the value of the bound param, null to omit it
+     * @return a future completed with the response, or exceptionally with an {@link APICallException}
+     */
+    public CompletableFuture<APIResponse> executeAsync(final String value) {
+        return new Call(this, value).doPostAsync();
+    }
+
+    /**
+     * Returns the name of the bound param
+     * @return the name given at preparation
+     */
+    public String getBoundName() {
+        return boundName;
+    }
+
+    /**
+     * Builds the body of a call: the fixed params encoded once, followed by the bound one
+     */
+    private byte[] body(final String value) {
+        if (value == null)
+            return fixed;
+        final byte[] encodedValue = encode(value).getBytes(StandardCharsets.US_ASCII);
+        final byte[] body = new byte[fixed.length + encodedName.length + encodedValue.length];
+        System.arraycopy(fixed, 0, body, 0, fixed.length);
+        System.arraycopy(encodedName, 0, body, fixed.length, encodedName.length);
+        System.arraycopy(encodedValue, 0, body, fixed.length + encodedName.length, encodedValue.length);
+        return body;
+    }
+
+    private static String encode(final String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Single call of a template, with its own mutable state
+     */
+    private static final class Call extends APIRequest {
+        private final boolean idempotent;
+        private final boolean readOnly;
+        private final boolean cacheable;
+
+        Call(final PreparedRequest prepared, final String value) {
+            super(prepared.url, false);
+            idempotent = prepared.idempotent;
+            readOnly = prepared.readOnly;
+            cacheable = prepared.cacheable;
+            if (prepared.settings != null)
+                inherit(prepared.settings);
+            setEntity(prepared.identity, new ByteArrayEntity(prepared.body(value), FORM));
+        }
+
+        @Override
+        protected boolean isIdempotent() {
+            return idempotent;
+        }
+
+        @Override
+        protected boolean isReadOnly() {
+            return readOnly;
+        }
+
+        @Override
+        protected boolean isCacheable() {
+            return cacheable;
+        }
+    }
+}
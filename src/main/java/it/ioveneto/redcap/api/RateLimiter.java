@@ -0,0 +1,183 @@
+package it.ioveneto.redcap.api;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Client-side token bucket limiting the rate of the API calls, so that parallel jobs sharing a token do not exceed the
+ * per-user rate limit enforced by REDCap. Calls are counted by API token and, optionally, by content type ("record",
+ * "file", "log"...), each key having its own bucket of burst permits refilled at the given rate.
+ * <p>
+ * Permits are reserved in arrival order: a caller finding the bucket empty takes a permit in advance and waits for the
+ * time it needs to be refilled, so callers never exceed the rate and the bucket never stays idle while callers wait.
+ * {@link #acquire(String, String)} waits blocking the calling thread, {@link #acquireAsync(String, String)} returns a
+ * future completed by a scheduler thread when the permit is available; a permit whose wait is given up is returned
+ * to the bucket. A limiter attached to a {@link RedcapTransport} with
+ * {@link RedcapTransport#setRateLimiter(RateLimiter)} is applied to every attempt of every request using it.
+ * </p>
+ */
+public class RateLimiter {
+    private final double permitsPerSecond;
+    private final int burst;
+    private final boolean perContent;
+    private final ConcurrentMap<String, Bucket> buckets;
+
+    /**
+     * Constructor of a limiter keyed by API token only
+     *
+     * @param permitsPerSecond the allowed calls per second for each token
+     * @param burst            the maximum number of calls allowed at once after an idle period
+     */
+    public RateLimiter(final double permitsPerSecond, final int burst) {
+        this(permitsPerSecond, burst, false);
+    }
+
+    /**
+     * Complete constructor with all possible parameters
+     *
+     * @param permitsPerSecond the allowed calls per second for each key
+     * @param burst            the maximum number of calls allowed at once after an idle period
+     * @param perContent       if true calls are limited by API token and content type, otherwise by API token only
+     */
+    public RateLimiter(final double permitsPerSecond, final int burst, final boolean perContent) {
+        if (!(permitsPerSecond > 0) || burst <= 0)
+            throw new IllegalArgumentException("Rate and burst must be positive");
+
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.perContent = perContent;
+        buckets = new ConcurrentHashMap<String, Bucket>();
+    }
+
+    /**
+     * Takes a permit, waiting until it is available
+     *
+     * @param token   the API token of the call
+     * @param content the content type of the call, may be null
+     */
+    public void acquire(final String token, final String content) throws APICallException {
+        final Bucket bucket = bucket(token, content);
+        final long deadline = System.nanoTime() + bucket.reserve(permitsPerSecond, burst);
+        long wait;
+        while ((wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, wait);
+            if (Thread.interrupted()) {
+                bucket.refund(burst);
+                Thread.currentThread().interrupt();
+                throw new APICallException("Interrupted while waiting for the API rate limit");
+            }
+        }
+    }
+
+    /**
+     * Takes a permit without blocking, the wait being timed by the scheduler of the default transport
+     *
+     * @param token   the API token of the call
+     * @param content the content type of the call, may be null
+     * @return a future completed when the permit is available; cancelling it before its completion gives the permit
+     * back
+     */
+    public CompletableFuture<Void> acquireAsync(final String token, final String content) {
+        return acquireAsync(token, content, RedcapTransport.getDefault().getScheduler());
+    }
+
+    /**
+     * Takes a permit without blocking, the wait being timed by the given scheduler
+     *
+     * @param token     the API token of the call
+     * @param content   the content type of the call, may be null
+     * @param scheduler the scheduler completing the future, usually the one of the transport of the call
+     * @return a future completed when the permit is available; cancelling it before its completion gives the permit
+     * back
+     */
+    CompletableFuture<Void> acquireAsync(final String token, final String content,
+                                         final ScheduledExecutorService scheduler) {
+        final Bucket bucket = bucket(token, content);
+        final long wait = bucket.reserve(permitsPerSecond, burst);
+        if (wait == 0)
+            return CompletableFuture.completedFuture(null);
+
+        final CompletableFuture<Void> permit = new CompletableFuture<Void>();
+        final ScheduledFuture<?> timer;
+        try {
+            timer = scheduler.schedule(() -> permit.complete(null), wait, TimeUnit.NANOSECONDS);
+        } catch (final RejectedExecutionException e) {
+            bucket.refund(burst);
+            permit.completeExceptionally(new APICallException("Wait for the API rate limit rejected - "+e.getMessage(), e));
+            return permit;
+        }
+        permit.whenComplete((available, error) -> {
+            if (error != null) {
+                timer.cancel(false);
+                bucket.refund(burst);
+            }
+        });
+        return permit;
+    }
+
+    /**
+     * Returns the allowed rate
+     * @return the calls per second allowed for each key
+     */
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    /**
+     * Returns the size of the buckets
+     * @return the maximum number of calls allowed at once
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Tells how calls are counted
+     * @return true if by API token and content type, false if by API token only
+     */
+    public boolean isPerContent() {
+        return perContent;
+    }
+
+    /**
+     * Returns the bucket of the permits of a call
+     */
+    private Bucket bucket(final String token, final String content) {
+        final String key = perContent && content != null ? token + "/" + content : String.valueOf(token);
+        return buckets.computeIfAbsent(key, k -> new Bucket(burst));
+    }
+
+    /**
+     * Permits of a key, negative when reserved in advance by waiting callers
+     */
+    private static final class Bucket {
+        private double permits;
+        private long refilled;
+
+        Bucket(final int burst) {
+            permits = burst;
+            refilled = System.nanoTime();
+        }
+
+        synchronized long reserve(final double permitsPerSecond, final int burst) {
+            final long now = System.nanoTime();
+            permits = Math.min(burst, permits + (now - refilled) * permitsPerSecond / 1e9);
+            refilled = now;
+            permits -= 1;
+            return permits >= 0 ? 0 : (long) Math.ceil(-permits * 1e9 / permitsPerSecond);
+        }
+
+        /**
+         * Gives back a permit reserved but not used, shortening the wait of later callers
+         */
+        synchronized void refund(final int burst) {
+            permits = Math.min(burst, permits + 1);
+        }
+    }
+}
@@ -0,0 +1,651 @@
+package it.ioveneto.redcap.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Local replica of the records of a project, stored on disk and read through memory mapping, so that point lookups
+ * of records are served locally in microseconds and survive restarts without exporting the project again.
+ * <p>
+ * Each record is stored as a block holding all its rows (one per event and repeat instance, as exported in flat
+ * layout), with the field names written once per block. Blocks are appended to a log file: a modified record is
+ * simply appended again, and an index by record ID, rebuilt by scanning the log when the replica is opened, points
+ * to its last block. Blocks carry a checksum, so that a block torn by a crash is detected and dropped; the log is
+ * compacted, dropping the superseded blocks, when they take more space than the live ones.
+ * </p>
+ * <p>
+ * {@link #refresh()} exports through {@link DeltaSync} only the records created or modified since the previous
+ * refresh, the first one exporting the whole project. Records deleted on the server are not reported by the API and
+ * must be removed with {@link #remove(String)} or by a full {@link #rebuild()}. Lookups can run concurrently with a
+ * refresh, and see either the previous or the new version of each record.
+ * </p>
+ */
+public class RecordReplica implements Closeable {
+    /** Size of the mapped segments of the log, which blocks never straddle */
+    private static final long SEGMENT = 1L << 30;
+    /** Size of the header of a block: length and checksum of its content */
+    private static final int HEADER = 8;
+    private static final String LOG_PREFIX = "records-";
+    private static final String LOG_SUFFIX = ".dat";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String CHECKPOINT = "sync.properties";
+    private static final String EVENT_FIELD = "redcap_event_name";
+    private static final String INSTRUMENT_FIELD = "redcap_repeat_instrument";
+    private static final String INSTANCE_FIELD = "redcap_repeat_instance";
+    /** Superseded bytes below which the log is never compacted */
+    private static final long MIN_GARBAGE = 1024 * 1024;
+
+    private final Path directory;
+    private final String api_token;
+    private final String url;
+    private final String recordIdField;
+    private final String fieldsList;
+    private final DeltaSync sync;
+    private long generation;
+    private FileChannel channel;
+    private long garbage;
+    private volatile State state;
+
+    /**
+     * Constructor replicating all the fields, assuming the REDCap server in the same time zone of the client
+     *
+     * @param directory     the directory of the replica, created if missing
+     * @param api_token     the token that defines the REDCap project of interest
+     * @param url           API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @param recordIdField the name of the record ID field (the first field of the project)
+     */
+    public RecordReplica(final Path directory, final String api_token, final String url, final String recordIdField)
+            throws APICallException {
+        this(directory, api_token, url, recordIdField, null, ZoneId.systemDefault(), 60000);
+    }
+
+    /**
+     * Complete constructor with all possible parameters. The replica stored in the directory, if any, is opened.
+     *
+     * @param directory     the directory of the replica, created if missing
+     * @param api_token     the token that defines the REDCap project of interest
+     * @param url           API endpoint (usually "https://myredcapdomain/redcap/api/")
+     * @param recordIdField the name of the record ID field (the first field of the project)
+     * @param fieldsList    the fields to replicate, as a comma-separated list including the record ID field, null for
+     *                      all the fields
+     * @param serverZone    the time zone of the REDCap server (see {@link DeltaSync})
+     * @param safetyMargin  how much (ms) refreshes are kept behind the current time (see {@link DeltaSync})
+     */
+    public RecordReplica(final Path directory, final String api_token, final String url, final String recordIdField,
+                         final String fieldsList, final ZoneId serverZone, final long safetyMargin)
+            throws APICallException {
+        if (directory == null)
+            throw new IllegalArgumentException("Must provide the directory of the replica");
+        if (api_token == null)
+            throw new IllegalArgumentException("Must provide a valid API token");
+        if (url == null)
+            throw new IllegalArgumentException("must provide valid URL of REDCap API endpoint");
+        if (recordIdField == null)
+            throw new IllegalArgumentException("Must provide the name of the record ID field");
+
+        this.directory = directory;
+        this.api_token = api_token;
+        this.url = url;
+        this.recordIdField = recordIdField;
+        this.fieldsList = fieldsList;
+        sync = new DeltaSync(directory.resolve(CHECKPOINT), serverZone, safetyMargin);
+        try {
+            Files.createDirectories(directory);
+            open();
+        } catch (final IOException e) {
+            throw new APICallException("Cannot open record replica in "+directory+" - "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Exports the records created or modified since the previous refresh and stores them
+     * @return the number of records stored
+     */
+    public synchronized int refresh() throws APICallException {
+        checkOpen();
+        final int stored = sync.sync((begin, end) -> new ExportRecords(api_token, "json", "flat", null, null,
+                fieldsList, null, "raw", "raw", false, "json", false, false, begin, end, ",", ".", false, url, false),
+                response -> {
+                    try (InputStream in = response.getEntity().getContent();
+                         JsonRecordReader reader = new JsonRecordReader(in)) {
+                        return store(reader);
+                    }
+                });
+        if (garbage > MIN_GARBAGE && garbage > state.live)
+            compact();
+        return stored;
+    }
+
+    /**
+     * Drops all the records and the watermark, then exports the whole project again
+     * @return the number of records stored
+     */
+    public synchronized int rebuild() throws APICallException {
+        checkOpen();
+        sync.reset();
+        try {
+            rewrite(Collections.<String>emptySet());
+        } catch (final IOException e) {
+            throw new APICallException("Cannot clear record replica in "+directory+" - "+e.getMessage(), e);
+        }
+        return refresh();
+    }
+
+    /**
+     * Removes a record, e.g. after its deletion on the server
+     * @param recordId the record ID
+     * @return true if the record was in the replica
+     */
+    public synchronized boolean remove(final String recordId) throws APICallException {
+        checkOpen();
+        if (!state.index.containsKey(recordId))
+            return false;
+        try {
+            final Map<String, Long> updates = new HashMap<String, Long>();
+            updates.put(recordId, append(encode(recordId, Collections.<String>emptyList(),
+                    Collections.<Map<String, String>>emptyList())));
+            channel.force(false);
+            publish(updates);
+        } catch (final IOException e) {
+            throw new APICallException("Cannot write record replica in "+directory+" - "+e.getMessage(), e);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the rows of a record, one per event and repeat instance, as exported in flat layout
+     * @param recordId the record ID
+     * @return the rows, mapping field names to raw values, null if the record is not in the replica
+     */
+    public List<Map<String, String>> get(final String recordId) {
+        final State current = checkOpen();
+        final Long offset = current.index.get(recordId);
+        return offset == null ? null : current.read(offset);
+    }
+
+    /**
+     * Returns a value of a record stored in a row not belonging to a repeating instrument: a field of a non-repeating
+     * instrument, or of any instrument of a repeating event
+     * @param recordId the record ID
+     * @param event    the unique event name - only for longitudinal projects, null otherwise
+     * @param instance the repeat instance number of the event, null if not repeating
+     * @param field    the field name
+     * @return the raw value, null if the record, its event or instance, or the field is not in the replica
+     */
+    public String getValue(final String recordId, final String event, final String instance, final String field) {
+        return getValue(recordId, event, null, instance, field);
+    }
+
+    /**
+     * Returns a value of a record. In flat layout each repeating instrument has rows of its own, holding blank values
+     * for the fields of the other instruments, so the instrument owning the field must be given when repeating.
+     * @param recordId   the record ID
+     * @param event      the unique event name - only for longitudinal projects, null otherwise
+     * @param instrument the repeating instrument owning the field, null if the field is not in a repeating instrument
+     * @param instance   the repeat instance number, null if not repeating
+     * @param field      the field name
+     * @return the raw value, null if the record, its event, instrument or instance, or the field is not in the replica
+     */
+    public String getValue(final String recordId, final String event, final String instrument, final String instance,
+                           final String field) {
+        final List<Map<String, String>> rows = get(recordId);
+        if (rows == null)
+            return null;
+        for (final Map<String, String> row : rows) {
+            if (event != null && !event.equals(row.get(EVENT_FIELD)))
+                continue;
+            if (!matches(instrument, row.get(INSTRUMENT_FIELD)) || !matches(instance, row.get(INSTANCE_FIELD)))
+                continue;
+            return row.get(field);
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether a record is in the replica
+     * @param recordId the record ID
+     * @return true if present
+     */
+    public boolean contains(final String recordId) {
+        return checkOpen().index.containsKey(recordId);
+    }
+
+    /**
+     * Returns the IDs of the records in the replica
+     * @return an unmodifiable set of record IDs
+     */
+    public Set<String> getRecordIDs() {
+        return Collections.unmodifiableSet(checkOpen().index.keySet());
+    }
+
+    /**
+     * Returns the number of records in the replica
+     * @return the number of records
+     */
+    public int size() {
+        return checkOpen().index.size();
+    }
+
+    /**
+     * Returns the upper bound of the last successful refresh
+     * @return the watermark as "YYYY-MM-DD HH:MM:SS" server time, null if no refresh has completed yet
+     */
+    public String getWatermark() throws APICallException {
+        return sync.getWatermark();
+    }
+
+    /**
+     * Rewrites the log keeping only the last block of each record
+     */
+    public synchronized void compact() throws APICallException {
+        checkOpen();
+        try {
+            rewrite(state.index.keySet());
+        } catch (final IOException e) {
+            throw new APICallException("Cannot compact record replica in "+directory+" - "+e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Closes the log; the replica cannot be used anymore
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+            state = null;
+        }
+    }
+
+    /**
+     * Matches a value of a row with the requested one, null requesting a blank or missing value
+     */
+    private static boolean matches(final String requested, final String value) {
+        return requested == null ? value == null || value.isEmpty() : requested.equals(value);
+    }
+
+    private State checkOpen() {
+        final State current = state;
+        if (current == null)
+            throw new IllegalStateException("Record replica closed");
+        return current;
+    }
+
+    /**
+     * Opens the latest log, dropping leftovers of interrupted compactions, and indexes it
+     */
+    private void open() throws IOException {
+        final List<Path> logs = new ArrayList<Path>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, LOG_PREFIX + "*")) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX))
+                    Files.delete(file);
+                else if (name.endsWith(LOG_SUFFIX))
+                    logs.add(file);
+            }
+        }
+        for (final Path log : logs)
+            generation = Math.max(generation, generationOf(log));
+        for (final Path log : logs) {
+            if (generationOf(log) != generation)
+                Files.delete(log);
+        }
+
+        channel = FileChannel.open(logFile(generation), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        MappedByteBuffer[] segments = map(channel, new MappedByteBuffer[0], channel.size());
+        final Map<String, Long> index = new HashMap<String, Long>();
+        long live = 0;
+        long total = 0;
+        long offset = 0;
+        final long size = channel.size();
+        while (offset < size) {
+            final long left = SEGMENT - offset % SEGMENT;
+            final ByteBuffer segment = segments[(int) (offset / SEGMENT)];
+            final int position = (int) (offset % SEGMENT);
+            final int length = left < HEADER || offset + HEADER > size ? 0 : segment.getInt(position);
+            if (length == 0) {
+                // padding up to the next segment, or end of a torn log
+                if (left < HEADER || offset + left <= size) {
+                    offset += left;
+                    continue;
+                }
+                break;
+            }
+            if (length < 0 || length > left - HEADER || offset + HEADER + length > size ||
+                    checksum(segment, position + HEADER, length) != segment.getInt(position + 4))
+                break;
+
+            final String recordId = readString(segment, position + HEADER);
+            final Long previous = index.remove(recordId);
+            if (previous != null)
+                live -= blockSize(segments, previous);
+            if (!isTombstone(segment, position + HEADER)) {
+                index.put(recordId, offset);
+                live += HEADER + length;
+            }
+            offset += HEADER + length;
+            total = offset;
+        }
+        if (offset < size) {
+            // drops a block torn by a crash, whose records are exported again by the next refresh
+            channel.truncate(offset);
+            segments = map(channel, new MappedByteBuffer[0], offset);
+        }
+        garbage = total - live;
+        state = new State(segments, index, live);
+    }
+
+    /**
+     * Stores the exported rows, grouping the consecutive rows of each record in a block
+     * @return the number of records stored
+     */
+    private int store(final JsonRecordReader reader) throws IOException {
+        final Map<String, Long> updates = new HashMap<String, Long>();
+        String recordId = null;
+        List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+        while (reader.hasNext()) {
+            final Map<String, String> row = reader.next();
+            final String id = row.get(recordIdField);
+            if (id == null)
+                throw new APICallException("Exported row without record ID field "+recordIdField);
+            if (recordId != null && !recordId.equals(id)) {
+                updates.put(recordId, appendRecord(recordId, rows, updates));
+                rows = new ArrayList<Map<String, String>>();
+            }
+            recordId = id;
+            rows.add(row);
+        }
+        if (recordId != null)
+            updates.put(recordId, appendRecord(recordId, rows, updates));
+        channel.force(false);
+        publish(updates);
+        return updates.size();
+    }
+
+    /**
+     * Appends the block of a record; rows of a record already stored by the same export are merged
+     */
+    private long appendRecord(final String recordId, final List<Map<String, String>> rows,
+                              final Map<String, Long> updates) throws IOException {
+        final Long stored = updates.get(recordId);
+        if (stored != null) {
+            final MappedByteBuffer[] segments = map(channel, state.segments, channel.size());
+            final List<Map<String, String>> merged = new ArrayList<Map<String, String>>(
+                    new State(segments, updates, 0).read(stored));
+            merged.addAll(rows);
+            garbage += blockSize(segments, stored);
+            return append(encode(recordId, merged));
+        }
+        return append(encode(recordId, rows));
+    }
+
+    /**
+     * Maps the appended blocks and publishes the new index, so that lookups see them
+     */
+    private void publish(final Map<String, Long> updates) throws IOException {
+        final State current = state;
+        final MappedByteBuffer[] segments = map(channel, current.segments, channel.size());
+        final Map<String, Long> index = new HashMap<String, Long>(current.index);
+        long live = current.live;
+        for (final Map.Entry<String, Long> update : updates.entrySet()) {
+            final Long previous = index.remove(update.getKey());
+            if (previous != null) {
+                live -= blockSize(segments, previous);
+                garbage += blockSize(segments, previous);
+            }
+            final long size = blockSize(segments, update.getValue());
+            final ByteBuffer segment = segments[(int) (update.getValue() / SEGMENT)];
+            if (isTombstone(segment, (int) (update.getValue() % SEGMENT) + HEADER)) {
+                garbage += size;
+            } else {
+                index.put(update.getKey(), update.getValue());
+                live += size;
+            }
+        }
+        state = new State(segments, index, live);
+    }
+
+    /**
+     * Writes the last blocks of the given records in a new log, then replaces the current one with it
+     */
+    private void rewrite(final Set<String> recordIds) throws IOException {
+        final State current = state;
+        final List<Long> offsets = new ArrayList<Long>(recordIds.size());
+        for (final String recordId : recordIds)
+            offsets.add(current.index.get(recordId));
+        Collections.sort(offsets);
+
+        final Path temp = directory.resolve(LOG_PREFIX + (generation + 1) + LOG_SUFFIX + TEMP_SUFFIX);
+        final Map<String, Long> index = new HashMap<String, Long>();
+        long live = 0;
+        try (FileChannel target = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            for (final long offset : offsets) {
+                final ByteBuffer segment = current.segments[(int) (offset / SEGMENT)];
+                final int position = (int) (offset % SEGMENT);
+                final int size = HEADER + segment.getInt(position);
+                final ByteBuffer block = segment.duplicate();
+                block.limit(position + size).position(position);
+                final long written = pad(target, target.size(), size);
+                while (block.hasRemaining())
+                    target.write(block, written + block.position() - position);
+                index.put(readString(segment, position + HEADER), written);
+                live += size;
+            }
+            target.force(false);
+        }
+
+        final Path log = logFile(generation + 1);
+        Files.move(temp, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        final FileChannel previous = channel;
+        final Path previousLog = logFile(generation);
+        channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        generation++;
+        garbage = 0;
+        state = new State(map(channel, new MappedByteBuffer[0], channel.size()), index, live);
+        previous.close();
+        Files.deleteIfExists(previousLog);
+    }
+
+    /**
+     * Appends a block at the end of the log
+     * @return the offset of the block
+     */
+    private long append(final byte[] content) throws IOException {
+        if (content.length > SEGMENT - HEADER)
+            throw new APICallException("Record too large for the replica: "+content.length+" bytes");
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        final ByteBuffer block = ByteBuffer.allocate(HEADER + content.length);
+        block.putInt(content.length).putInt((int) crc.getValue()).put(content).flip();
+        final long offset = pad(channel, channel.size(), block.remaining());
+        while (block.hasRemaining())
+            channel.write(block, offset + block.position());
+        return offset;
+    }
+
+    /**
+     * Pads a log with zeros up to the next segment if a block of the given size would straddle it
+     * @return the offset where the block is to be written
+     */
+    private static long pad(final FileChannel log, final long end, final int size) throws IOException {
+        final long left = SEGMENT - end % SEGMENT;
+        if (size <= left)
+            return end;
+        final ByteBuffer zeros = ByteBuffer.allocate((int) left);
+        while (zeros.hasRemaining())
+            log.write(zeros, end + zeros.position());
+        return end + left;
+    }
+
+    /**
+     * Encodes a record: its ID, the names of its fields, then the values of each row, in the order of the names
+     */
+    private static byte[] encode(final String recordId, final List<Map<String, String>> rows) throws IOException {
+        final LinkedHashMap<String, Integer> names = new LinkedHashMap<String, Integer>();
+        for (final Map<String, String> row : rows) {
+            for (final String name : row.keySet())
+                names.putIfAbsent(name, names.size());
+        }
+        return encode(recordId, new ArrayList<String>(names.keySet()), rows);
+    }
+
+    private static byte[] encode(final String recordId, final List<String> names,
+                                 final List<Map<String, String>> rows) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, recordId);
+        out.writeInt(names.size());
+        for (final String name : names)
+            writeString(out, name);
+        out.writeInt(rows.size());
+        for (final Map<String, String> row : rows) {
+            for (final String name : names)
+                writeString(out, row.get(name));
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    private static String readString(final ByteBuffer segment, final int position) {
+        final int length = segment.getInt(position);
+        if (length < 0)
+            return null;
+        final byte[] encoded = new byte[length];
+        segment.get(position + 4, encoded);
+        return new String(encoded, StandardCharsets.UTF_8);
+    }
+
+    private static int skipString(final ByteBuffer segment, final int position) {
+        return position + 4 + Math.max(0, segment.getInt(position));
+    }
+
+    /**
+     * Tells whether a block marks the removal of its record, having no rows
+     */
+    private static boolean isTombstone(final ByteBuffer segment, final int content) {
+        int position = skipString(segment, content);
+        final int names = segment.getInt(position);
+        position += 4;
+        for (int i = 0; i < names; i++)
+            position = skipString(segment, position);
+        return segment.getInt(position) == 0;
+    }
+
+    private static long blockSize(final MappedByteBuffer[] segments, final long offset) {
+        return HEADER + segments[(int) (offset / SEGMENT)].getInt((int) (offset % SEGMENT));
+    }
+
+    private static int checksum(final ByteBuffer segment, final int position, final int length) {
+        final ByteBuffer content = segment.duplicate();
+        content.limit(position + length).position(position);
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Maps a log up to the given size, reusing the segments already mapped in full
+     */
+    private static MappedByteBuffer[] map(final FileChannel log, final MappedByteBuffer[] mapped, final long size)
+            throws IOException {
+        final int count = (int) ((size + SEGMENT - 1) / SEGMENT);
+        final MappedByteBuffer[] segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            final long length = Math.min(SEGMENT, size - i * SEGMENT);
+            segments[i] = i < mapped.length && mapped[i].capacity() == length ? mapped[i] :
+                    log.map(FileChannel.MapMode.READ_ONLY, i * SEGMENT, length);
+        }
+        return segments;
+    }
+
+    private Path logFile(final long generation) {
+        return directory.resolve(LOG_PREFIX + generation + LOG_SUFFIX);
+    }
+
+    private static long generationOf(final Path log) {
+        final String name = log.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length()));
+        } catch (final NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Immutable view of the replica: the mapped log and the index of the last block of each record
+     */
+    private static final class State {
+        private final MappedByteBuffer[] segments;
+        private final Map<String, Long> index;
+        private final long live;
+
+        State(final MappedByteBuffer[] segments, final Map<String, Long> index, final long live) {
+            this.segments = segments;
+            this.index = index;
+            this.live = live;
+        }
+
+        /**
+         * Decodes the rows of the block at the given offset
+         */
+        List<Map<String, String>> read(final long offset) {
+            final ByteBuffer segment = segments[(int) (offset / SEGMENT)];
+            int position = skipString(segment, (int) (offset % SEGMENT) + HEADER);
+            final String[] names = new String[segment.getInt(position)];
+            position += 4;
+            for (int i = 0; i < names.length; i++) {
+                names[i] = readString(segment, position);
+                position = skipString(segment, position);
+            }
+            final int count = segment.getInt(position);
+            position += 4;
+            final List<Map<String, String>> rows = new ArrayList<Map<String, String>>(count);
+            for (int r = 0; r < count; r++) {
+                final Map<String, String> row = new LinkedHashMap<String, String>();
+                for (final String name : names) {
+                    final String value = readString(segment, position);
+                    position = skipString(segment, position);
+                    if (value != null)
+                        row.put(name, value);
+                }
+                rows.add(row);
+            }
+            return rows;
+        }
+    }
+}
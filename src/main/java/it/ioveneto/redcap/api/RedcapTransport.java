@@ -0,0 +1,415 @@
+package it.ioveneto.redcap.api;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.nio.client.HttpAsyncClient;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared HTTP transport used by the API request classes. It wraps a single pooled HTTP client, so that connections
+ * (and their TLS sessions) towards the REDCap endpoint are kept alive and reused across requests instead of being
+ * opened again by every request object.
+ * <p>
+ * A process-wide instance is lazily created with default settings and returned by {@link #getDefault()}; it can be
+ * replaced with a custom configured one through {@link #setDefault(RedcapTransport)}, or a specific transport can be
+ * injected in a single request with {@link APIRequest#setTransport(RedcapTransport)}.
+ * </p>
+ * <p>
+ * A non-blocking client with the same pool settings backs {@link APIRequest#doPostAsync()}; it is started only at its
+ * first use.
+ * </p>
+ * <p>
+ * Failed calls are retried according to the {@link RetryPolicy} of the transport, and calls can be throttled by a
+ * {@link RateLimiter} and a {@link ConcurrencyLimiter}; a {@link CircuitBreaker} rejects calls to failing endpoints,
+ * and a {@link RequestCoalescer} merges identical calls in flight. Responses of exports can be served by a
+ * {@link ResponseCache}.
+ * Connect, pool and read timeouts apply to every call.
+ * </p>
+ * <p>
+ * Every attempt of every request using the transport is notified to the {@link RequestInterceptor}s added with
+ * {@link #addInterceptor(RequestInterceptor)}.
+ * </p>
+ */
+public class RedcapTransport implements Closeable {
+
+    /** Default maximum number of pooled connections */
+    public static final int DEFAULT_MAX_TOTAL = 50;
+    /** Default maximum number of pooled connections towards the same host */
+    public static final int DEFAULT_MAX_PER_ROUTE = 20;
+    /** Default keep-alive time (ms) applied when the server does not send a Keep-Alive header */
+    public static final long DEFAULT_KEEP_ALIVE = 30000;
+    /** Default idle time (ms) after which a pooled connection is evicted */
+    public static final long DEFAULT_MAX_IDLE = 60000;
+    /** Default time (ms) allowed to establish a connection */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 15000;
+    /** Default time (ms) allowed to obtain a connection from the pool */
+    public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT = 30000;
+    /** Default time (ms) allowed between two packets of the response, long exports included */
+    public static final int DEFAULT_SOCKET_TIMEOUT = 300000;
+
+    private static RedcapTransport defaultTransport;
+
+    private final int maxTotal;
+    private final int maxPerRoute;
+    private final long keepAlive;
+    private final long maxIdle;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient client;
+    private PoolingNHttpClientConnectionManager asyncConnectionManager;
+    private CloseableHttpAsyncClient asyncClient;
+    private ScheduledExecutorService scheduler;
+    private volatile RetryPolicy retryPolicy;
+    private volatile RateLimiter rateLimiter;
+    private volatile ConcurrencyLimiter concurrencyLimiter;
+    private volatile CircuitBreaker circuitBreaker;
+    private volatile RequestCoalescer requestCoalescer;
+    private volatile ResponseCache responseCache;
+    private volatile RequestConfig requestConfig;
+    private final List<RequestInterceptor> interceptors;
+
+    /**
+     * Constructor with default pool settings
+     */
+    public RedcapTransport() {
+        this(DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE, DEFAULT_KEEP_ALIVE, DEFAULT_MAX_IDLE);
+    }
+
+    /**
+     * Complete constructor with all pool settings
+     *
+     * @param maxTotal    maximum number of connections kept by the pool
+     * @param maxPerRoute maximum number of connections kept towards the same host (usually the REDCap endpoint)
+     * @param keepAlive   time (ms) a connection is kept alive when the server does not specify it. The shortest
+     *                    between this value and the server Keep-Alive timeout is used.
+     * @param maxIdle     time (ms) after which an unused connection is closed and evicted from the pool by a
+     *                    background thread
+     */
+    public RedcapTransport(final int maxTotal, final int maxPerRoute, final long keepAlive, final long maxIdle) {
+
+        if (maxTotal <= 0 || maxPerRoute <= 0)
+            throw new IllegalArgumentException("Pool sizes must be positive");
+        if (maxPerRoute > maxTotal)
+            throw new IllegalArgumentException("Pool size per route cannot exceed total pool size");
+        if (keepAlive <= 0 || maxIdle <= 0)
+            throw new IllegalArgumentException("Keep-alive and idle times must be positive");
+
+        this.maxTotal = maxTotal;
+        this.maxPerRoute = maxPerRoute;
+        this.keepAlive = keepAlive;
+        this.maxIdle = maxIdle;
+        retryPolicy = new RetryPolicy();
+        interceptors = new CopyOnWriteArrayList<RequestInterceptor>();
+        requestConfig = RequestConfig.custom()
+                .setConnectTimeout(DEFAULT_CONNECT_TIMEOUT)
+                .setConnectionRequestTimeout(DEFAULT_CONNECTION_REQUEST_TIMEOUT)
+                .setSocketTimeout(DEFAULT_SOCKET_TIMEOUT)
+                .build();
+
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+        client = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(new KeepAliveStrategy(keepAlive))
+                .setDefaultRequestConfig(requestConfig)
+                .evictExpiredConnections()
+                .evictIdleConnections(maxIdle, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Returns the process-wide transport, creating it with default settings at first invocation
+     * @return the default transport
+     */
+    public static synchronized RedcapTransport getDefault() {
+        if (defaultTransport == null)
+            defaultTransport = new RedcapTransport();
+        return defaultTransport;
+    }
+
+    /**
+     * Replaces the process-wide transport. Requests created afterwards use the new one; the previous transport is
+     * not closed, since requests still in flight may be using it.
+     * @param transport the new default transport
+     */
+    public static synchronized void setDefault(final RedcapTransport transport) {
+        if (transport == null)
+            throw new IllegalArgumentException("Must provide a valid transport");
+        defaultTransport = transport;
+    }
+
+    /**
+     * Returns the pooled client shared by all the requests using this transport
+     * @return the HTTP client
+     */
+    HttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * Returns the non-blocking client shared by all the asynchronous requests using this transport, starting it at
+     * first invocation
+     * @return the asynchronous HTTP client
+     */
+    synchronized HttpAsyncClient getAsyncClient() {
+        if (asyncClient == null) {
+            try {
+                asyncConnectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor());
+            } catch (final IOReactorException e) {
+                throw new APICallException("Cannot start asynchronous transport - "+e.getMessage(), e);
+            }
+            asyncConnectionManager.setMaxTotal(maxTotal);
+            asyncConnectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+            asyncClient = HttpAsyncClients.custom()
+                    .setConnectionManager(asyncConnectionManager)
+                    .setKeepAliveStrategy(new KeepAliveStrategy(keepAlive))
+                    .setDefaultRequestConfig(requestConfig)
+                    .build();
+            asyncClient.start();
+
+            getScheduler().scheduleWithFixedDelay(() -> {
+                asyncConnectionManager.closeExpiredConnections();
+                asyncConnectionManager.closeIdleConnections(maxIdle, TimeUnit.MILLISECONDS);
+            }, maxIdle, maxIdle, TimeUnit.MILLISECONDS);
+        }
+        return asyncClient;
+    }
+
+    /**
+     * Returns the single daemon thread used for the maintenance tasks of this transport
+     * @return the scheduler
+     */
+    synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "redcap-transport-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+    /**
+     * Returns the current usage of the connection pool
+     * @return leased, available and pending connections of the pool
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * Returns the retry policy of the requests using this transport
+     * @return the retry policy, with default settings unless replaced
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Sets the retry policy of the requests using this transport, unless overridden by a single request
+     * @param retryPolicy the retry policy, {@link RetryPolicy#NONE} to disable retries
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        if (retryPolicy == null)
+            throw new IllegalArgumentException("Must provide a valid retry policy");
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Returns the rate limiter of the requests using this transport
+     * @return the rate limiter, null if calls are not limited
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Sets the rate limiter of the requests using this transport
+     * @param rateLimiter the rate limiter, null to stop limiting calls
+     */
+    public void setRateLimiter(final RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Returns the concurrency limiter of the requests using this transport
+     * @return the concurrency limiter, null if calls in flight are bounded by the connection pool only
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Sets the concurrency limiter of the requests using this transport. Its maximum limit should not exceed the
+     * pool size per route, beyond which calls would wait for a connection anyway.
+     * @param concurrencyLimiter the concurrency limiter, null to stop limiting calls in flight
+     */
+    public void setConcurrencyLimiter(final ConcurrencyLimiter concurrencyLimiter) {
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    /**
+     * Returns the circuit breaker of the endpoints called through this transport
+     * @return the circuit breaker, null if calls are never rejected
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Sets the circuit breaker of the endpoints called through this transport
+     * @param circuitBreaker the circuit breaker, null to stop rejecting calls
+     */
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Returns the coalescer of the identical calls performed through this transport
+     * @return the coalescer, null if calls are never coalesced
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * Sets the coalescer of the identical calls performed through this transport
+     * @param requestCoalescer the coalescer, null to stop coalescing calls
+     */
+    public void setRequestCoalescer(final RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    /**
+     * Returns the cache of the responses of the read-only requests using this transport
+     * @return the cache, null if responses are not cached
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Sets the cache of the responses of the read-only requests using this transport
+     * @param responseCache the cache, null to stop caching responses
+     */
+    public void setResponseCache(final ResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * Returns the timeouts of the requests using this transport
+     * @return the request configuration holding the timeouts
+     */
+    public RequestConfig getRequestConfig() {
+        return requestConfig;
+    }
+
+    /**
+     * Sets the timeouts of the requests using this transport, unless overridden by a single request. A timeout of 0
+     * waits forever.
+     * @param connectTimeout           time (ms) allowed to establish a connection
+     * @param connectionRequestTimeout time (ms) allowed to obtain a connection from the pool
+     * @param socketTimeout            time (ms) allowed between two packets of the response
+     */
+    public void setTimeouts(final int connectTimeout, final int connectionRequestTimeout, final int socketTimeout) {
+        if (connectTimeout < 0 || connectionRequestTimeout < 0 || socketTimeout < 0)
+            throw new IllegalArgumentException("Timeouts cannot be negative");
+        requestConfig = RequestConfig.copy(requestConfig)
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectionRequestTimeout)
+                .setSocketTimeout(socketTimeout)
+                .build();
+    }
+
+    /**
+     * Adds an interceptor notified of the attempts of the requests using this transport
+     * @param interceptor the interceptor to add
+     */
+    public void addInterceptor(final RequestInterceptor interceptor) {
+        if (interceptor == null)
+            throw new IllegalArgumentException("Must provide a valid interceptor");
+        interceptors.add(interceptor);
+    }
+
+    /**
+     * Removes an interceptor added to this transport
+     * @param interceptor the interceptor to remove
+     * @return true if the interceptor was added
+     */
+    public boolean removeInterceptor(final RequestInterceptor interceptor) {
+        return interceptors.remove(interceptor);
+    }
+
+    /**
+     * Returns the interceptors of this transport
+     * @return the interceptors, in the order they were added
+     */
+    List<RequestInterceptor> getInterceptors() {
+        return interceptors;
+    }
+
+    /**
+     * Closes all pooled connections and stops the eviction threads
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        client.close();
+        if (asyncClient != null)
+            asyncClient.close();
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+
+    /**
+     * Honours the Keep-Alive timeout sent by the server, capped to the configured keep-alive time
+     */
+    private static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        private final long keepAlive;
+
+        KeepAliveStrategy(final long keepAlive) {
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+            final HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                final HeaderElement element = it.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Math.min(Long.parseLong(element.getValue()) * 1000, keepAlive);
+                    } catch (final NumberFormatException ignored) {
+                        // falls back to configured keep-alive
+                    }
+                }
+            }
+            return keepAlive;
+        }
+    }
+}
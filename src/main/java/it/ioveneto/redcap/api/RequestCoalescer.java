@@ -0,0 +1,137 @@
+package it.ioveneto.redcap.api;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical requests in flight at the same time into a single API call (single flight): when many threads
+ * issue the same export within the same second, only the first one reaches the server, the others wait for its
+ * response and share it.
+ * <p>
+ * Requests are identical when they target the same endpoint with the same params (token and content included), in
+ * any order; only read-only requests (exports) with params held in memory are coalesced, so imports and deletes always
+ * reach the server. The shared call is performed with the settings (timeouts, retry policy) of the first caller,
+ * detached from all the callers: cancellation and deadline of each caller, the first one included, only affect its
+ * own wait. A coalescer attached to a
+ * {@link RedcapTransport} with {@link RedcapTransport#setRequestCoalescer(RequestCoalescer)} applies to
+ * {@link APIRequest#doPost()} and {@link APIRequest#doPostAsync()} of every request using it.
+ * </p>
+ */
+public class RequestCoalescer {
+    private final ConcurrentMap<String, CompletableFuture<APIResponse>> inFlight;
+    private final AtomicLong calls;
+    private final AtomicLong coalesced;
+
+    /**
+     * Constructor of a coalescer with no call in flight
+     */
+    public RequestCoalescer() {
+        inFlight = new ConcurrentHashMap<String, CompletableFuture<APIResponse>>();
+        calls = new AtomicLong();
+        coalesced = new AtomicLong();
+    }
+
+    /**
+     * Joins the call in flight with the given key, or performs it if none
+     * @param key  the key of the request
+     * @param call performs the call, invoked only if no identical call is in flight
+     * @return a future completed with the shared response; cancelling it does not affect the shared call
+     */
+    CompletableFuture<APIResponse> join(final String key, final Supplier<CompletableFuture<APIResponse>> call) {
+        CompletableFuture<APIResponse> shared = inFlight.get(key);
+        if (shared == null) {
+            final CompletableFuture<APIResponse> created = new CompletableFuture<APIResponse>();
+            shared = inFlight.putIfAbsent(key, created);
+            if (shared == null) {
+                calls.incrementAndGet();
+                try {
+                    call.get().whenComplete((response, error) -> {
+                        // removed first, so that the callers receiving the response find no call in flight
+                        inFlight.remove(key, created);
+                        if (error != null)
+                            created.completeExceptionally(error);
+                        else
+                            created.complete(response);
+                    });
+                } catch (final RuntimeException e) {
+                    inFlight.remove(key, created);
+                    created.completeExceptionally(e);
+                }
+                return created.copy();
+            }
+        }
+        coalesced.incrementAndGet();
+        return shared.copy();
+    }
+
+    /**
+     * Computes the key of a request: a digest of its endpoint and its params, sorted
+     * @param endpoint the URL of the endpoint
+     * @param entity   the body of the request
+     * @return the key, null if the body cannot be coalesced (not an url-encoded form held in memory)
+     */
+    static String getKey(final String endpoint, final HttpEntity entity) {
+        if (!(entity instanceof UrlEncodedFormEntity || entity instanceof ByteArrayEntity))
+            return null;
+        final String[] params;
+        try {
+            params = EntityUtils.toString(entity, StandardCharsets.UTF_8).split("&");
+        } catch (final IOException e) {
+            return null;
+        }
+        Arrays.sort(params);
+
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+        digest.update(endpoint.getBytes(StandardCharsets.UTF_8));
+        for (final String param : params) {
+            digest.update((byte) '&');
+            digest.update(param.getBytes(StandardCharsets.UTF_8));
+        }
+        final StringBuilder key = new StringBuilder(64);
+        for (final byte b : digest.digest())
+            key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return key.toString();
+    }
+
+    /**
+     * Returns the calls performed
+     * @return the number of calls that reached the server
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * Returns the requests served by a call already in flight
+     * @return the number of requests that did not reach the server
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the calls in flight
+     * @return the number of distinct calls in flight
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,41 @@
+package it.ioveneto.redcap.api;
+
+/**
+ * Observer of the API calls performed through a {@link RedcapTransport}, registered with
+ * {@link RedcapTransport#addInterceptor(RequestInterceptor)}: it is notified of every attempt of every request using
+ * the transport, blocking or asynchronous, so that metrics, logging or tracing apply to all endpoints at once.
+ * <p>
+ * Interceptors are invoked on the thread performing the attempt (an I/O thread for asynchronous calls), so they must
+ * be thread-safe and return quickly; exceptions they throw are ignored and never affect the call.
+ * </p>
+ */
+public interface RequestInterceptor {
+
+    /**
+     * Invoked when an attempt is sent, once allowed by the circuit breaker and the limiters of the transport
+     * @param request the request
+     * @param attempt the number of the attempt, from 1
+     */
+    default void onSend(final APIRequest request, final int attempt) {
+    }
+
+    /**
+     * Invoked when the response of an attempt is received, whatever its HTTP code
+     * @param request      the request
+     * @param attempt      the number of the attempt, from 1
+     * @param respCode     the HTTP code of the response
+     * @param latencyNanos the time (ns) from the sending to the reception of the response headers
+     */
+    default void onResponse(final APIRequest request, final int attempt, final int respCode, final long latencyNanos) {
+    }
+
+    /**
+     * Invoked when an attempt fails without a response (I/O error, timeout, abort)
+     * @param request      the request
+     * @param attempt      the number of the attempt, from 1
+     * @param failure      the cause of the failure
+     * @param latencyNanos the time (ns) from the sending to the failure
+     */
+    default void onFailure(final APIRequest request, final int attempt, final Exception failure, final long latencyNanos) {
+    }
+}
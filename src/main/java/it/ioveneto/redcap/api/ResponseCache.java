@@ -0,0 +1,520 @@
+package it.ioveneto.redcap.api;
+
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache of the responses of the exports whose results change rarely, such as the REDCap version, project
+ * information, user roles or data access groups: only requests declaring themselves cacheable (see
+ * {@link APIRequest#isCacheable()}) are served by it, so records, logs, files and any request changing the project
+ * always reach the server. Requests are identified by their endpoint and their params (token included), in any order;
+ * failed calls are never cached.
+ * <ul>
+ *     <li>entries are kept in memory up to a budget of bytes (estimated at two bytes per char), evicting the least
+ *     recently used (LRU) or the least frequently used (LFU) first, and expire after their time to live;</li>
+ *     <li>with a spill directory, evicted entries are moved to disk up to a second budget and moved back to memory
+ *     when hit again. Each spilled entry is a "&lt;key&gt;.response" file holding the response code, reason phrase,
+ *     headers and body of the response in clear (the body as UTF-8 text), created readable by its owner only where
+ *     the file system allows it. Spill files only live as long as the cache: those left in the directory by a
+ *     previous process are deleted at construction, as they cannot be trusted to be current;</li>
+ *     <li>hits, misses and evictions are counted.</li>
+ * </ul>
+ * <p>
+ * A cache attached to a {@link RedcapTransport} with {@link RedcapTransport#setResponseCache(ResponseCache)} serves
+ * {@link APIRequest#doPost()} and {@link APIRequest#doPostAsync()} of every request using it, before any call is
+ * performed or coalesced.
+ * </p>
+ */
+public class ResponseCache {
+    /** Order in which entries are evicted */
+    public enum Eviction {
+        /** Least recently used first */
+        LRU,
+        /** Least frequently used first, least recently used among equally used ones */
+        LFU
+    }
+
+    /** Default time (ms) an entry is served */
+    public static final long DEFAULT_TTL = 300000;
+    /** Default budget (bytes) of the entries in memory */
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    /** Estimated memory (bytes) taken by an entry besides its strings */
+    private static final int ENTRY_OVERHEAD = 256;
+    private static final String SPILL_SUFFIX = ".response";
+    private static final String SPILL_PREFIX = ".spill";
+    private static final String PART_SUFFIX = ".part";
+
+    private final long ttl;
+    private final long maxBytes;
+    private final Path spillDirectory;
+    private final long maxDiskBytes;
+    private final Map<String, Entry> entries;
+    private final TreeSet<Entry> order;
+    private final LinkedHashMap<String, Spilled> spilled;
+    private final Map<String, Entry> spilling;
+    private long bytes;
+    private long diskBytes;
+    private long clock;
+    private final AtomicLong hits;
+    private final AtomicLong diskHits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+
+    /**
+     * Constructor with default settings: LRU cache of 64 MB in memory, entries expiring after 5 minutes
+     */
+    public ResponseCache() {
+        this(DEFAULT_TTL, DEFAULT_MAX_BYTES, Eviction.LRU);
+    }
+
+    /**
+     * Constructor of a cache in memory only
+     *
+     * @param ttl      the time (ms) an entry is served
+     * @param maxBytes the budget (bytes) of the entries in memory
+     * @param eviction the order in which entries are evicted
+     */
+    public ResponseCache(final long ttl, final long maxBytes, final Eviction eviction) {
+        this(ttl, maxBytes, eviction, null, 0);
+    }
+
+    /**
+     * Complete constructor with all possible parameters
+     *
+     * @param ttl            the time (ms) an entry is served
+     * @param maxBytes       the budget (bytes) of the entries in memory
+     * @param eviction       the order in which entries are evicted
+     * @param spillDirectory the directory receiving the entries evicted from memory, null to drop them. It should be
+     *                       dedicated to the cache and private to the user of the process: the spill files already in
+     *                       it are deleted.
+     * @param maxDiskBytes   the budget (bytes) of the entries on disk, the oldest being deleted first
+     */
+    public ResponseCache(final long ttl, final long maxBytes, final Eviction eviction, final Path spillDirectory,
+                         final long maxDiskBytes) {
+        if (ttl <= 0 || maxBytes <= 0)
+            throw new IllegalArgumentException("Time to live and memory budget must be positive");
+        if (eviction == null)
+            throw new IllegalArgumentException("Must provide the eviction order");
+        if (spillDirectory != null && maxDiskBytes <= 0)
+            throw new IllegalArgumentException("Disk budget must be positive");
+
+        this.ttl = ttl;
+        this.maxBytes = maxBytes;
+        this.spillDirectory = spillDirectory;
+        this.maxDiskBytes = maxDiskBytes;
+        entries = new HashMap<String, Entry>();
+        final Comparator<Entry> recency = Comparator.comparingLong(entry -> entry.tick);
+        order = new TreeSet<Entry>(eviction == Eviction.LFU ?
+                Comparator.<Entry>comparingLong(entry -> entry.frequency).thenComparing(recency) : recency);
+        spilled = new LinkedHashMap<String, Spilled>();
+        spilling = new HashMap<String, Entry>();
+        hits = new AtomicLong();
+        diskHits = new AtomicLong();
+        misses = new AtomicLong();
+        evictions = new AtomicLong();
+
+        if (spillDirectory != null) {
+            try {
+                Files.createDirectories(spillDirectory);
+                purge(spillDirectory);
+            } catch (final IOException e) {
+                throw new IllegalArgumentException("Spill directory cannot be prepared - "+e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Deletes the spill files, complete or partial, left by a previous cache in the same directory: they are not
+     * indexed by this one, so they would never be read nor count against the disk budget
+     */
+    private static void purge(final Path spillDirectory) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spillDirectory, file -> {
+            final String name = file.getFileName().toString();
+            return name.endsWith(SPILL_SUFFIX) || (name.startsWith(SPILL_PREFIX) && name.endsWith(PART_SUFFIX));
+        })) {
+            for (final Path file : files)
+                Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Looks up the response of a request, in memory and then on disk
+     * @param key the key of the request
+     * @return the response, null if not cached or expired
+     */
+    APIResponse get(final String key) {
+        final long now = System.currentTimeMillis();
+        final Spilled onDisk;
+        synchronized (this) {
+            final Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.expiresAt > now) {
+                    order.remove(entry);
+                    entry.frequency++;
+                    entry.tick = ++clock;
+                    order.add(entry);
+                    hits.incrementAndGet();
+                    return entry.response;
+                }
+                remove(entry);
+            }
+            onDisk = spilled.remove(key);
+            if (onDisk != null)
+                diskBytes -= onDisk.bytes;
+        }
+
+        if (onDisk != null && onDisk.expiresAt > now) {
+            final APIResponse response = read(onDisk.file);
+            delete(onDisk.file);
+            if (response != null) {
+                diskHits.incrementAndGet();
+                put(key, response, onDisk.expiresAt);
+                return response;
+            }
+        } else if (onDisk != null) {
+            delete(onDisk.file);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores the successful response of a request
+     * @param key      the key of the request
+     * @param response the response
+     */
+    void put(final String key, final APIResponse response) {
+        put(key, response, System.currentTimeMillis() + ttl);
+    }
+
+    private void put(final String key, final APIResponse response, final long expiresAt) {
+        final long size = sizeOf(key, response);
+        if (size > maxBytes)
+            return;
+
+        final List<Entry> evicted = new ArrayList<Entry>();
+        synchronized (this) {
+            final Entry previous = entries.get(key);
+            if (previous != null)
+                remove(previous);
+            // a fresher response supersedes the one being spilled
+            spilling.remove(key);
+            final Entry entry = new Entry(key, response, size, expiresAt, ++clock);
+            entries.put(key, entry);
+            order.add(entry);
+            bytes += size;
+            while (bytes > maxBytes) {
+                // the new entry is never its own victim, being always the least frequently used one
+                final Entry first = order.first();
+                final Entry eldest = first == entry ? order.higher(entry) : first;
+                remove(eldest);
+                evicted.add(eldest);
+                if (spillDirectory != null)
+                    spilling.put(eldest.key, eldest);
+            }
+        }
+        evictions.addAndGet(evicted.size());
+        if (spillDirectory != null) {
+            for (final Entry entry : evicted)
+                spill(entry);
+        }
+    }
+
+    /**
+     * Drops the cached response of a request
+     * @param request the request
+     */
+    public void invalidate(final APIRequest request) {
+        final String key = RequestCoalescer.getKey(request.getEndpoint(), request.post.getEntity());
+        if (key != null)
+            invalidate(key);
+    }
+
+    /**
+     * Drops the cached response of a request, cancelling its spill to disk if in progress
+     * @param key the key of the request
+     */
+    void invalidate(final String key) {
+        final Spilled onDisk;
+        synchronized (this) {
+            final Entry entry = entries.get(key);
+            if (entry != null)
+                remove(entry);
+            spilling.remove(key);
+            onDisk = spilled.remove(key);
+            if (onDisk != null)
+                diskBytes -= onDisk.bytes;
+        }
+        if (onDisk != null)
+            delete(onDisk.file);
+    }
+
+    /**
+     * Drops all the cached responses, in memory and on disk
+     */
+    public void invalidateAll() {
+        final List<Spilled> files;
+        synchronized (this) {
+            entries.clear();
+            order.clear();
+            bytes = 0;
+            files = new ArrayList<Spilled>(spilled.values());
+            spilled.clear();
+            spilling.clear();
+            diskBytes = 0;
+        }
+        for (final Spilled file : files)
+            delete(file.file);
+    }
+
+    /**
+     * Returns the lookups served from memory
+     * @return the number of hits in memory
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the lookups served from disk
+     * @return the number of hits on disk
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * Returns the lookups not served
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the entries evicted from memory to respect the budget
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Returns the ratio of lookups served, from memory or disk
+     * @return the hit ratio (0-1), 0 if no lookup yet
+     */
+    public double getHitRatio() {
+        final long served = hits.get() + diskHits.get();
+        final long total = served + misses.get();
+        return total == 0 ? 0 : (double) served / total;
+    }
+
+    /**
+     * Returns the memory taken by the entries
+     * @return the estimated size (bytes) of the entries in memory
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the disk space taken by the spilled entries
+     * @return the size (bytes) of the entries on disk
+     */
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * Returns the number of entries in memory
+     * @return the number of entries, expired ones not yet dropped included
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(final Entry entry) {
+        entries.remove(entry.key);
+        order.remove(entry);
+        bytes -= entry.bytes;
+    }
+
+    /**
+     * Moves an entry evicted from memory to disk, deleting the oldest spilled entries over the disk budget. The file is
+     * written outside the lock, then moved in place and registered only if the entry has not been invalidated or
+     * superseded in the meantime.
+     */
+    private void spill(final Entry entry) {
+        final Path file = spillDirectory.resolve(entry.key + SPILL_SUFFIX);
+        final List<Path> deleted = new ArrayList<Path>();
+        Path temp = null;
+        try {
+            if (entry.expiresAt > System.currentTimeMillis()) {
+                temp = Files.createTempFile(spillDirectory, SPILL_PREFIX, PART_SUFFIX);
+                writeSpill(temp, entry.response);
+                final long size = Files.size(temp);
+
+                synchronized (this) {
+                    if (!spilling.remove(entry.key, entry))
+                        return;
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    final Spilled previous = spilled.put(entry.key, new Spilled(file, size, entry.expiresAt));
+                    if (previous != null)
+                        diskBytes -= previous.bytes;
+                    diskBytes += size;
+                    for (final Iterator<Map.Entry<String, Spilled>> eldest = spilled.entrySet().iterator();
+                         diskBytes > maxDiskBytes && eldest.hasNext(); ) {
+                        final Map.Entry<String, Spilled> oldest = eldest.next();
+                        eldest.remove();
+                        diskBytes -= oldest.getValue().bytes;
+                        deleted.add(oldest.getValue().file);
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            // the entry is simply dropped
+        } finally {
+            synchronized (this) {
+                spilling.remove(entry.key, entry);
+            }
+            if (temp != null)
+                delete(temp);
+        }
+        for (final Path path : deleted)
+            delete(path);
+    }
+
+    /**
+     * Writes a response evicted from memory to a temporary file of the spill directory
+     * @param temp     the temporary file
+     * @param response the response
+     */
+    void writeSpill(final Path temp, final APIResponse response) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            write(out, response);
+        }
+    }
+
+    private static void write(final DataOutputStream out, final APIResponse response) throws IOException {
+        out.writeInt(response.getRespCode());
+        writeString(out, response.getReasonPhrase());
+        final Header[] headers = response.getHeaders();
+        out.writeInt(headers.length);
+        for (final Header header : headers) {
+            writeString(out, header.getName());
+            writeString(out, header.getValue());
+        }
+        writeString(out, response.getResult());
+    }
+
+    private static APIResponse read(final Path file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            final int respCode = in.readInt();
+            final String reasonPhrase = readString(in);
+            final Header[] headers = new Header[in.readInt()];
+            for (int i = 0; i < headers.length; i++)
+                headers[i] = new BasicHeader(readString(in), readString(in));
+            return new APIResponse(respCode, reasonPhrase, headers, readString(in));
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0)
+            return null;
+        final byte[] encoded = new byte[length];
+        in.readFully(encoded);
+        return new String(encoded, StandardCharsets.UTF_8);
+    }
+
+    private static void delete(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (final IOException ignored) {
+            // left to be overwritten by a later spill of the same key
+        }
+    }
+
+    /**
+     * Estimates the memory taken by an entry
+     */
+    private static long sizeOf(final String key, final APIResponse response) {
+        long chars = key.length() + length(response.getReasonPhrase()) + length(response.getResult());
+        for (final Header header : response.getHeaders())
+            chars += length(header.getName()) + length(header.getValue());
+        return ENTRY_OVERHEAD + 2 * chars;
+    }
+
+    private static int length(final String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    /**
+     * Response cached in memory, with its eviction order
+     */
+    private static final class Entry {
+        private final String key;
+        private final APIResponse response;
+        private final long bytes;
+        private final long expiresAt;
+        private long frequency;
+        private long tick;
+
+        Entry(final String key, final APIResponse response, final long bytes, final long expiresAt, final long tick) {
+            this.key = key;
+            this.response = response;
+            this.bytes = bytes;
+            this.expiresAt = expiresAt;
+            this.frequency = 1;
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * Response moved to disk
+     */
+    private static final class Spilled {
+        private final Path file;
+        private final long bytes;
+        private final long expiresAt;
+
+        Spilled(final Path file, final long bytes, final long expiresAt) {
+            this.file = file;
+            this.bytes = bytes;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
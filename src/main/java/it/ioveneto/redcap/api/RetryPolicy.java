@@ -0,0 +1,186 @@
+package it.ioveneto.redcap.api;
+
+import org.apache.http.Header;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Policy deciding whether and when a failed API call is attempted again. Delays grow exponentially with the attempt
+ * number and are randomized ("full jitter"), so that many clients rejected together do not retry together; a
+ * Retry-After header sent by the server (seconds or HTTP date) is honoured as minimum delay.
+ * <p>
+ * Retries depend on whether the request is idempotent (see {@link APIRequest#isIdempotent()}):
+ * </p>
+ * <ul>
+ *     <li>idempotent requests (exports) are retried on any I/O error and on any of the retryable HTTP codes;</li>
+ *     <li>other requests (e.g. imports creating new record names) are retried only when the server surely did not
+ *     process them: connection not established, 429 Too Many Requests, 503 Service Unavailable.</li>
+ * </ul>
+ * <p>
+ * Requests whose body cannot be sent twice (e.g. streamed from a {@link java.io.Reader}) are never retried.
+ * The policy of a request is the one of its {@link RedcapTransport}, unless set with
+ * {@link APIRequest#setRetryPolicy(RetryPolicy)}.
+ * </p>
+ */
+public final class RetryPolicy {
+    /** Default number of attempts */
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    /** Default delay (ms) before the first retry */
+    public static final long DEFAULT_BASE_DELAY = 1000;
+    /** Default maximum delay (ms) between attempts */
+    public static final long DEFAULT_MAX_DELAY = 60000;
+
+    private static final int[] DEFAULT_RETRYABLE_CODES = {429, 502, 503, 504};
+    private static final int[] UNPROCESSED_CODES = {429, 503};
+
+    /** Policy performing a single attempt */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final int[] retryableCodes;
+
+    /**
+     * Constructor with default settings: 4 attempts, delays from 1 s up to 60 s, retrying HTTP 429, 502, 503 and 504
+     */
+    public RetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Constructor retrying HTTP 429, 502, 503 and 504
+     *
+     * @param maxAttempts the total number of attempts, the first one included
+     * @param baseDelay   the maximum delay (ms) before the first retry, doubled at every further retry
+     * @param maxDelay    the maximum delay (ms) between attempts, applied to Retry-After too
+     */
+    public RetryPolicy(final int maxAttempts, final long baseDelay, final long maxDelay) {
+        this(maxAttempts, baseDelay, maxDelay, DEFAULT_RETRYABLE_CODES);
+    }
+
+    /**
+     * Complete constructor with all possible parameters
+     *
+     * @param maxAttempts    the total number of attempts, the first one included
+     * @param baseDelay      the maximum delay (ms) before the first retry, doubled at every further retry
+     * @param maxDelay       the maximum delay (ms) between attempts, applied to Retry-After too
+     * @param retryableCodes the HTTP codes of the responses to be retried
+     */
+    public RetryPolicy(final int maxAttempts, final long baseDelay, final long maxDelay, final int... retryableCodes) {
+        if (maxAttempts <= 0)
+            throw new IllegalArgumentException("Number of attempts must be positive");
+        if (baseDelay < 0 || maxDelay < baseDelay)
+            throw new IllegalArgumentException("Delays must be non negative, maximum delay not below base delay");
+        if (retryableCodes == null)
+            throw new IllegalArgumentException("Must provide the retryable HTTP codes");
+
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.retryableCodes = retryableCodes.clone();
+        Arrays.sort(this.retryableCodes);
+    }
+
+    /**
+     * Returns the total number of attempts
+     * @return the number of attempts, the first one included
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Returns the maximum delay before the first retry
+     * @return the delay (ms)
+     */
+    public long getBaseDelay() {
+        return baseDelay;
+    }
+
+    /**
+     * Returns the maximum delay between attempts
+     * @return the delay (ms)
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * Returns a policy equal to this one but for the number of attempts
+     * @param maxAttempts the total number of attempts, the first one included
+     * @return the new policy
+     */
+    public RetryPolicy withMaxAttempts(final int maxAttempts) {
+        return new RetryPolicy(maxAttempts, baseDelay, maxDelay, retryableCodes);
+    }
+
+    /**
+     * Checks whether a response code can be retried
+     * @param respCode   the HTTP code
+     * @param idempotent whether the request can be safely performed more than once
+     * @return true if the call can be attempted again
+     */
+    boolean isRetryable(final int respCode, final boolean idempotent) {
+        if (Arrays.binarySearch(retryableCodes, respCode) < 0)
+            return false;
+        return idempotent || Arrays.binarySearch(UNPROCESSED_CODES, respCode) >= 0;
+    }
+
+    /**
+     * Checks whether a failure of the call can be retried
+     * @param e          the failure
+     * @param idempotent whether the request can be safely performed more than once
+     * @return true if the call can be attempted again
+     */
+    boolean isRetryable(final Throwable e, final boolean idempotent) {
+        if (!(e instanceof IOException))
+            return false;
+        if (idempotent)
+            return true;
+        // the request has not reached the server
+        return e instanceof ConnectException || e instanceof ConnectTimeoutException ||
+                e instanceof ConnectionPoolTimeoutException;
+    }
+
+    /**
+     * Computes the delay before the next attempt
+     * @param attempt    the number of the failed attempt, starting from 1
+     * @param retryAfter the Retry-After header of the failed response, null if none
+     * @return the delay (ms)
+     */
+    long getDelay(final int attempt, final Header retryAfter) {
+        final long backoff = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+        final long jittered = backoff == 0 ? 0 : ThreadLocalRandom.current().nextLong(backoff + 1);
+        return Math.min(maxDelay, Math.max(jittered, retryAfter(retryAfter)));
+    }
+
+    /**
+     * Parses a Retry-After header, as delay in seconds or HTTP date
+     * @return the delay (ms), 0 if missing or invalid
+     */
+    private static long retryAfter(final Header header) {
+        if (header == null || header.getValue() == null)
+            return 0;
+        final String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (final NumberFormatException e) {
+            final Date date = DateUtils.parseDate(value);
+            return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{maxAttempts=" + maxAttempts + ", baseDelay=" + baseDelay + ", maxDelay=" + maxDelay +
+                ", retryableCodes=" + Arrays.toString(retryableCodes) + "}";
+    }
+}
@@ -0,0 +1,251 @@
+package it.ioveneto.redcap.api;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicNameValuePair;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Form-encoded (application/x-www-form-urlencoded, UTF-8) request body whose largest parameter, typically the "data"
+ * of an import, is read from a {@link Reader} and percent-encoded on the fly while it is written to the connection
+ * with chunked transfer encoding. Unlike {@link org.apache.http.client.entity.UrlEncodedFormEntity}, the encoded body
+ * is never materialized in memory, neither as String nor as bytes.
+ * <p>
+ * An entity reading a {@link Reader} can be sent only once; an entity reading a file is repeatable, the file being
+ * opened again at every transmission.
+ * </p>
+ */
+public class StreamingFormEntity extends AbstractHttpEntity {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final byte[] fixedParams;
+    private final String streamedName;
+    private final byte[] streamedPrefix;
+    private final Reader reader;
+    private final Path file;
+    private boolean consumed;
+
+    /**
+     * Constructor streaming a parameter from a reader
+     *
+     * @param params        the other parameters of the request, encoded in memory
+     * @param streamedName  the name of the streamed parameter (e.g. "data")
+     * @param streamedValue the value of the streamed parameter, read up to its end and then closed
+     */
+    public StreamingFormEntity(final List<NameValuePair> params, final String streamedName, final Reader streamedValue) {
+        this(params, streamedName, streamedValue, null);
+    }
+
+    /**
+     * Constructor streaming a parameter from an UTF-8 text file
+     *
+     * @param params        the other parameters of the request, encoded in memory
+     * @param streamedName  the name of the streamed parameter (e.g. "data")
+     * @param streamedValue the file holding the value of the streamed parameter
+     */
+    public StreamingFormEntity(final List<NameValuePair> params, final String streamedName, final Path streamedValue) {
+        this(params, streamedName, null, streamedValue);
+    }
+
+    private StreamingFormEntity(final List<NameValuePair> params, final String streamedName, final Reader reader,
+                                final Path file) {
+        if (streamedName == null)
+            throw new IllegalArgumentException("Must provide the name of the streamed parameter");
+        if (reader == null && file == null)
+            throw new IllegalArgumentException("Must provide the value of the streamed parameter");
+
+        final List<NameValuePair> fixed = params == null ? new ArrayList<NameValuePair>() : params;
+        this.fixedParams = URLEncodedUtils.format(fixed, StandardCharsets.UTF_8).getBytes(StandardCharsets.US_ASCII);
+        this.streamedName = streamedName;
+        this.streamedPrefix = URLEncodedUtils.format(Collections.singletonList(new BasicNameValuePair(streamedName, "")),
+                StandardCharsets.UTF_8).getBytes(StandardCharsets.US_ASCII);
+        this.reader = reader;
+        this.file = file;
+        // as UrlEncodedFormEntity with UTF-8, not the ISO-8859-1 default of APPLICATION_FORM_URLENCODED
+        setContentType(ContentType.create(ContentType.APPLICATION_FORM_URLENCODED.getMimeType(),
+                StandardCharsets.UTF_8).toString());
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return file != null;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return file == null && !consumed;
+    }
+
+    /**
+     * Returns the body as a stream, encoding the streamed parameter while it is read (e.g. by the non-blocking client
+     * of {@link APIRequest#doPostAsync()}); closing the stream closes the streamed value
+     */
+    @Override
+    public InputStream getContent() throws IOException {
+        return new EncodingInputStream(open());
+    }
+
+    @Override
+    public void writeTo(final OutputStream out) throws IOException {
+        try (Encoder encoder = open()) {
+            int length;
+            while ((length = encoder.next()) != -1)
+                out.write(encoder.encoded, 0, length);
+        }
+        out.flush();
+    }
+
+    /**
+     * Starts a transmission of the body
+     */
+    private Encoder open() throws IOException {
+        if (file == null) {
+            if (consumed)
+                throw new IOException("Streamed parameter \"" + streamedName + "\" has already been sent");
+            consumed = true;
+        }
+        final byte[] head = new byte[fixedParams.length + (fixedParams.length > 0 ? 1 : 0) + streamedPrefix.length];
+        System.arraycopy(fixedParams, 0, head, 0, fixedParams.length);
+        if (fixedParams.length > 0)
+            head[fixedParams.length] = '&';
+        System.arraycopy(streamedPrefix, 0, head, head.length - streamedPrefix.length, streamedPrefix.length);
+        return new Encoder(head, file == null ? reader : Files.newBufferedReader(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Producer of the body: the fixed parameters, then the UTF-8 bytes of the streamed value percent-encoded as
+     * {@link java.net.URLEncoder} does, a buffer at a time
+     */
+    private static final class Encoder implements Closeable {
+        private final Reader value;
+        private final CharsetEncoder encoder;
+        private final CharBuffer chars;
+        private final ByteBuffer bytes;
+        private final byte[] encoded;
+        private byte[] head;
+        private boolean end;
+
+        Encoder(final byte[] head, final Reader value) {
+            this.head = head;
+            this.value = value;
+            encoder = StandardCharsets.UTF_8.newEncoder();
+            chars = CharBuffer.allocate(BUFFER_SIZE);
+            bytes = ByteBuffer.allocate(BUFFER_SIZE * 4);
+            encoded = new byte[Math.max(BUFFER_SIZE * 12, head.length)];
+        }
+
+        /**
+         * Produces the next part of the body in {@link #encoded}
+         * @return the number of bytes produced, -1 at the end of the body
+         */
+        int next() throws IOException {
+            if (head != null) {
+                final int length = head.length;
+                System.arraycopy(head, 0, encoded, 0, length);
+                head = null;
+                return length;
+            }
+            if (end)
+                return -1;
+
+            end = value.read(chars) == -1;
+            chars.flip();
+            CoderResult result = encoder.encode(chars, bytes, end);
+            if (end && !result.isError())
+                result = encoder.flush(bytes);
+            if (result.isError())
+                result.throwException();
+            // an incomplete surrogate pair is left in the buffer for the next read
+            chars.compact();
+
+            bytes.flip();
+            int length = 0;
+            while (bytes.hasRemaining()) {
+                final int b = bytes.get() & 0xff;
+                if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '.'
+                        || b == '-' || b == '*' || b == '_') {
+                    encoded[length++] = (byte) b;
+                } else if (b == ' ') {
+                    encoded[length++] = '+';
+                } else {
+                    encoded[length++] = '%';
+                    encoded[length++] = (byte) Character.toUpperCase(Character.forDigit(b >> 4, 16));
+                    encoded[length++] = (byte) Character.toUpperCase(Character.forDigit(b & 0xf, 16));
+                }
+            }
+            bytes.clear();
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            value.close();
+        }
+    }
+
+    /**
+     * Body read as a stream, produced by an encoder as it is consumed
+     */
+    private static final class EncodingInputStream extends InputStream {
+        private final Encoder encoder;
+        private int position;
+        private int length;
+
+        EncodingInputStream(final Encoder encoder) {
+            this.encoder = encoder;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0)
+                return 0;
+            // an encoded part may be empty, e.g. the flush of the encoder
+            while (position == length) {
+                length = encoder.next();
+                position = 0;
+                if (length == -1) {
+                    length = 0;
+                    return -1;
+                }
+            }
+            final int n = Math.min(len, length - position);
+            System.arraycopy(encoder.encoded, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            encoder.close();
+        }
+    }
+}
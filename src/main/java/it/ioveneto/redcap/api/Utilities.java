@@ -1,19 +1,24 @@
 package it.ioveneto.redcap.api;
 
-import java.text.ParseException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 
 public class Utilities {
 
+    /** Format of the timestamps accepted by the REDCap API (e.g. dateRangeBegin/dateRangeEnd of record export) */
+    public static final String DATE_TIME_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+    /**
+     * Checks whether a string is a timestamp in REDCap API format "YYYY-MM-DD HH:MM:SS"
+     * @param inDate the timestamp
+     * @return true if valid
+     */
     public static boolean isValidDate(String inDate) {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss:ms");
+        SimpleDateFormat dateFormat = new SimpleDateFormat(DATE_TIME_FORMAT);
         dateFormat.setLenient(false);
-        try {
-            dateFormat.parse(inDate.trim());
-        } catch (ParseException pe) {
-            return false;
-        }
-        return true;
+        String trimmed = inDate.trim();
+        ParsePosition position = new ParsePosition(0);
+        return dateFormat.parse(trimmed, position) != null && position.getIndex() == trimmed.length();
     }
 
     public static boolean checkNumberPositive(String number) {
@@ -0,0 +1,115 @@
+package it.ioveneto.redcap.api;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Pull parser of records exported in REDCap xml format (format=xml, the default of {@link ExportRecords}), that is a
+ * records element containing an item element per record, with a child element per field. Records are read with StAX
+ * and returned one at a time as a map from field name to value, so memory use does not depend on the size of the
+ * export. Field names are shared among all the records returned.
+ * <p>
+ * Typical use, on a streamed export:
+ * </p>
+ * <pre>
+ * try (XmlRecordReader records = new XmlRecordReader(exportRecords.doPostStream())) {
+ *     while (records.hasNext())
+ *         load(records.next());
+ * }
+ * </pre>
+ */
+public class XmlRecordReader implements Iterator<Map<String, String>>, Closeable {
+    private final InputStream in;
+    private final XMLStreamReader xml;
+    private final Map<String, String> fieldNames;
+    private Map<String, String> next;
+    private int lastSize;
+    private boolean finished;
+
+    /**
+     * Constructor reading an export
+     * @param in the export, closed by {@link #close()}
+     */
+    public XmlRecordReader(final InputStream in) throws APICallException {
+        if (in == null)
+            throw new IllegalArgumentException("Must provide the export to read");
+        this.in = in;
+        try {
+            xml = OdmStreamReader.newInputFactory().createXMLStreamReader(in);
+        } catch (final XMLStreamException e) {
+            throw new APICallException("Failure in reading xml records - "+e.getMessage(), e);
+        }
+        fieldNames = new HashMap<String, String>();
+        lastSize = 16;
+    }
+
+    /**
+     * Checks whether there are more records, reading the export up to the end of the next one
+     * @return true if a record is available
+     */
+    @Override
+    public boolean hasNext() throws APICallException {
+        if (next == null && !finished)
+            advance();
+        return next != null;
+    }
+
+    /**
+     * Returns the next record
+     * @return the record as map from field name to value, in export order
+     */
+    @Override
+    public Map<String, String> next() throws APICallException {
+        if (!hasNext())
+            throw new NoSuchElementException("No more records in export");
+        final Map<String, String> record = next;
+        next = null;
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        try {
+            xml.close();
+        } catch (final XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads up to the end of the next item element, or of the document
+     */
+    private void advance() {
+        try {
+            while (xml.hasNext()) {
+                if (xml.next() == XMLStreamConstants.START_ELEMENT && xml.getLocalName().equals("item")) {
+                    final Map<String, String> record = new LinkedHashMap<String, String>(lastSize * 4 / 3 + 1);
+                    while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                        final String name = xml.getLocalName();
+                        final String shared = fieldNames.putIfAbsent(name, name);
+                        record.put(shared == null ? name : shared, xml.getElementText());
+                    }
+                    lastSize = record.size();
+                    next = record;
+                    return;
+                }
+            }
+        } catch (final XMLStreamException e) {
+            finished = true;
+            throw new APICallException("Failure in reading xml records - "+e.getMessage(), e);
+        }
+        finished = true;
+    }
+}
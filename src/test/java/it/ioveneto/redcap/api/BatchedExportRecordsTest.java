@@ -0,0 +1,117 @@
+package it.ioveneto.redcap.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchedExportRecordsTest {
+    private static final String TOKEN = "0123456789ABCDEF0123456789ABCDEF";
+
+    private StubServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        // the id enumeration asks for the record ID field only, batches for their records
+        server = new StubServer(request -> {
+            final String body = URLDecoder.decode(request, StandardCharsets.UTF_8);
+            if (body.contains("fields=record_id"))
+                return "record_id\n1\n1\n\"2,a\"\n3\n";
+            final String records = body.substring(body.indexOf("records=") + "records=".length()).split("&")[0];
+            if (body.contains("format=json")) {
+                final List<String> rows = new ArrayList<String>();
+                for (final String id : records.split(",(?!a)"))
+                    rows.add("{\"record_id\":\"" + id + "\"}");
+                return "[" + String.join(",", rows) + "]";
+            }
+            final StringBuilder csv = new StringBuilder("record_id\n");
+            for (final String id : records.split(",(?!a)"))
+                csv.append(id.contains(",") ? "\"" + id + "\"" : id).append('\n');
+            return csv.toString();
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void firstCsvValueUnquotes() {
+        assertEquals("1", BatchedExportRecords.firstCsvValue("1,a,b"));
+        assertEquals("1", BatchedExportRecords.firstCsvValue("1"));
+        assertEquals("", BatchedExportRecords.firstCsvValue(",a"));
+        assertEquals("a,b", BatchedExportRecords.firstCsvValue("\"a,b\",c"));
+        assertEquals("say \"hi\"", BatchedExportRecords.firstCsvValue("\"say \"\"hi\"\"\",c"));
+        assertEquals("cut", BatchedExportRecords.firstCsvValue("\"cut"));
+    }
+
+    @Test
+    public void csvBatchesKeepOnlyTheFirstHeader() {
+        final BatchedExportRecords export = export("csv");
+        assertEquals("a,b\n1,2\n", export.batchContent("a,b\n1,2", true));
+        assertEquals("3,4\n", export.batchContent("a,b\r\n3,4\n", false));
+        assertEquals("", export.batchContent("a,b", false));
+        assertEquals("", export.batchContent("", true));
+    }
+
+    @Test
+    public void jsonBatchesLoseTheirBrackets() {
+        final BatchedExportRecords export = export("json");
+        assertEquals("{\"a\":\"1\"},{\"a\":\"2\"}", export.batchContent(" [{\"a\":\"1\"},{\"a\":\"2\"}]\n", false));
+        assertEquals("", export.batchContent("[]", false));
+        assertEquals("", export.batchContent("", true));
+    }
+
+    @Test
+    public void xmlBatchesLoseTheirDocumentElement() {
+        final BatchedExportRecords export = export("xml");
+        assertEquals("<item><a>1</a></item>\n", export.batchContent(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<records>\n<item><a>1</a></item>\n</records>\n", true));
+        assertEquals("", export.batchContent("<records></records>", false).trim());
+        assertEquals("", export.batchContent("<error>denied</error>", false));
+    }
+
+    @Test
+    public void enumeratesDistinctRecordIDs() {
+        assertEquals(Arrays.asList("1", "2,a", "3"), export("csv").getRecordIDs());
+    }
+
+    @Test
+    public void mergesCsvBatchesInRecordOrder() {
+        assertEquals("record_id\n1\n\"2,a\"\n3\n", export("csv").export());
+        // one enumeration, two batches
+        assertEquals(3, server.getRequests().size());
+    }
+
+    @Test
+    public void mergesJsonBatchesInRecordOrder() {
+        assertEquals("[{\"record_id\":\"1\"},{\"record_id\":\"2,a\"},{\"record_id\":\"3\"}]", export("json").export());
+    }
+
+    @Test
+    public void deliversEveryBatchToTheConsumer() {
+        final List<String> batches = new ArrayList<String>();
+        export("csv").export(batches::add);
+        assertEquals(2, batches.size());
+        assertTrue(batches.get(1).endsWith("3\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveBatchSize() {
+        new BatchedExportRecords(TOKEN, server.getUrl(), "record_id", "csv", 0, 1);
+    }
+
+    private BatchedExportRecords export(final String format) {
+        return new BatchedExportRecords(TOKEN, server.getUrl(), "record_id", format, 2, 2);
+    }
+}
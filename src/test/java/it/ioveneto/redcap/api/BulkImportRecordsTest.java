@@ -0,0 +1,143 @@
+package it.ioveneto.redcap.api;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BulkImportRecordsTest {
+    private static final String TOKEN = "0123456789ABCDEF0123456789ABCDEF";
+
+    private StubServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        // answers with the IDs of the imported records
+        server = new StubServer(request -> {
+            final JSONArray ids = new JSONArray();
+            for (final Object record : batch(request))
+                ids.add(((JSONObject) record).get("record_id"));
+            return request.contains("returnContent=ids") ? ids.toJSONString() : "{\"count\": " + ids.size() + "}";
+        });
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void encodedLengthMatchesUrlEncoder() {
+        for (final String value : new String[]{"", "abc XYZ 019", ".-*_", "{\"a\":\"b&c=d\"}", "100%+/~",
+                "caffè", "€", "😀", "line\r\nbreak\t"})
+            assertEquals(value, URLEncoder.encode(value, StandardCharsets.UTF_8).length(),
+                    BulkImportRecords.encodedLength(value));
+    }
+
+    @Test
+    public void batchesStayWithinMaxBytes() {
+        final List<Map<String, String>> records = new ArrayList<Map<String, String>>();
+        for (int i = 0; i < 100; i++)
+            records.add(row("record_id", String.valueOf(i), "notes", "è & €".repeat(i % 7)));
+        final long maxBytes = 600;
+
+        final BulkImportResult result = new BulkImportRecords(TOKEN, server.getUrl(), 1000, maxBytes, 2)
+                .importRecords(records);
+        assertTrue(result.isSuccessful());
+        assertEquals(100, result.getCount());
+        assertEquals(server.getRequests().size(), result.getBatches());
+
+        final List<String> ids = new ArrayList<String>();
+        for (final String request : server.getRequests()) {
+            assertTrue(encodedData(request).length() <= maxBytes);
+            for (final Object record : batch(request))
+                ids.add((String) ((JSONObject) record).get("record_id"));
+        }
+        // every record is sent once, split over several batches
+        assertEquals(100, ids.size());
+        assertEquals(100, new HashSet<String>(ids).size());
+        assertTrue(result.getBatches() > 1);
+    }
+
+    @Test
+    public void batchesFillUpToMaxBytes() {
+        final Map<String, String> record = row("record_id", "1");
+        // "[" + 3 * record + 2 * "," + "]", url-encoded
+        final long threeRecords = 6 + 3 * BulkImportRecords.encodedLength(JSONObject.toJSONString(record)) + 6;
+        final List<Map<String, String>> records = Arrays.asList(record, record, record, record);
+
+        assertEquals(2, new BulkImportRecords(TOKEN, server.getUrl(), 1000, threeRecords, 1)
+                .importRecords(records).getBatches());
+        assertEquals(threeRecords, encodedData(server.getRequests().get(0)).length());
+        assertEquals(2, new BulkImportRecords(TOKEN, server.getUrl(), 1000, threeRecords - 1, 1)
+                .importRecords(records).getBatches());
+        assertEquals(2, batch(server.getRequests().get(2)).size());
+    }
+
+    @Test
+    public void rowsOfARecordStayTogether() {
+        final List<Map<String, String>> records = Arrays.asList(
+                row("record_id", "1", "redcap_event_name", "a"),
+                row("record_id", "1", "redcap_event_name", "b"),
+                row("record_id", "1", "redcap_event_name", "c"),
+                row("record_id", "2", "redcap_event_name", "a"));
+        final BulkImportResult result = new BulkImportRecords(TOKEN, server.getUrl(), null, false, "ids",
+                "record_id", 2, 100000, 1).importRecords(records);
+        assertEquals(2, result.getBatches());
+        assertEquals(3, batch(server.getRequests().get(0)).size());
+        assertEquals(Arrays.asList("1", "1", "1", "2"), result.getIds());
+    }
+
+    @Test
+    public void failedBatchesAreReported() {
+        server.close();
+        final BulkImportResult result = new BulkImportRecords(TOKEN, server.getUrl(), 1, 100000, 1)
+                .importRecords(Arrays.asList(row("record_id", "1"), row("record_id", "2")));
+        assertFalse(result.isSuccessful());
+        assertEquals(2, result.getErrors().size());
+        assertEquals(0, result.getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownReturnContent() {
+        new BulkImportRecords(TOKEN, "http://localhost/api/", null, false, "all", null, 1, 1, 1);
+    }
+
+    private static String encodedData(final String request) {
+        final String data = request.substring(request.indexOf("data=") + "data=".length());
+        return data.contains("&") ? data.substring(0, data.indexOf('&')) : data;
+    }
+
+    private static JSONArray batch(final String request) {
+        try {
+            return (JSONArray) new JSONParser().parse(URLDecoder.decode(encodedData(request), StandardCharsets.UTF_8));
+        } catch (final ParseException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Map<String, String> row(final String... values) {
+        final Map<String, String> row = new LinkedHashMap<String, String>();
+        for (int i = 0; i < values.length; i += 2)
+            row.put(values[i], values[i + 1]);
+        return row;
+    }
+}
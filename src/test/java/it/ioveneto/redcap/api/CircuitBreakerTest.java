@@ -0,0 +1,167 @@
+package it.ioveneto.redcap.api;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerTest {
+    private static final String ENDPOINT = "https://redcap.example.org/api/";
+    private static final long OPEN_DURATION = 50;
+
+    @Test
+    public void staysClosedBelowMinimumCalls() {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 8, OPEN_DURATION, 2);
+        for (int i = 0; i < 3; i++)
+            breaker.acquire(ENDPOINT).release(true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT));
+        assertEquals(1.0, breaker.getFailureRate(ENDPOINT), 0);
+    }
+
+    @Test
+    public void opensAtTheFailureRate() {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 8, OPEN_DURATION, 2);
+        breaker.acquire(ENDPOINT).release(false);
+        breaker.acquire(ENDPOINT).release(false);
+        breaker.acquire(ENDPOINT).release(true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT));
+        breaker.acquire(ENDPOINT).release(true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+
+        try {
+            breaker.acquire(ENDPOINT);
+            fail("Open circuit must reject calls");
+        } catch (final CircuitBreakerOpenException e) {
+            assertEquals(ENDPOINT, e.getEndpoint());
+            assertTrue(e.getRemaining() > 0 && e.getRemaining() <= OPEN_DURATION);
+        }
+    }
+
+    @Test
+    public void onlyTheLastCallsAreRecorded() {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 4, OPEN_DURATION, 2);
+        breaker.acquire(ENDPOINT).release(true);
+        breaker.acquire(ENDPOINT).release(false);
+        breaker.acquire(ENDPOINT).release(false);
+        breaker.acquire(ENDPOINT).release(false);
+        assertEquals(0.25, breaker.getFailureRate(ENDPOINT), 0);
+        // the failure slides out of the window
+        breaker.acquire(ENDPOINT).release(false);
+        assertEquals(0.0, breaker.getFailureRate(ENDPOINT), 0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT));
+    }
+
+    @Test
+    public void endpointsHaveTheirOwnCircuit() {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 1, 4, OPEN_DURATION, 2);
+        breaker.acquire(ENDPOINT).release(true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("https://other.example.org/api/"));
+        breaker.acquire("https://other.example.org/api/").release(false);
+    }
+
+    @Test
+    public void admitsTrialCallsAfterTheOpenDuration() throws InterruptedException {
+        final CircuitBreaker breaker = opened(2);
+        Thread.sleep(OPEN_DURATION + 10);
+
+        breaker.acquire(ENDPOINT);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(ENDPOINT));
+        breaker.acquire(ENDPOINT);
+        try {
+            breaker.acquire(ENDPOINT);
+            fail("Calls beyond the trial ones must be rejected");
+        } catch (final CircuitBreakerOpenException e) {
+            assertEquals(0, e.getRemaining());
+        }
+    }
+
+    @Test
+    public void trialSuccessesCloseTheCircuit() throws InterruptedException {
+        final CircuitBreaker breaker = opened(2);
+        Thread.sleep(OPEN_DURATION + 10);
+
+        final CircuitBreaker.Permit first = breaker.acquire(ENDPOINT);
+        final CircuitBreaker.Permit second = breaker.acquire(ENDPOINT);
+        first.release(false);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(ENDPOINT));
+        second.release(false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT));
+        assertEquals(0.0, breaker.getFailureRate(ENDPOINT), 0);
+    }
+
+    @Test
+    public void trialFailureReopensTheCircuit() throws InterruptedException {
+        final CircuitBreaker breaker = opened(2);
+        Thread.sleep(OPEN_DURATION + 10);
+
+        final CircuitBreaker.Permit first = breaker.acquire(ENDPOINT);
+        final CircuitBreaker.Permit second = breaker.acquire(ENDPOINT);
+        first.release(true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+        // outcome of a trial admitted before reopening
+        second.release(false);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+    }
+
+    @Test
+    public void staleOutcomesAreIgnored() throws InterruptedException {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 2, 4, OPEN_DURATION, 1);
+        final CircuitBreaker.Permit stale = breaker.acquire(ENDPOINT);
+        breaker.acquire(ENDPOINT).release(true);
+        breaker.acquire(ENDPOINT).release(true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+        Thread.sleep(OPEN_DURATION + 10);
+
+        final CircuitBreaker.Permit trial = breaker.acquire(ENDPOINT);
+        stale.release(true);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(ENDPOINT));
+        trial.release(false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT));
+    }
+
+    @Test
+    public void cancelledTrialFreesItsSlot() throws InterruptedException {
+        final CircuitBreaker breaker = opened(1);
+        Thread.sleep(OPEN_DURATION + 10);
+
+        final CircuitBreaker.Permit trial = breaker.acquire(ENDPOINT);
+        trial.cancel();
+        // released once only
+        trial.release(true);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(ENDPOINT));
+        breaker.acquire(ENDPOINT).release(false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT));
+    }
+
+    @Test
+    public void resetClosesTheCircuit() {
+        final CircuitBreaker breaker = opened(1);
+        breaker.reset(ENDPOINT);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(ENDPOINT));
+        assertEquals(0.0, breaker.getFailureRate(ENDPOINT), 0);
+        breaker.acquire(ENDPOINT).release(false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void minimumCallsMustFitTheWindow() {
+        new CircuitBreaker(0.5, 10, 5, OPEN_DURATION, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void failureRateMustBePositive() {
+        new CircuitBreaker(0, 1, 5, OPEN_DURATION, 1);
+    }
+
+    /**
+     * Returns a breaker whose circuit of the endpoint has just opened
+     */
+    private static CircuitBreaker opened(final int trialCalls) {
+        final CircuitBreaker breaker = new CircuitBreaker(0.5, 2, 4, OPEN_DURATION, trialCalls);
+        breaker.acquire(ENDPOINT).release(true);
+        breaker.acquire(ENDPOINT).release(true);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState(ENDPOINT));
+        return breaker;
+    }
+}
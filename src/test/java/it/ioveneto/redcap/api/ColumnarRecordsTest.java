@@ -0,0 +1,118 @@
+package it.ioveneto.redcap.api;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ColumnarRecordsTest {
+    @Test
+    public void encodesRepeatedValuesOnce() {
+        final ColumnarRecords records = csv("record_id,sex\n1,2\n2,1\n3,2\n4,\n");
+        final ColumnarRecords.Column sex = records.getColumn("sex");
+        assertEquals(4, records.getRowCount());
+        assertEquals(Arrays.asList("record_id", "sex"), records.getFields());
+        // absent, "2", "1", ""
+        assertEquals(4, sex.getCardinality());
+        assertEquals(sex.getCode(0), sex.getCode(2));
+        assertEquals("2", sex.decode(sex.getCode(2)));
+        assertEquals("", records.getValue(3, "sex"));
+        assertArrayEquals(new int[]{0, 2, 1, 1}, sex.countCodes());
+    }
+
+    @Test
+    public void encodesValuesOfEveryCardinality() {
+        final StringBuilder csv = new StringBuilder("record_id\n");
+        for (int i = 0; i < 10000; i++)
+            csv.append(i).append('\n');
+        final ColumnarRecords.Column ids = csv(csv.toString()).getColumn("record_id");
+        assertEquals(10001, ids.getCardinality());
+        for (int i = 0; i < 10000; i++)
+            assertEquals(String.valueOf(i), ids.decode(ids.encode(String.valueOf(i))));
+        assertEquals(-1, ids.encode("10000"));
+        assertEquals(ColumnarRecords.ABSENT, ids.encode(null));
+    }
+
+    @Test
+    public void selectsRowsByValueAndCode() {
+        final ColumnarRecords.Column age = csv("age\n40\n17\n65\n17\n").getColumn("age");
+        assertEquals(bits(0, 2), age.select(value -> Integer.parseInt(value) >= 18));
+        assertEquals(bits(1, 3), age.select(age.encode("17")));
+        assertEquals(bits(), age.select(age.encode("99")));
+    }
+
+    @Test
+    public void conditionIsEvaluatedOncePerDistinctValue() {
+        final ColumnarRecords.Column sex = csv("sex\n1\n2\n1\n1\n2\n").getColumn("sex");
+        final List<String> tested = new ArrayList<String>();
+        sex.select(value -> tested.add(value) && value.equals("1"));
+        assertEquals(Arrays.asList("1", "2"), tested);
+    }
+
+    @Test
+    public void fieldsMissingFromRowsAreAbsent() {
+        final List<Map<String, String>> rows = new ArrayList<Map<String, String>>();
+        rows.add(row("record_id", "1"));
+        rows.add(row("record_id", "2", "notes", "late"));
+        final ColumnarRecords records = new ColumnarRecords(rows.iterator());
+
+        assertEquals(Arrays.asList("record_id", "notes"), records.getFields());
+        assertNull(records.getValue(0, "notes"));
+        assertEquals(ColumnarRecords.ABSENT, records.getColumn("notes").getCode(0));
+        assertEquals(row("record_id", "1"), records.getRow(0));
+        assertEquals(row("record_id", "2", "notes", "late"), records.getRow(1));
+        assertNull(records.getColumn("age"));
+    }
+
+    @Test
+    public void rejectsRaggedCsvRows() {
+        for (final String csv : new String[]{"a,b\n1,2,3\n", "a,b\n1\n"}) {
+            try {
+                csv(csv);
+                fail("Ragged row must be rejected: " + csv);
+            } catch (final APICallException e) {
+                assertTrue(e.getMessage().startsWith("Row 2 has"));
+            }
+        }
+    }
+
+    @Test(expected = APICallException.class)
+    public void rejectsDuplicateCsvFields() {
+        csv("a,a\n1,2\n");
+    }
+
+    @Test
+    public void readsEmptyExports() {
+        assertEquals(0, csv("").getRowCount());
+        assertEquals(Arrays.asList("a"), csv("a\n").getFields());
+    }
+
+    private static ColumnarRecords csv(final String csv) {
+        return new ColumnarRecords(new CsvRecordReader(new StringReader(csv), ","));
+    }
+
+    private static Map<String, String> row(final String... values) {
+        final Map<String, String> row = new LinkedHashMap<String, String>();
+        for (int i = 0; i < values.length; i += 2)
+            row.put(values[i], values[i + 1]);
+        return row;
+    }
+
+    private static BitSet bits(final int... rows) {
+        final BitSet bits = new BitSet();
+        for (final int row : rows)
+            bits.set(row);
+        return bits;
+    }
+}
@@ -0,0 +1,135 @@
+package it.ioveneto.redcap.api;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyLimiterTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void slotsAboveTheLimitWaitInArrivalOrder() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 8, 2.0, 0.5);
+        assertTrue(limiter.acquireAsync().isDone());
+        assertTrue(limiter.acquireAsync().isDone());
+        final CompletableFuture<Void> first = limiter.acquireAsync();
+        final CompletableFuture<Void> second = limiter.acquireAsync();
+        assertFalse(first.isDone());
+        assertEquals(2, limiter.getWaiting());
+
+        limiter.release();
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+        assertEquals(2, limiter.getInFlight());
+        assertEquals(1, limiter.getWaiting());
+    }
+
+    @Test
+    public void cancelledWaiterGivesUpItsSlot() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 8, 2.0, 0.5);
+        limiter.acquireAsync();
+        final CompletableFuture<Void> cancelled = limiter.acquireAsync();
+        final CompletableFuture<Void> next = limiter.acquireAsync();
+
+        cancelled.cancel(false);
+        assertEquals(1, limiter.getWaiting());
+        limiter.release();
+        assertTrue(next.isDone());
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(0, limiter.getWaiting());
+    }
+
+    @Test
+    public void limitGrowsWhileInUse() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 8, 2.0, 0.5);
+        for (int i = 0; i < 4; i++)
+            limiter.acquireAsync();
+        for (int i = 0; i < 8; i++) {
+            limiter.release(MS, false);
+            limiter.acquireAsync();
+        }
+        assertTrue(limiter.getLimit() > 4);
+    }
+
+    @Test
+    public void limitDoesNotGrowWhenIdle() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 8, 2.0, 0.5);
+        for (int i = 0; i < 20; i++) {
+            limiter.acquireAsync();
+            limiter.release(MS, false);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void overloadShrinksTheLimitOncePerRoundTrip() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 8, 2.0, 0.5);
+        limiter.acquireAsync();
+        limiter.release(10 * MS, false);
+        Thread.sleep(20);
+
+        limiter.acquireAsync();
+        limiter.acquireAsync();
+        limiter.release(10 * MS, true);
+        assertEquals(4, limiter.getLimit());
+        // sent at the same load as the previous one
+        limiter.release(10 * MS, true);
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void growingLatencyIsOverload() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 8, 2.0, 0.5);
+        limiter.acquireAsync();
+        limiter.release(MS, false);
+        assertEquals(MS, limiter.getMinLatency());
+        Thread.sleep(20);
+
+        for (int i = 0; i < 3; i++) {
+            limiter.acquireAsync();
+            limiter.release(10 * MS, false);
+        }
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void limitStaysWithinBounds() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 2, 3, 2.0, 0.5);
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(2);
+            limiter.acquireAsync();
+            limiter.release(MS, true);
+        }
+        assertEquals(2, limiter.getLimit());
+
+        for (int i = 0; i < 2; i++)
+            limiter.acquireAsync();
+        for (int i = 0; i < 50; i++) {
+            limiter.release(MS, false);
+            limiter.acquireAsync();
+        }
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void neutralReleaseLeavesTheLimit() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 8, 2.0, 0.5);
+        Thread.sleep(2);
+        for (int i = 0; i < 4; i++)
+            limiter.acquireAsync();
+        for (int i = 0; i < 4; i++)
+            limiter.release();
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initialLimitMustBeWithinBounds() {
+        new ConcurrencyLimiter(10, 1, 8, 2.0, 0.5);
+    }
+}
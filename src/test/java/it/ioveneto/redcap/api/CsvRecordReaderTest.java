@@ -0,0 +1,123 @@
+package it.ioveneto.redcap.api;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CsvRecordReaderTest {
+    @Test
+    public void readsPlainRows() {
+        final CsvRecordReader csv = reader("record_id,age\n1,40\n2,\n", ",");
+        assertRow(csv, "record_id", "age");
+        assertRow(csv, "1", "40");
+        assertRow(csv, "2", "");
+        assertFalse(csv.nextRow());
+        assertEquals(3, csv.getRowNumber());
+    }
+
+    @Test
+    public void handlesCrlfAndBlankLines() {
+        final CsvRecordReader csv = reader("a,b\r\n\r\n1,2\r\n\n3,4", ",");
+        assertRow(csv, "a", "b");
+        assertRow(csv, "1", "2");
+        assertRow(csv, "3", "4");
+        assertFalse(csv.nextRow());
+    }
+
+    @Test
+    public void unquotesFields() {
+        final CsvRecordReader csv = reader("\"a,b\",\"say \"\"hi\"\"\",\"line 1\r\nline 2\",\"\"\n", ",");
+        assertRow(csv, "a,b", "say \"hi\"", "line 1\r\nline 2", "");
+        assertFalse(csv.nextRow());
+    }
+
+    @Test
+    public void keepsTrailingEmptyField() {
+        final CsvRecordReader csv = reader("1,\n2,", ",");
+        assertRow(csv, "1", "");
+        assertRow(csv, "2", "");
+        assertFalse(csv.nextRow());
+    }
+
+    @Test
+    public void readsOtherDelimiters() {
+        assertRow(reader("1\t\"a\tb\"\n", "tab"), "1", "a\tb");
+        assertRow(reader("1;2\n", ";"), "1", "2");
+        assertRow(reader("1|2\n", "|"), "1", "2");
+        assertRow(reader("1^2\n", "^"), "1", "2");
+        assertRow(reader("1,2\n", null), "1", "2");
+    }
+
+    @Test
+    public void readsFieldsAcrossBufferRefills() {
+        final char[] note = new char[100000];
+        Arrays.fill(note, 'x');
+        final String value = new String(note);
+        final CsvRecordReader csv = new CsvRecordReader(new ByteArrayInputStream(
+                ("1,\"" + value + "\"\n2,y\n").getBytes(StandardCharsets.UTF_8)), ",");
+        assertRow(csv, "1", value);
+        assertRow(csv, "2", "y");
+    }
+
+    @Test
+    public void reusesSlices() {
+        final CsvRecordReader csv = reader("a,b\nc,d\n", ",");
+        csv.nextRow();
+        final CharSequence first = csv.getField(1);
+        csv.nextRow();
+        assertSame(first, csv.getField(1));
+        assertEquals("d", first.toString());
+        assertEquals("d", first.subSequence(0, 1).toString());
+    }
+
+    @Test
+    public void rejectsUnterminatedQuotedField() {
+        final CsvRecordReader csv = reader("record_id,notes\n1,\"cut in the mid", ",");
+        assertTrue(csv.nextRow());
+        try {
+            csv.nextRow();
+            fail("Truncated export must be reported");
+        } catch (final APICallException e) {
+            assertEquals("Unterminated quoted field at row 2", e.getMessage());
+        }
+    }
+
+    @Test
+    public void acceptsClosingQuoteAtEnd() {
+        assertRow(reader("1,\"done\"", ","), "1", "done");
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectsMissingField() {
+        final CsvRecordReader csv = reader("1,2\n", ",");
+        csv.nextRow();
+        csv.getField(2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownDelimiter() {
+        CsvRecordReader.delimiterChar(":");
+    }
+
+    private static CsvRecordReader reader(final String csv, final String delimiter) {
+        return new CsvRecordReader(new StringReader(csv), delimiter);
+    }
+
+    private static void assertRow(final CsvRecordReader csv, final String... values) {
+        assertTrue(csv.nextRow());
+        assertEquals(values.length, csv.getFieldCount());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], csv.getString(i));
+            assertEquals(values[i], csv.getField(i).toString());
+        }
+    }
+}
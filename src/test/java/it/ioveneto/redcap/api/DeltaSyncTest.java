@@ -0,0 +1,101 @@
+package it.ioveneto.redcap.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneId;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DeltaSyncTest {
+    private static final String TOKEN = "0123456789ABCDEF0123456789ABCDEF";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private StubServer server;
+    private Path checkpoint;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer(request -> "<ODM/>");
+        checkpoint = folder.getRoot().toPath().resolve("sync.properties");
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void odmExportsReportErrorsInXml() {
+        final DeltaSync sync = new DeltaSync(checkpoint);
+        assertEquals("<ODM/>", sync.sync(TOKEN, "odm", server.getUrl()));
+        final String request = server.getRequests().get(0);
+        assertTrue(request.contains("format=odm"));
+        assertTrue(request.contains("returnFormat=xml"));
+    }
+
+    @Test
+    public void nextRunStartsFromTheWatermark() {
+        final DeltaSync sync = new DeltaSync(checkpoint, ZoneId.of("UTC"), 0);
+        sync.sync(TOKEN, "json", server.getUrl());
+        final String watermark = sync.getWatermark();
+        assertNotNull(watermark);
+        assertFalse(server.getRequests().get(0).contains("dateRangeBegin"));
+
+        sync.sync(TOKEN, "json", server.getUrl());
+        final String request = server.getRequests().get(1);
+        assertTrue(request.contains("dateRangeBegin=" + watermark.replace(" ", "+").replace(":", "%3A")));
+        // read by a new instance too
+        assertTrue(new DeltaSync(checkpoint).getWatermark().compareTo(watermark) >= 0);
+    }
+
+    @Test
+    public void failedRunKeepsTheWatermark() {
+        final DeltaSync sync = new DeltaSync(checkpoint);
+        try {
+            sync.sync((begin, end) -> new ExportRecords(TOKEN, "json", "flat", null, null, null, null, "raw", "raw",
+                    false, "json", false, false, begin, end, ",", ".", false, server.getUrl(), false), response -> {
+                throw new IOException("Handler failed");
+            });
+            fail("Failure of the handler must be reported");
+        } catch (final APICallException e) {
+            assertNull(sync.getWatermark());
+        }
+    }
+
+    @Test
+    public void checkpointFailureLeavesNoTemporaryFile() throws IOException {
+        // a non-empty directory cannot be replaced by the checkpoint
+        Files.createDirectories(checkpoint.resolve("child"));
+        try {
+            new DeltaSync(checkpoint).sync(TOKEN, "json", server.getUrl());
+            fail("Failure in writing the checkpoint must be reported");
+        } catch (final APICallException e) {
+            try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+                assertEquals(1, files.count());
+            }
+        }
+    }
+
+    @Test
+    public void resetForgetsTheWatermark() {
+        final DeltaSync sync = new DeltaSync(checkpoint);
+        sync.sync(TOKEN, "json", server.getUrl());
+        sync.reset();
+        assertNull(sync.getWatermark());
+    }
+}
@@ -0,0 +1,149 @@
+package it.ioveneto.redcap.api;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JsonRecordReaderTest {
+    @Test
+    public void readsRecordsInOrder() {
+        final JsonRecordReader records = reader("[{\"record_id\":\"1\",\"age\":\"40\"},{\"record_id\":\"2\",\"age\":\"\"}]");
+        assertEquals(row("record_id", "1", "age", "40"), records.next());
+        assertEquals(row("record_id", "2", "age", ""), records.next());
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    public void pausesAfterEachRecord() {
+        final CountingReader counting = new CountingReader(
+                "[{\"record_id\":\"1\"},{\"record_id\":\"2\"}," + "x".repeat(1000));
+        final JsonRecordReader records = new JsonRecordReader(counting);
+        // the parser stops at the end of the first record, well before the malformed tail
+        assertTrue(records.hasNext());
+        final int consumed = counting.consumed;
+        assertTrue(consumed < 25);
+        assertTrue(records.hasNext());
+        assertEquals(consumed, counting.consumed);
+        assertEquals(row("record_id", "1"), records.next());
+        // then resumes where it stopped
+        assertEquals(row("record_id", "2"), records.next());
+        try {
+            records.hasNext();
+            fail("Malformed json must be reported");
+        } catch (final APICallException e) {
+            assertTrue(e.getMessage().startsWith("Failure in parsing json records"));
+        }
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    public void readsAcrossBufferRefills() {
+        final StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 5000; i++)
+            json.append(i == 0 ? "" : ",").append("{\"record_id\":\"").append(i).append("\",\"note\":\"\\u00e8\\\"\"}");
+        final JsonRecordReader records = new JsonRecordReader(
+                new ByteArrayInputStream(json.append(']').toString().getBytes(StandardCharsets.UTF_8)));
+        int count = 0;
+        while (records.hasNext()) {
+            final Map<String, String> record = records.next();
+            assertEquals(String.valueOf(count), record.get("record_id"));
+            assertEquals("è\"", record.get("note"));
+            count++;
+        }
+        assertEquals(5000, count);
+    }
+
+    @Test
+    public void sharesFieldNames() {
+        final JsonRecordReader records = reader("[{\"record_id\":\"1\"},{\"record_id\":\"2\"}]");
+        final String first = records.next().keySet().iterator().next();
+        assertSame(first, records.next().keySet().iterator().next());
+    }
+
+    @Test
+    public void convertsPrimitivesAndSkipsNestedValues() {
+        final JsonRecordReader records = reader("[{\"a\":1,\"b\":true,\"c\":null,\"d\":{\"e\":\"x\"},\"f\":[\"y\"]}]");
+        final Map<String, String> record = records.next();
+        assertEquals("1", record.get("a"));
+        assertEquals("true", record.get("b"));
+        assertTrue(record.containsKey("c"));
+        assertNull(record.get("c"));
+        assertFalse(record.containsKey("e"));
+        assertEquals(3, record.size());
+    }
+
+    @Test
+    public void readsASingleTopLevelObject() {
+        final JsonRecordReader records = reader("{\"record_id\":\"1\"}");
+        assertEquals(row("record_id", "1"), records.next());
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    public void readsEmptyExports() {
+        assertFalse(reader("[]").hasNext());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void nextFailsAtTheEnd() {
+        final Iterator<Map<String, String>> records = reader("[]");
+        records.next();
+    }
+
+    @Test
+    public void closedReaderHasNoRecords() throws IOException {
+        final JsonRecordReader records = reader("[{\"record_id\":\"1\"}]");
+        records.close();
+        assertFalse(records.hasNext());
+    }
+
+    private static JsonRecordReader reader(final String json) {
+        return new JsonRecordReader(new StringReader(json));
+    }
+
+    private static Map<String, String> row(final String... values) {
+        final Map<String, String> row = new LinkedHashMap<String, String>();
+        for (int i = 0; i < values.length; i += 2)
+            row.put(values[i], values[i + 1]);
+        return row;
+    }
+
+    /**
+     * Reader handing out one char per call, counting the chars consumed
+     */
+    private static final class CountingReader extends Reader {
+        private final String content;
+        private int consumed;
+
+        CountingReader(final String content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read(final char[] buffer, final int offset, final int length) {
+            if (consumed == content.length())
+                return -1;
+            buffer[offset] = content.charAt(consumed++);
+            return 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package it.ioveneto.redcap.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetadataCacheTest {
+    private static final String TOKEN = "0123456789ABCDEF0123456789ABCDEF";
+    private static final String OTHER_TOKEN = "FEDCBA9876543210FEDCBA9876543210";
+
+    private final CountDownLatch arrived = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger failures = new AtomicInteger();
+    private StubServer server;
+    private RedcapTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        // each answer is numbered, to tell a cached value from a fetched one
+        final AtomicInteger answers = new AtomicInteger();
+        server = new StubServer(request -> {
+            arrived.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failures.getAndDecrement() > 0)
+                throw new IllegalStateException("Dropped connection");
+            return "[{\"answer\":\"" + answers.incrementAndGet() + "\"}]";
+        });
+        transport = new RedcapTransport();
+        transport.setRetryPolicy(RetryPolicy.NONE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        release.countDown();
+        transport.close();
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentLookupsShareOneCall() throws Exception {
+        final MetadataCache cache = new MetadataCache(60000, 16, transport);
+        final List<CompletableFuture<String>> lookups = new ArrayList<CompletableFuture<String>>();
+        for (int i = 0; i < 8; i++)
+            lookups.add(CompletableFuture.supplyAsync(() -> cache.getMetadata(TOKEN, "json", server.getUrl())));
+        arrived.await();
+        release.countDown();
+
+        for (final CompletableFuture<String> lookup : lookups)
+            assertEquals("[{\"answer\":\"1\"}]", lookup.get());
+        assertEquals(1, server.getRequests().size());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void entriesAreKeptByContentFormatAndToken() {
+        release.countDown();
+        final MetadataCache cache = new MetadataCache(60000, 16, transport);
+        cache.getMetadata(TOKEN, "json", server.getUrl());
+        cache.getMetadata(TOKEN, "json", server.getUrl());
+        cache.getMetadata(TOKEN, "csv", server.getUrl());
+        cache.getEvents(TOKEN, "json", server.getUrl());
+        cache.getMetadata(OTHER_TOKEN, "json", server.getUrl());
+        assertEquals(4, server.getRequests().size());
+        assertTrue(server.getRequests().get(1).contains("format=csv"));
+        assertTrue(server.getRequests().get(2).contains("content=event"));
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void expiredEntriesAreFetchedAgain() throws InterruptedException {
+        release.countDown();
+        final MetadataCache cache = new MetadataCache(100, 16, transport);
+        assertEquals("[{\"answer\":\"1\"}]", cache.getArms(TOKEN, "json", server.getUrl()));
+        assertEquals("[{\"answer\":\"1\"}]", cache.getArms(TOKEN, "json", server.getUrl()));
+        Thread.sleep(200);
+        assertEquals("[{\"answer\":\"2\"}]", cache.getArms(TOKEN, "json", server.getUrl()));
+        assertEquals(2, server.getRequests().size());
+    }
+
+    @Test
+    public void failuresAreNotCached() {
+        release.countDown();
+        failures.set(1);
+        final MetadataCache cache = new MetadataCache(60000, 16, transport);
+        try {
+            cache.getInstruments(TOKEN, "json", server.getUrl());
+            fail("Failure of the call must be reported");
+        } catch (final APICallException e) {
+            assertEquals(0, cache.size());
+        }
+        assertEquals("[{\"answer\":\"1\"}]", cache.getInstruments(TOKEN, "json", server.getUrl()));
+        assertEquals(2, server.getRequests().size());
+    }
+
+    @Test
+    public void invalidateDropsTheEntriesOfAProject() {
+        release.countDown();
+        final MetadataCache cache = new MetadataCache(60000, 16, transport);
+        cache.getMetadata(TOKEN, "json", server.getUrl());
+        cache.getInstrumentEventMaps(TOKEN, "json", server.getUrl());
+        cache.getMetadata(OTHER_TOKEN, "json", server.getUrl());
+
+        cache.invalidate(TOKEN, server.getUrl());
+        assertEquals(1, cache.size());
+        assertEquals("[{\"answer\":\"4\"}]", cache.getMetadata(TOKEN, "json", server.getUrl()));
+        assertEquals("[{\"answer\":\"3\"}]", cache.getMetadata(OTHER_TOKEN, "json", server.getUrl()));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() {
+        release.countDown();
+        final MetadataCache cache = new MetadataCache(60000, 2, transport);
+        cache.getMetadata(TOKEN, "json", server.getUrl());
+        cache.getEvents(TOKEN, "json", server.getUrl());
+        cache.getMetadata(TOKEN, "json", server.getUrl());
+        cache.getArms(TOKEN, "json", server.getUrl());
+        assertEquals(2, cache.size());
+        // events were evicted, metadata kept
+        cache.getMetadata(TOKEN, "json", server.getUrl());
+        assertEquals(3, server.getRequests().size());
+        cache.getEvents(TOKEN, "json", server.getUrl());
+        assertEquals(4, server.getRequests().size());
+    }
+
+    @Test(timeout = 10000)
+    public void slowLoadsAreBoundedByTheLoadTimeout() {
+        final MetadataCache cache = new MetadataCache(60000, 16, transport, 300);
+        try {
+            cache.getMetadata(TOKEN, "json", server.getUrl());
+            fail("Load timeout must be reported");
+        } catch (final APICallException e) {
+            assertEquals(0, cache.size());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveTtl() {
+        new MetadataCache(0, 16, transport);
+    }
+}
@@ -0,0 +1,191 @@
+package it.ioveneto.redcap.api;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OdmStreamReaderTest {
+    private static final String ODM = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n"
+            + "<ODM xmlns=\"http://www.cdisc.org/ns/odm/v1.3\" xmlns:redcap=\"https://projectredcap.org\">\n"
+            + "<Study OID=\"Project.Demo\">\n"
+            + "  <GlobalVariables><StudyName>Demo &amp; test</StudyName></GlobalVariables>\n"
+            + "  <MetaDataVersion OID=\"v1\" redcap:RecordIdField=\"record_id\">"
+            + "<ItemDef OID=\"age\"><Question><TranslatedText><![CDATA[Age <years>]]></TranslatedText></Question></ItemDef>"
+            + "</MetaDataVersion>\n"
+            + "</Study>\n"
+            + "<AdminData><User OID=\"u1\"><FirstName>Ann</FirstName></User></AdminData>\n"
+            + "<ClinicalData StudyOID=\"Project.Demo\" MetaDataVersionOID=\"v1\">\n"
+            + " <SubjectData SubjectKey=\"1\">\n"
+            + "  <StudyEventData StudyEventOID=\"Event.visit_arm_1\" StudyEventRepeatKey=\"2\">\n"
+            + "   <FormData FormOID=\"Form.vitals\" FormRepeatKey=\"1\">\n"
+            + "    <ItemGroupData ItemGroupOID=\"vitals.age\">\n"
+            + "     <ItemData ItemOID=\"age\" Value=\"40\"/>\n"
+            + "     <ItemDataString ItemOID=\"notes\">a &lt;b&gt; c</ItemDataString>\n"
+            + "    </ItemGroupData>\n"
+            + "   </FormData>\n"
+            + "  </StudyEventData>\n"
+            + " </SubjectData>\n"
+            + " <SubjectData SubjectKey=\"2\"/>\n"
+            + "</ClinicalData>\n"
+            + "</ODM>\n";
+
+    @Test
+    public void reportsClinicalDataEvents() throws IOException {
+        final List<String> events = read(ODM);
+        final List<String> clinical = events.subList(events.indexOf("startSubjectData 1"), events.size());
+        assertEquals(Arrays.asList(
+                "startSubjectData 1",
+                "startStudyEventData Event.visit_arm_1 2",
+                "startFormData Form.vitals 1",
+                "startItemGroupData vitals.age",
+                "itemData age 40",
+                "itemData notes a <b> c",
+                "endItemGroupData",
+                "endFormData",
+                "endStudyEventData",
+                "endSubjectData 1",
+                "startSubjectData 2",
+                "endSubjectData 2"), clinical);
+    }
+
+    @Test
+    public void reportsMetadataEvents() throws IOException {
+        final List<String> events = read(ODM);
+        final List<String> metadata = events.subList(0, events.indexOf("startSubjectData 1"));
+        assertEquals(Arrays.asList(
+                "startMetadata Study {OID=Project.Demo}",
+                "startMetadata GlobalVariables {}",
+                "startMetadata StudyName {}",
+                "metadataText StudyName Demo & test",
+                "endMetadata StudyName",
+                "endMetadata GlobalVariables",
+                "startMetadata MetaDataVersion {OID=v1, redcap:RecordIdField=record_id}",
+                "startMetadata ItemDef {OID=age}",
+                "startMetadata Question {}",
+                "startMetadata TranslatedText {}",
+                "metadataText TranslatedText Age <years>",
+                "endMetadata TranslatedText",
+                "endMetadata Question",
+                "endMetadata ItemDef",
+                "endMetadata MetaDataVersion",
+                "endMetadata Study"), metadata);
+    }
+
+    @Test
+    public void skipsOtherSections() throws IOException {
+        for (final String event : read(ODM))
+            assertTrue(event, !event.contains("User") && !event.contains("Ann"));
+    }
+
+    @Test
+    public void ignoresUnhandledEvents() throws IOException {
+        try (OdmStreamReader odm = reader(ODM)) {
+            odm.read(new OdmEventHandler() {
+            });
+        }
+    }
+
+    @Test
+    public void rejectsExternalEntities() throws IOException {
+        final String xxe = "<?xml version=\"1.0\"?>\n<!DOCTYPE ODM [<!ENTITY x SYSTEM \"file:///etc/passwd\">]>\n"
+                + "<ODM><Study><StudyName>&x;</StudyName></Study></ODM>";
+        try {
+            for (final String event : read(xxe))
+                assertTrue(event, !event.contains("root:"));
+        } catch (final APICallException e) {
+            assertTrue(e.getMessage().startsWith("Failure in reading ODM document"));
+        }
+    }
+
+    @Test
+    public void reportsMalformedDocuments() throws IOException {
+        try {
+            read("<ODM><ClinicalData><SubjectData SubjectKey=\"1\">");
+            fail("Truncated document must be reported");
+        } catch (final APICallException e) {
+            assertTrue(e.getMessage().startsWith("Failure in reading ODM document"));
+        }
+    }
+
+    private static OdmStreamReader reader(final String odm) {
+        return new OdmStreamReader(new ByteArrayInputStream(odm.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<String> read(final String odm) throws IOException {
+        final List<String> events = new ArrayList<String>();
+        try (OdmStreamReader reader = reader(odm)) {
+            reader.read(new OdmEventHandler() {
+                @Override
+                public void startMetadata(final String element, final Map<String, String> attributes) {
+                    events.add("startMetadata " + element + " " + attributes);
+                }
+
+                @Override
+                public void metadataText(final String element, final String text) {
+                    events.add("metadataText " + element + " " + text);
+                }
+
+                @Override
+                public void endMetadata(final String element) {
+                    events.add("endMetadata " + element);
+                }
+
+                @Override
+                public void startSubjectData(final String subjectKey) {
+                    events.add("startSubjectData " + subjectKey);
+                }
+
+                @Override
+                public void startStudyEventData(final String studyEventOID, final String studyEventRepeatKey) {
+                    events.add("startStudyEventData " + studyEventOID + " " + studyEventRepeatKey);
+                }
+
+                @Override
+                public void startFormData(final String formOID, final String formRepeatKey) {
+                    events.add("startFormData " + formOID + " " + formRepeatKey);
+                }
+
+                @Override
+                public void startItemGroupData(final String itemGroupOID) {
+                    events.add("startItemGroupData " + itemGroupOID);
+                }
+
+                @Override
+                public void itemData(final String itemOID, final String value) {
+                    events.add("itemData " + itemOID + " " + value);
+                }
+
+                @Override
+                public void endItemGroupData() {
+                    events.add("endItemGroupData");
+                }
+
+                @Override
+                public void endFormData() {
+                    events.add("endFormData");
+                }
+
+                @Override
+                public void endStudyEventData() {
+                    events.add("endStudyEventData");
+                }
+
+                @Override
+                public void endSubjectData(final String subjectKey) {
+                    events.add("endSubjectData " + subjectKey);
+                }
+            });
+        }
+        return events;
+    }
+}
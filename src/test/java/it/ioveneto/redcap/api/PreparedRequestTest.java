@@ -0,0 +1,93 @@
+package it.ioveneto.redcap.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PreparedRequestTest {
+    private static final String TOKEN = "0123456789ABCDEF0123456789ABCDEF";
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private StubServer server;
+    private RedcapTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer(request -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "[{\"record_id\":\"1\"}]";
+        });
+        transport = new RedcapTransport();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        release.countDown();
+        transport.close();
+        server.close();
+    }
+
+    @Test
+    public void executeSendsTheBoundValue() {
+        release.countDown();
+        final PreparedRequest lookup = lookup();
+        assertEquals("[{\"record_id\":\"1\"}]", lookup.execute("1 2").getResult());
+        assertTrue(server.getRequests().get(0).endsWith("&records=1+2"));
+    }
+
+    @Test
+    public void executeIsServedByTheResponseCache() {
+        release.countDown();
+        final ResponseCache cache = new ResponseCache();
+        transport.setResponseCache(cache);
+        final PreparedRequest project = new PreparedRequest(withTransport(
+                new ExportProject(TOKEN, "json", "json", server.getUrl(), false)), "format");
+
+        assertEquals(200, project.execute("json").getRespCode());
+        assertEquals(200, project.execute("json").getRespCode());
+        assertEquals(1, server.getRequests().size());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test(timeout = 10000)
+    public void executeJoinsIdenticalCallsInFlight() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        transport.setRequestCoalescer(coalescer);
+        final PreparedRequest lookup = lookup();
+
+        final CompletableFuture<APIResponse> first = CompletableFuture.supplyAsync(() -> lookup.execute("1"));
+        while (server.getRequests().isEmpty())
+            Thread.sleep(5);
+        final CompletableFuture<APIResponse> second = CompletableFuture.supplyAsync(() -> lookup.execute("1"));
+        while (coalescer.getCoalesced() == 0)
+            Thread.sleep(5);
+        release.countDown();
+
+        assertEquals(first.get(10, TimeUnit.SECONDS).getResult(), second.get(10, TimeUnit.SECONDS).getResult());
+        assertEquals(1, server.getRequests().size());
+        assertEquals(1, coalescer.getCalls());
+    }
+
+    private PreparedRequest lookup() {
+        return new PreparedRequest(withTransport(new ExportRecords(TOKEN, "json", "flat", null, null, "record_id",
+                null, "raw", "raw", false, "json", false, false, null, null, ",", ".", false, server.getUrl(), false)),
+                "records");
+    }
+
+    private <T extends APIRequest> T withTransport(final T request) {
+        request.setTransport(transport);
+        return request;
+    }
+}
@@ -0,0 +1,219 @@
+package it.ioveneto.redcap.api;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecordReplicaTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicReference<String> export = new AtomicReference<String>("[]");
+    private StubServer server;
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StubServer(request -> export.get());
+        directory = folder.getRoot().toPath().resolve("replica");
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void recordsSurviveReopening() throws IOException {
+        try (RecordReplica replica = open()) {
+            export.set("[" + row("1", "event_1", "a") + "," + row("1", "event_2", "b") + "," +
+                    row("2", "event_1", "c") + "]");
+            assertEquals(2, replica.refresh());
+        }
+
+        try (RecordReplica replica = open()) {
+            assertEquals(2, replica.size());
+            final List<Map<String, String>> rows = replica.get("1");
+            assertEquals(2, rows.size());
+            assertEquals("event_2", rows.get(1).get("redcap_event_name"));
+            assertEquals("b", replica.getValue("1", "event_2", null, "age"));
+            assertEquals("c", replica.getValue("2", "event_1", null, "age"));
+            assertTrue(replica.getWatermark() != null);
+        }
+    }
+
+    @Test
+    public void laterBlocksSupersedeEarlierOnes() throws IOException {
+        try (RecordReplica replica = open()) {
+            export.set("[" + row("1", "event_1", "a") + "]");
+            replica.refresh();
+            export.set("[" + row("1", "event_1", "z") + "]");
+            replica.refresh();
+            assertEquals("z", replica.getValue("1", "event_1", null, "age"));
+        }
+        try (RecordReplica replica = open()) {
+            assertEquals("z", replica.getValue("1", "event_1", null, "age"));
+        }
+    }
+
+    @Test
+    public void tornLastBlockIsDropped() throws IOException {
+        final long first = twoVersions();
+        try (FileChannel log = FileChannel.open(directory.resolve("records-0.dat"), StandardOpenOption.WRITE)) {
+            log.truncate(log.size() - 3);
+        }
+
+        try (RecordReplica replica = open()) {
+            assertEquals("a", replica.getValue("1", "event_1", null, "age"));
+        }
+        assertEquals(first, Files.size(directory.resolve("records-0.dat")));
+    }
+
+    @Test
+    public void corruptedLastBlockIsDropped() throws IOException {
+        final long first = twoVersions();
+        final Path file = directory.resolve("records-0.dat");
+        try (FileChannel log = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer last = ByteBuffer.allocate(1);
+            log.read(last, log.size() - 1);
+            last.put(0, (byte) (last.get(0) ^ 0x55)).rewind();
+            log.write(last, log.size() - 1);
+        }
+
+        try (RecordReplica replica = open()) {
+            assertEquals("a", replica.getValue("1", "event_1", null, "age"));
+            // appended after the dropped block
+            export.set("[" + row("2", "event_1", "c") + "]");
+            replica.refresh();
+        }
+        assertTrue(Files.size(file) > first);
+        try (RecordReplica replica = open()) {
+            assertEquals("a", replica.getValue("1", "event_1", null, "age"));
+            assertEquals("c", replica.getValue("2", "event_1", null, "age"));
+        }
+    }
+
+    @Test
+    public void removalSurvivesReopening() throws IOException {
+        try (RecordReplica replica = open()) {
+            export.set("[" + row("1", "event_1", "a") + "," + row("2", "event_1", "b") + "]");
+            replica.refresh();
+            assertTrue(replica.remove("1"));
+            assertFalse(replica.remove("1"));
+            assertNull(replica.get("1"));
+        }
+        try (RecordReplica replica = open()) {
+            assertFalse(replica.contains("1"));
+            assertTrue(replica.contains("2"));
+            assertEquals(1, replica.size());
+        }
+    }
+
+    @Test
+    public void compactionKeepsOnlyTheLastBlocks() throws IOException {
+        final long first = twoVersions();
+        try (RecordReplica replica = open()) {
+            export.set("[" + row("2", "event_1", "c") + "]");
+            replica.refresh();
+            replica.remove("2");
+            replica.compact();
+            assertEquals("z", replica.getValue("1", "event_1", null, "age"));
+            assertEquals(1, replica.size());
+        }
+        assertFalse(Files.exists(directory.resolve("records-0.dat")));
+        // a single block of the same size as the first version
+        assertEquals(first, Files.size(directory.resolve("records-1.dat")));
+
+        try (RecordReplica replica = open()) {
+            assertEquals("z", replica.getValue("1", "event_1", null, "age"));
+            assertFalse(replica.contains("2"));
+        }
+    }
+
+    @Test
+    public void rowsOfARecordAreMergedWhenNotContiguous() throws IOException {
+        try (RecordReplica replica = open()) {
+            export.set("[" + row("1", "event_1", "a") + "," + row("2", "event_1", "b") + "," +
+                    row("1", "event_2", "c") + "]");
+            assertEquals(2, replica.refresh());
+            assertEquals(2, replica.get("1").size());
+            assertEquals("c", replica.getValue("1", "event_2", null, "age"));
+        }
+        try (RecordReplica replica = open()) {
+            assertEquals(2, replica.get("1").size());
+            assertEquals("a", replica.getValue("1", "event_1", null, "age"));
+        }
+    }
+
+    @Test
+    public void valuesAreMatchedByRepeatingInstrument() throws IOException {
+        try (RecordReplica replica = open()) {
+            export.set("[" +
+                    "{\"record_id\":\"1\",\"redcap_repeat_instrument\":\"\",\"redcap_repeat_instance\":\"\"," +
+                    "\"age\":\"40\",\"drug\":\"\",\"dose\":\"\"}," +
+                    "{\"record_id\":\"1\",\"redcap_repeat_instrument\":\"drugs\",\"redcap_repeat_instance\":\"1\"," +
+                    "\"age\":\"\",\"drug\":\"aspirin\",\"dose\":\"\"}," +
+                    "{\"record_id\":\"1\",\"redcap_repeat_instrument\":\"doses\",\"redcap_repeat_instance\":\"1\"," +
+                    "\"age\":\"\",\"drug\":\"\",\"dose\":\"100\"}]");
+            replica.refresh();
+
+            assertEquals("40", replica.getValue("1", null, null, "age"));
+            assertEquals("aspirin", replica.getValue("1", null, "drugs", "1", "drug"));
+            assertEquals("100", replica.getValue("1", null, "doses", "1", "dose"));
+            assertNull(replica.getValue("1", null, "doses", "2", "dose"));
+            // instance of a repeating instrument, not of a repeating event
+            assertNull(replica.getValue("1", null, "1", "dose"));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedReplicaCannotBeUsed() throws IOException {
+        final RecordReplica replica = open();
+        replica.close();
+        replica.get("1");
+    }
+
+    /**
+     * Stores record 1 with value "a", then with value "z"
+     * @return the size of the log holding only the first version
+     */
+    private long twoVersions() throws IOException {
+        final long first;
+        try (RecordReplica replica = open()) {
+            export.set("[" + row("1", "event_1", "a") + "]");
+            replica.refresh();
+            first = Files.size(directory.resolve("records-0.dat"));
+            export.set("[" + row("1", "event_1", "z") + "]");
+            replica.refresh();
+            assertEquals("z", replica.getValue("1", "event_1", null, "age"));
+        }
+        return first;
+    }
+
+    private RecordReplica open() {
+        return new RecordReplica(directory, "0123456789ABCDEF0123456789ABCDEF", server.getUrl(), "record_id", null,
+                ZoneId.systemDefault(), 0);
+    }
+
+    private static String row(final String recordId, final String event, final String age) {
+        return "{\"record_id\":\"" + recordId + "\",\"redcap_event_name\":\"" + event + "\",\"age\":\"" + age + "\"}";
+    }
+}
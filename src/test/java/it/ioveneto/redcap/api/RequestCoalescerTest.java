@@ -0,0 +1,144 @@
+package it.ioveneto.redcap.api;
+
+import org.apache.http.Header;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestCoalescerTest {
+    private static final String ENDPOINT = "https://redcap.example.org/api/";
+    private static final APIResponse RESPONSE = new APIResponse(200, "OK", new Header[0], "[]");
+
+    @Test
+    public void identicalCallsInFlightAreMadeOnce() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final CompletableFuture<APIResponse> call = new CompletableFuture<APIResponse>();
+        final AtomicInteger invoked = new AtomicInteger();
+
+        final CompletableFuture<APIResponse> first = coalescer.join("key", () -> {
+            invoked.incrementAndGet();
+            return call;
+        });
+        final CompletableFuture<APIResponse> second = coalescer.join("key", () -> {
+            invoked.incrementAndGet();
+            return call;
+        });
+        assertEquals(1, invoked.get());
+        assertEquals(1, coalescer.getInFlight());
+        assertFalse(first.isDone() || second.isDone());
+
+        call.complete(RESPONSE);
+        assertSame(RESPONSE, first.get());
+        assertSame(RESPONSE, second.get());
+        assertEquals(1, coalescer.getCalls());
+        assertEquals(1, coalescer.getCoalesced());
+    }
+
+    @Test
+    public void completedCallIsNotJoined() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final CompletableFuture<APIResponse> call = new CompletableFuture<APIResponse>();
+        final AtomicInteger seen = new AtomicInteger(-1);
+        // callers receiving the response already find no call in flight
+        coalescer.join("key", () -> call).thenRun(() -> seen.set(coalescer.getInFlight()));
+        call.complete(RESPONSE);
+        assertEquals(0, seen.get());
+        assertEquals(0, coalescer.getInFlight());
+
+        coalescer.join("key", () -> CompletableFuture.completedFuture(RESPONSE)).get();
+        assertEquals(2, coalescer.getCalls());
+        assertEquals(0, coalescer.getCoalesced());
+    }
+
+    @Test
+    public void failedCallIsSharedAndRemoved() throws InterruptedException {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final CompletableFuture<APIResponse> call = new CompletableFuture<APIResponse>();
+        final CompletableFuture<APIResponse> first = coalescer.join("key", () -> call);
+        final CompletableFuture<APIResponse> second = coalescer.join("key", () -> call);
+
+        final APICallException failure = new APICallException("HTTP 500");
+        call.completeExceptionally(failure);
+        assertEquals(0, coalescer.getInFlight());
+        for (final CompletableFuture<APIResponse> future : Arrays.asList(first, second)) {
+            try {
+                future.get();
+                fail("Failure must be shared");
+            } catch (final ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+        }
+    }
+
+    @Test
+    public void throwingCallIsRemoved() throws InterruptedException {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final CompletableFuture<APIResponse> future = coalescer.join("key", () -> {
+            throw new IllegalStateException("not started");
+        });
+        assertEquals(0, coalescer.getInFlight());
+        try {
+            future.get();
+            fail("Failure must be reported");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void cancellingACallerLeavesTheSharedCall() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final CompletableFuture<APIResponse> call = new CompletableFuture<APIResponse>();
+        final CompletableFuture<APIResponse> first = coalescer.join("key", () -> call);
+        final CompletableFuture<APIResponse> second = coalescer.join("key", () -> call);
+
+        first.cancel(true);
+        assertFalse(call.isCancelled());
+        assertEquals(1, coalescer.getInFlight());
+        call.complete(RESPONSE);
+        assertSame(RESPONSE, second.get());
+    }
+
+    @Test
+    public void keyIgnoresTheOrderOfParams() {
+        final String key = RequestCoalescer.getKey(ENDPOINT, form(
+                new BasicNameValuePair("token", "ABC"), new BasicNameValuePair("content", "record")));
+        assertEquals(key, RequestCoalescer.getKey(ENDPOINT, form(
+                new BasicNameValuePair("content", "record"), new BasicNameValuePair("token", "ABC"))));
+        assertEquals(key, RequestCoalescer.getKey(ENDPOINT,
+                new ByteArrayEntity("content=record&token=ABC".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void keyDependsOnEndpointAndParams() {
+        final String key = RequestCoalescer.getKey(ENDPOINT, form(new BasicNameValuePair("token", "ABC")));
+        assertFalse(key.equals(RequestCoalescer.getKey("https://other.example.org/api/",
+                form(new BasicNameValuePair("token", "ABC")))));
+        assertFalse(key.equals(RequestCoalescer.getKey(ENDPOINT, form(new BasicNameValuePair("token", "DEF")))));
+    }
+
+    @Test
+    public void otherBodiesHaveNoKey() {
+        assertNull(RequestCoalescer.getKey(ENDPOINT, new StringEntity("token=ABC", StandardCharsets.UTF_8)));
+    }
+
+    private static UrlEncodedFormEntity form(final NameValuePair... params) {
+        return new UrlEncodedFormEntity(Arrays.asList(params), StandardCharsets.UTF_8);
+    }
+}
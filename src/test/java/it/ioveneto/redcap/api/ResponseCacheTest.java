@@ -0,0 +1,208 @@
+package it.ioveneto.redcap.api;
+
+import org.apache.http.Header;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseCacheTest {
+    /** Estimated size of an entry with a one-char key and the response below */
+    private static final long ENTRY = 256 + 2 * (1 + 2 + 1);
+    private static final long TTL = 60000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void servesStoredResponses() {
+        final ResponseCache cache = new ResponseCache(TTL, 3 * ENTRY, ResponseCache.Eviction.LRU);
+        final APIResponse response = response("a");
+        cache.put("a", response);
+        assertSame(response, cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(ENTRY, cache.getBytes());
+    }
+
+    @Test
+    public void lruEvictsTheLeastRecentlyUsed() {
+        final ResponseCache cache = filled(ResponseCache.Eviction.LRU);
+        cache.put("d", response("d"));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3 * ENTRY, cache.getBytes());
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+    }
+
+    @Test
+    public void lfuEvictsTheLeastFrequentlyUsed() {
+        final ResponseCache cache = filled(ResponseCache.Eviction.LFU);
+        cache.put("d", response("d"));
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+    }
+
+    @Test
+    public void entriesOverTheBudgetAreNotStored() {
+        final ResponseCache cache = new ResponseCache(TTL, ENTRY - 1, ResponseCache.Eviction.LRU);
+        cache.put("a", response("a"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void expiredEntriesAreNotServed() throws InterruptedException {
+        final ResponseCache cache = new ResponseCache(50, 3 * ENTRY, ResponseCache.Eviction.LRU);
+        cache.put("a", response("a"));
+        Thread.sleep(60);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void evictedEntriesAreServedFromDisk() throws IOException {
+        final Path spill = folder.newFolder("spill").toPath();
+        final ResponseCache cache = new ResponseCache(TTL, 3 * ENTRY, ResponseCache.Eviction.LRU, spill, 1 << 20);
+        for (final String key : new String[]{"a", "b", "c", "d"})
+            cache.put(key, response(key));
+        assertTrue(Files.exists(spill.resolve("a.response")));
+        assertTrue(cache.getDiskBytes() > 0);
+
+        final APIResponse response = cache.get("a");
+        assertEquals(200, response.getRespCode());
+        assertEquals("OK", response.getReasonPhrase());
+        assertEquals("a", response.getResult());
+        assertEquals(1, cache.getDiskHits());
+        // moved back to memory, evicting the next one to disk
+        assertFalse(Files.exists(spill.resolve("a.response")));
+        assertTrue(Files.exists(spill.resolve("b.response")));
+        assertNotNull(cache.get("a"));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void oldestSpilledEntriesAreDeletedOverTheDiskBudget() throws IOException {
+        final Path spill = folder.newFolder("spill").toPath();
+        final ResponseCache cache = new ResponseCache(TTL, ENTRY, ResponseCache.Eviction.LRU, spill, 1);
+        cache.put("a", response("a"));
+        cache.put("b", response("b"));
+        assertFalse(Files.exists(spill.resolve("a.response")));
+        assertEquals(0, cache.getDiskBytes());
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void leftoverSpillFilesArePurged() throws IOException {
+        final Path spill = folder.newFolder("spill").toPath();
+        Files.write(spill.resolve("a.response"), new byte[]{1});
+        Files.write(spill.resolve(".spill123.part"), new byte[]{1});
+        Files.write(spill.resolve("notes.txt"), new byte[]{1});
+
+        final ResponseCache cache = new ResponseCache(TTL, ENTRY, ResponseCache.Eviction.LRU, spill, 1 << 20);
+        assertFalse(Files.exists(spill.resolve("a.response")));
+        assertFalse(Files.exists(spill.resolve(".spill123.part")));
+        assertTrue(Files.exists(spill.resolve("notes.txt")));
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void invalidateAllDropsMemoryAndDisk() throws IOException {
+        final Path spill = folder.newFolder("spill").toPath();
+        final ResponseCache cache = new ResponseCache(TTL, ENTRY, ResponseCache.Eviction.LRU, spill, 1 << 20);
+        cache.put("a", response("a"));
+        cache.put("b", response("b"));
+        assertTrue(Files.exists(spill.resolve("a.response")));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+        assertEquals(0, cache.getDiskBytes());
+        assertFalse(Files.exists(spill.resolve("a.response")));
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void entryInvalidatedWhileSpillingIsNotRegistered() throws IOException {
+        final Path spill = folder.newFolder("spill").toPath();
+        final ResponseCache cache = new ResponseCache(TTL, ENTRY, ResponseCache.Eviction.LRU, spill, 1 << 20) {
+            @Override
+            void writeSpill(final Path temp, final APIResponse response) throws IOException {
+                // e.g. an import invalidating the entry while it is written to disk
+                invalidate(response.getResult());
+                super.writeSpill(temp, response);
+            }
+        };
+        cache.put("a", response("a"));
+        cache.put("b", response("b"));
+
+        assertEquals(0, cache.getDiskBytes());
+        assertFalse(Files.exists(spill.resolve("a.response")));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getDiskHits());
+        // the partial file is deleted too
+        try (Stream<Path> files = Files.list(spill)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void entryStoredAgainWhileSpillingIsNotRegistered() throws IOException {
+        final Path spill = folder.newFolder("spill").toPath();
+        final ResponseCache cache = new ResponseCache(TTL, 2 * ENTRY, ResponseCache.Eviction.LRU, spill, 1 << 20) {
+            @Override
+            void writeSpill(final Path temp, final APIResponse response) throws IOException {
+                if (response.getResult().equals("a"))
+                    put("a", response("A"));
+                super.writeSpill(temp, response);
+            }
+        };
+        cache.put("a", response("a"));
+        cache.put("b", response("b"));
+        cache.put("c", response("c"));
+
+        assertFalse(Files.exists(spill.resolve("a.response")));
+        assertEquals("A", cache.get("a").getResult());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void spillDirectoryNeedsADiskBudget() throws IOException {
+        new ResponseCache(TTL, ENTRY, ResponseCache.Eviction.LRU, folder.newFolder("spill").toPath(), 0);
+    }
+
+    /**
+     * Returns a cache full with entries a, b and c, of which a is the most used and b the least recently used among
+     * the least used
+     */
+    private static ResponseCache filled(final ResponseCache.Eviction eviction) {
+        final ResponseCache cache = new ResponseCache(TTL, 3 * ENTRY, eviction);
+        for (final String key : new String[]{"a", "b", "c"})
+            cache.put(key, response(key));
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+        cache.get("c");
+        return cache;
+    }
+
+    private static APIResponse response(final String result) {
+        return new APIResponse(200, "OK", new Header[0], result);
+    }
+}
@@ -0,0 +1,153 @@
+package it.ioveneto.redcap.api;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.message.BasicNameValuePair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StreamingFormEntityTest {
+    private static final List<NameValuePair> PARAMS = Arrays.<NameValuePair>asList(
+            new BasicNameValuePair("token", "0123456789ABCDEF"),
+            new BasicNameValuePair("content", "record"),
+            new BasicNameValuePair("odd name", "a&b=c"));
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void encodesSpecialCharactersAsUrlEncodedUtils() throws IOException {
+        for (final String value : new String[]{"", "plain", "a b+c&d=e%f", "[{\"record_id\":\"1\"}]",
+                ".-*_~!'()/?#\t\r\n", "caffè € 😀", "\u0000\u007f\u0080߿ࠀ￿"})
+            assertEncoded(value);
+    }
+
+    @Test
+    public void encodesLargeValues() throws IOException {
+        final StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 50000; i++)
+            value.append(i).append(i % 3 == 0 ? " è," : "😀");
+        assertEncoded(value.toString());
+    }
+
+    @Test
+    public void keepsSurrogatePairsSplitAcrossReads() throws IOException {
+        // the high surrogate ends the buffer of the first read
+        assertEncoded("a".repeat(8191) + "😀" + "b".repeat(8190) + "😀😀");
+        final String value = "x😀 y";
+        final StreamingFormEntity entity = new StreamingFormEntity(PARAMS, "data", new OneCharReader(value));
+        assertEquals(expected(PARAMS, value), written(entity));
+    }
+
+    @Test
+    public void encodesWithoutOtherParameters() throws IOException {
+        final StreamingFormEntity entity = new StreamingFormEntity(null, "data", new StringReader("a b"));
+        assertEquals("data=a+b", written(entity));
+    }
+
+    @Test
+    public void readerIsSentOnlyOnce() throws IOException {
+        final StreamingFormEntity entity = new StreamingFormEntity(PARAMS, "data", new StringReader("x"));
+        assertTrue(entity.isStreaming());
+        assertFalse(entity.isRepeatable());
+        written(entity);
+        assertFalse(entity.isStreaming());
+        try {
+            written(entity);
+            fail("A streamed reader cannot be sent twice");
+        } catch (final IOException e) {
+            assertEquals("Streamed parameter \"data\" has already been sent", e.getMessage());
+        }
+    }
+
+    @Test
+    public void fileIsRepeatable() throws IOException {
+        final Path file = folder.newFile("data.json").toPath();
+        final String value = "[{\"notes\":\"è & 😀\"}]";
+        Files.write(file, value.getBytes(StandardCharsets.UTF_8));
+        final StreamingFormEntity entity = new StreamingFormEntity(PARAMS, "data", file);
+        assertTrue(entity.isRepeatable());
+        assertEquals(expected(PARAMS, value), written(entity));
+        assertEquals(expected(PARAMS, value), read(entity));
+    }
+
+    @Test
+    public void isChunkedFormContent() {
+        final StreamingFormEntity entity = new StreamingFormEntity(PARAMS, "data", new StringReader(""));
+        assertTrue(entity.isChunked());
+        assertEquals(-1, entity.getContentLength());
+        assertEquals("application/x-www-form-urlencoded; charset=UTF-8", entity.getContentType().getValue());
+    }
+
+    private static void assertEncoded(final String value) throws IOException {
+        final String expected = expected(PARAMS, value);
+        assertEquals(expected, written(new StreamingFormEntity(PARAMS, "data", new StringReader(value))));
+        assertEquals(expected, read(new StreamingFormEntity(PARAMS, "data", new StringReader(value))));
+    }
+
+    private static String expected(final List<NameValuePair> params, final String value) {
+        final List<NameValuePair> all = new ArrayList<NameValuePair>(params);
+        all.add(new BasicNameValuePair("data", value));
+        return URLEncodedUtils.format(all, StandardCharsets.UTF_8);
+    }
+
+    private static String written(final StreamingFormEntity entity) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        entity.writeTo(out);
+        return out.toString(StandardCharsets.US_ASCII);
+    }
+
+    private static String read(final StreamingFormEntity entity) throws IOException {
+        try (InputStream in = entity.getContent()) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            // small reads, to cross the parts produced by the encoder
+            final byte[] buffer = new byte[7];
+            int length;
+            while ((length = in.read(buffer, 0, buffer.length)) != -1)
+                out.write(buffer, 0, length);
+            return out.toString(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Reader handing out one char per call
+     */
+    private static final class OneCharReader extends Reader {
+        private final String content;
+        private int position;
+
+        OneCharReader(final String content) {
+            this.content = content;
+        }
+
+        @Override
+        public int read(final char[] buffer, final int offset, final int length) {
+            if (position == content.length())
+                return -1;
+            buffer[offset] = content.charAt(position++);
+            return 1;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package it.ioveneto.redcap.api;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Local API endpoint answering every request with the body computed from the request body
+ */
+final class StubServer implements Closeable {
+    private final HttpServer server;
+    private final List<String> requests;
+
+    StubServer(final Function<String, String> responder) throws IOException {
+        requests = new CopyOnWriteArrayList<String>();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "stub-server");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.createContext("/api/", exchange -> {
+            try {
+                final String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+                requests.add(request);
+                final byte[] body = responder.apply(request).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Returns the URL of the endpoint
+     */
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/api/";
+    }
+
+    /**
+     * Returns the url-encoded bodies of the requests received so far
+     */
+    List<String> getRequests() {
+        return requests;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}